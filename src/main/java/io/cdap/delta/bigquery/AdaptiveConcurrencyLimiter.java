@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+/**
+ * Limits the number of requests in flight with additive increase and multiplicative decrease.
+ * <p>
+ * Every successful request raises the limit by one over the current limit, so the limit grows by about one per round
+ * of requests. A request that failed because it was throttled cuts the limit by a constant factor. Requests that
+ * were in flight when the limit was last cut were sent under the old limit, so their throttling does not cut it
+ * again.
+ */
+class AdaptiveConcurrencyLimiter {
+  private final int minLimit;
+  private final int maxLimit;
+  private final double decreaseFactor;
+  private double limit;
+  private int inFlight;
+  // incremented whenever the limit is cut, to tell permits acquired before and after the cut apart
+  private long generation;
+
+  /**
+   * @param minLimit the lowest the limit can go, at least 1
+   * @param maxLimit the highest the limit can go, which is also the initial limit
+   * @param decreaseFactor the factor the limit is multiplied with when a request is throttled, between 0 and 1
+   */
+  AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, double decreaseFactor) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(String.format(
+        "Invalid concurrency limits %d and %d. The minimum must be at least 1 and at most the maximum.",
+        minLimit, maxLimit));
+    }
+    if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+      throw new IllegalArgumentException("Decrease factor must be between 0 and 1.");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.decreaseFactor = decreaseFactor;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Blocks until a request can be sent under the current limit.
+   */
+  synchronized Permit acquire() throws InterruptedException {
+    while (inFlight >= (int) limit) {
+      wait();
+    }
+    inFlight++;
+    return new Permit(generation);
+  }
+
+  /**
+   * Returns the current limit, rounded down.
+   */
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  private synchronized void release(Permit permit) {
+    inFlight--;
+    if (permit.throttled) {
+      if (permit.generation == generation) {
+        limit = Math.max(minLimit, Math.floor(limit * decreaseFactor));
+        generation++;
+      }
+    } else if (permit.succeeded) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Permission to send one request. It has to be closed once the request is done, after it is marked as succeeded or
+   * throttled. Requests that failed for other reasons are closed without either and do not change the limit.
+   */
+  final class Permit implements AutoCloseable {
+    private final long generation;
+    private boolean succeeded;
+    private boolean throttled;
+    private boolean released;
+
+    private Permit(long generation) {
+      this.generation = generation;
+    }
+
+    void succeeded() {
+      succeeded = true;
+    }
+
+    void throttled() {
+      throttled = true;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(this);
+      }
+    }
+  }
+}
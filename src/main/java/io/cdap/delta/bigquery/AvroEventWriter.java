@@ -16,30 +16,43 @@
 
 package io.cdap.delta.bigquery;
 
-import io.cdap.cdap.api.data.format.StructuredRecord;
+import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.io.DatumWriter;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import javax.annotation.Nullable;
 
 /**
  * EventWriter that writes records in Avro format.
  */
 public class AvroEventWriter implements EventWriter {
-  private DataFileWriter<StructuredRecord> avroWriter;
+  private DataFileWriter<StagingRecord> avroWriter;
 
-  AvroEventWriter(org.apache.avro.Schema avroSchema, OutputStream outputStream) {
-    DatumWriter<StructuredRecord> datumWriter = new RecordDatumWriter();
+  /**
+   * @param codec codec to compress the data blocks with, or null to write them uncompressed
+   * @param syncInterval approximate number of uncompressed bytes per data block, or 0 to use the Avro default
+   */
+  AvroEventWriter(org.apache.avro.Schema avroSchema, RecordProjection projection, OutputStream outputStream,
+                  @Nullable CodecFactory codec, int syncInterval) {
+    DatumWriter<StagingRecord> datumWriter = new StagingRecordDatumWriter(projection);
     try {
-      avroWriter = new DataFileWriter<>(datumWriter).create(avroSchema, outputStream);
+      DataFileWriter<StagingRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
+      if (codec != null) {
+        dataFileWriter.setCodec(codec);
+      }
+      if (syncInterval > 0) {
+        dataFileWriter.setSyncInterval(syncInterval);
+      }
+      avroWriter = dataFileWriter.create(avroSchema, outputStream);
     } catch (IOException e) {
       throw new RuntimeException("Failed to create avro event writer.", e);
     }
   }
 
   @Override
-  public void write(StructuredRecord record) throws IOException {
+  public void write(StagingRecord record) throws IOException {
     avroWriter.append(record);
   }
 
@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Compiles CDAP schemas into trees of Avro value encoders.
+ * <p>
+ * The type dispatch for a schema happens once, when it is compiled, instead of once per value. The resulting encoders
+ * write the same bytes as CDAP's StructuredRecordDatumWriter does for the same schema and values, except that
+ * DATETIME strings are trimmed to the microsecond precision BigQuery supports.
+ */
+final class AvroValueEncoders {
+  private static final int CACHE_SIZE = 10000;
+  // keyed by the schema string, since it includes logical types
+  private static final Map<String, ValueEncoder> ENCODERS = new ConcurrentHashMap<>();
+
+  /**
+   * Encodes a single value of a known schema.
+   */
+  interface ValueEncoder {
+    void encode(@Nullable Object value, Encoder encoder) throws IOException;
+  }
+
+  private AvroValueEncoders() {
+    // no-op
+  }
+
+  /**
+   * Returns the encoder for the given schema, compiling it if it has not been seen before.
+   */
+  static ValueEncoder get(Schema schema) {
+    String key = schema.toString();
+    ValueEncoder valueEncoder = ENCODERS.get(key);
+    if (valueEncoder != null) {
+      return valueEncoder;
+    }
+    if (ENCODERS.size() >= CACHE_SIZE) {
+      ENCODERS.clear();
+    }
+    valueEncoder = compile(schema);
+    ENCODERS.putIfAbsent(key, valueEncoder);
+    return valueEncoder;
+  }
+
+  private static ValueEncoder compile(Schema schema) {
+    switch (schema.getType()) {
+      case NULL:
+        return (value, encoder) -> encoder.writeNull();
+      case BOOLEAN:
+        return (value, encoder) -> encoder.writeBoolean((Boolean) value);
+      case INT:
+        return (value, encoder) -> encoder.writeInt(((Number) value).intValue());
+      case LONG:
+        return (value, encoder) -> encoder.writeLong(((Number) value).longValue());
+      case FLOAT:
+        return (value, encoder) -> encoder.writeFloat(((Number) value).floatValue());
+      case DOUBLE:
+        return (value, encoder) -> encoder.writeDouble(((Number) value).doubleValue());
+      case STRING:
+        if (schema.getLogicalType() == Schema.LogicalType.DATETIME) {
+          // loaded with the Avro datetime logical type, which takes at most microsecond precision like JSON
+          return (value, encoder) ->
+            encoder.writeString(StructuredRecordToJson.checkAndTrimToMaxSupportedPrecision(value.toString()));
+        }
+        return (value, encoder) -> encoder.writeString(value.toString());
+      case BYTES:
+        return (value, encoder) -> {
+          if (value instanceof ByteBuffer) {
+            encoder.writeBytes(((ByteBuffer) value).duplicate());
+          } else {
+            byte[] bytes = (byte[]) value;
+            encoder.writeBytes(bytes, 0, bytes.length);
+          }
+        };
+      case ENUM:
+        return (value, encoder) -> encoder.writeEnum(schema.getEnumIndex(value.toString()));
+      case ARRAY:
+        return compileArray(compile(schema.getComponentSchema()));
+      case MAP:
+        return compileMap(compile(schema.getMapSchema().getKey()), compile(schema.getMapSchema().getValue()));
+      case RECORD:
+        return compileRecord(schema);
+      case UNION:
+        return compileUnion(schema);
+      default:
+        throw new IllegalArgumentException("Unsupported schema type " + schema.getType());
+    }
+  }
+
+  private static ValueEncoder compileArray(ValueEncoder componentEncoder) {
+    return (value, encoder) -> {
+      encoder.writeArrayStart();
+      if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        int size = list.size();
+        encoder.setItemCount(size);
+        for (int i = 0; i < size; i++) {
+          encoder.startItem();
+          componentEncoder.encode(list.get(i), encoder);
+        }
+      } else if (value instanceof Collection) {
+        Collection<?> collection = (Collection<?>) value;
+        encoder.setItemCount(collection.size());
+        for (Object item : collection) {
+          encoder.startItem();
+          componentEncoder.encode(item, encoder);
+        }
+      } else {
+        int length = Array.getLength(value);
+        encoder.setItemCount(length);
+        for (int i = 0; i < length; i++) {
+          encoder.startItem();
+          componentEncoder.encode(Array.get(value, i), encoder);
+        }
+      }
+      encoder.writeArrayEnd();
+    };
+  }
+
+  private static ValueEncoder compileMap(ValueEncoder keyEncoder, ValueEncoder valueEncoder) {
+    return (value, encoder) -> {
+      Map<?, ?> map = (Map<?, ?>) value;
+      encoder.writeMapStart();
+      encoder.setItemCount(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        encoder.startItem();
+        keyEncoder.encode(entry.getKey(), encoder);
+        valueEncoder.encode(entry.getValue(), encoder);
+      }
+      encoder.writeMapEnd();
+    };
+  }
+
+  private static ValueEncoder compileRecord(Schema schema) {
+    List<Schema.Field> fields = schema.getFields();
+    String[] names = new String[fields.size()];
+    ValueEncoder[] fieldEncoders = new ValueEncoder[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      names[i] = fields.get(i).getName();
+      fieldEncoders[i] = compile(fields.get(i).getSchema());
+    }
+    return (value, encoder) -> {
+      StructuredRecord record = (StructuredRecord) value;
+      for (int i = 0; i < names.length; i++) {
+        fieldEncoders[i].encode(record.get(names[i]), encoder);
+      }
+    };
+  }
+
+  private static ValueEncoder compileUnion(Schema schema) {
+    List<Schema> branches = schema.getUnionSchemas();
+    ValueEncoder[] branchEncoders = new ValueEncoder[branches.size()];
+    int nullIndex = -1;
+    for (int i = 0; i < branches.size(); i++) {
+      branchEncoders[i] = compile(branches.get(i));
+      if (branches.get(i).getType() == Schema.Type.NULL) {
+        nullIndex = i;
+      }
+    }
+
+    // nullable fields are by far the most common union, they only need a null check to pick the branch
+    if (branches.size() == 2 && nullIndex >= 0) {
+      int nullBranch = nullIndex;
+      int valueBranch = 1 - nullIndex;
+      ValueEncoder valueEncoder = branchEncoders[valueBranch];
+      return (value, encoder) -> {
+        if (value == null) {
+          encoder.writeIndex(nullBranch);
+          encoder.writeNull();
+        } else {
+          encoder.writeIndex(valueBranch);
+          valueEncoder.encode(value, encoder);
+        }
+      };
+    }
+    return (value, encoder) -> {
+      int index = getUnionIndex(value, schema);
+      encoder.writeIndex(index);
+      branchEncoders[index].encode(value, encoder);
+    };
+  }
+
+  /**
+   * Finds the branch of a union that a value is written as. Null values go to the null branch, other values to the
+   * first branch whose type matches the value's class, or the first non-null branch if none matches.
+   */
+  static int getUnionIndex(@Nullable Object value, Schema unionSchema) {
+    List<Schema> schemas = unionSchema.getUnionSchemas();
+    int fallback = -1;
+    for (int i = 0; i < schemas.size(); i++) {
+      Schema.Type type = schemas.get(i).getType();
+      if (value == null) {
+        if (type == Schema.Type.NULL) {
+          return i;
+        }
+        continue;
+      }
+      if (type == Schema.Type.NULL) {
+        continue;
+      }
+      if (fallback < 0) {
+        fallback = i;
+      }
+      if (matches(value, schemas.get(i))) {
+        return i;
+      }
+    }
+    if (fallback < 0) {
+      throw new IllegalArgumentException(String.format("Value '%s' does not match union schema %s",
+                                                       value, unionSchema));
+    }
+    return fallback;
+  }
+
+  private static boolean matches(Object value, Schema schema) {
+    switch (schema.getType()) {
+      case BOOLEAN:
+        return value instanceof Boolean;
+      case INT:
+        return value instanceof Integer || value instanceof Short || value instanceof Byte;
+      case LONG:
+        return value instanceof Long;
+      case FLOAT:
+        return value instanceof Float;
+      case DOUBLE:
+        return value instanceof Double;
+      case STRING:
+      case ENUM:
+        return value instanceof CharSequence;
+      case BYTES:
+        return value instanceof ByteBuffer || value instanceof byte[];
+      case ARRAY:
+        return value instanceof Collection || value.getClass().isArray();
+      case MAP:
+        return value instanceof Map;
+      case RECORD:
+        return value instanceof StructuredRecord
+          && ((StructuredRecord) value).getSchema().getRecordName().equals(schema.getRecordName());
+      default:
+        return false;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.JobStatus;
 import com.google.cloud.bigquery.LoadJobConfiguration;
 import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableDefinition;
@@ -45,6 +46,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.gson.Gson;
 import io.cdap.cdap.api.common.Bytes;
 import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.metrics.Metrics;
 import io.cdap.delta.api.DDLEvent;
 import io.cdap.delta.api.DDLOperation;
 import io.cdap.delta.api.DMLEvent;
@@ -63,6 +65,7 @@ import net.jodah.failsafe.TimeoutExceededException;
 import net.jodah.failsafe.event.ExecutionAttemptedEvent;
 import net.jodah.failsafe.function.ContextualRunnable;
 import org.apache.twill.common.Threads;
+import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,21 +75,29 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -129,6 +140,11 @@ import javax.annotation.Nullable;
  * into a staging table in BigQuery. The staging table has the same schema as the rows in the GCS object.
  * It is clustered on _batch_id in order to make reads and deletes on the _batch_id efficient.
  * The job id for the load is of the form [app name]_stage_[dataset]_[table]_[batch id]_[retry num].
+ * If batches are staged through the Storage Write API, Step 1 keeps the events in memory instead, and this step
+ * appends them to a new pending stream of the staging table, finalizes the stream and commits it, which makes all of
+ * its rows visible at once. A failed attempt leaves its stream uncommitted and appends the rows to a new stream, so
+ * rows are never staged twice, and committing a stream again after a failure is a no-op. The staging table is not
+ * dropped after the merge but reused by the next batches of the table, and its rows expire after a day.
  * Failure scenarios are:
  * <p>
  * 1. The load job fails for some reason. For example, permissions were revoked, quota was hit, temporary outage, etc.
@@ -154,7 +170,9 @@ import javax.annotation.Nullable;
  * This query ensures that it does not matter if there are duplicate events in the batch objects on GCS.
  * Duplicate inserts and deletes will not match and be ignored.
  * Duplicate updates will update the target row to be the same that it already is.
- * Once the job succeeds, the corresponding GCS object is deleted and the offset of the latest event is committed.
+ * Once the job succeeds, the corresponding GCS object is deleted.
+ * Each table loads and merges its batches independently of the other tables, so the offset that is committed is the
+ * latest one up to which the batches of every table have been merged.
  * Failure scenarios are:
  * <p>
  * 1. The merge query fails for some reason. The consumer will retry until it succeeds.
@@ -168,20 +186,60 @@ public class BigQueryEventConsumer implements EventConsumer {
   private static final Gson GSON = new Gson();
   private static final String RETAIN_STAGING_TABLE = "retain.staging.table";
   private static final String DIRECT_LOADING_IN_PROGRESS_PREFIX = "bigquery-direct-load-in-progress-";
+  private static final String INGESTION_LANES = "gcp.bigquery.ingestion.lanes";
+  private static final String INGESTION_LANE_QUEUE_SIZE = "gcp.bigquery.ingestion.lane.queue.size";
+  // number of cut generations of batches that can be uploaded and merged while events are written to the next one
+  private static final String MAX_INFLIGHT_GENERATIONS = "gcp.bigquery.flush.max.inflight.generations";
+  // bytes of memory that staging objects being written or uploaded can hold before ingestion blocks
+  private static final String STAGING_MEMORY_BUDGET = "gcp.bigquery.staging.memory.budget";
+  // interval of the staging.memory.used gauge, metrics are published every second
+  private static final long MEMORY_GAUGE_INTERVAL_SECONDS = 1L;
+  // whether the batches of all tables of a dataset are loaded into one staging table per flush, with one load job.
+  // These batches are always staged as newline delimited JSON, whatever gcp.bigquery.staging.format is set to.
+  private static final String SHARED_STAGING_TABLE = "gcp.bigquery.staging.table.shared";
+  // number of columns, including nested fields, after which the batches of a dataset are loaded into another shared
+  // staging table. BigQuery fails to load a table with more than 10,000 columns.
+  private static final String SHARED_STAGING_TABLE_MAX_COLUMNS = "gcp.bigquery.staging.table.shared.max.columns";
+  private static final int DEFAULT_SHARED_STAGING_TABLE_MAX_COLUMNS = 10000;
+  // form of the query that finds the latest event of each row in a batch, join or window
+  private static final String DIFF_QUERY_TYPE = "gcp.bigquery.merge.diff.query";
+  // prefix of the partitioning of a target table, followed by <dataset>.<table>, applied when the table is created
+  private static final String TABLE_PARTITION_PREFIX = "gcp.bigquery.table.partition.";
+  // number of staging objects that are closed and uploaded to GCS at once
+  private static final String GCS_WRITE_THREADS = "gcp.bigquery.stage.gcs.write.threads";
+  // number of batches that are loaded into staging or target tables at once
+  private static final String LOAD_THREADS = "gcp.bigquery.stage.load.threads";
+  // number of batches that are merged into target tables at once
+  private static final String MERGE_THREADS = "gcp.bigquery.stage.merge.threads";
 
   private final DeltaTargetContext context;
+  private final Storage storage;
   private final BigQuery bigQuery;
   private final int loadIntervalSeconds;
   private final String stagingTablePrefix;
   private final MultiGCSWriter gcsWriter;
+  private final IngestionLanes ingestionLanes;
   private final Bucket bucket;
   private final String project;
   private final EncryptionConfiguration encryptionConfig;
   private final RetryPolicy<Object> commitRetryPolicy;
-  private final Map<TableId, Long> latestSeenSequence;
   private final Map<TableId, Long> latestMergedSequence;
+  // tail of the load and merge tasks of each table, only replaced in synchronized methods. A tail is removed once it
+  // completes successfully, so that only tables with batches in flight, or a failed batch, are waited on.
+  private final Map<TableId, CompletableFuture<Void>> tablePipelines;
+  private final CommitCheckpoints commitCheckpoints;
+  // bounds the generations of batches that are uploaded, loaded and merged while the next one is written
+  private final Semaphore generationPermits;
+  private final MemoryBudget memoryBudget;
+  private final AtomicBoolean memoryFlushScheduled;
   private final Map<TableId, List<String>> primaryKeyStore;
   private final Map<TableId, SortKeyState> sortKeyStore;
+  // persisted state of each table, read once and then updated in place. Also the lock for writes of the state.
+  private final Map<TableId, BigQueryTableState> tableStates;
+  // number of batches of each table that are loaded or merged but not recorded yet, guarded by tableStates
+  private final Map<TableId, Integer> pendingMerges;
+  // partitioning of target tables by <dataset>.<table>
+  private final Map<String, PartitionSpec> partitionSpecs;
   private final boolean requireManualDrops;
   private final long baseRetryDelay;
   private final int maxClusteringColumns;
@@ -189,14 +247,30 @@ public class BigQueryEventConsumer implements EventConsumer {
   private final SourceProperties.Ordering sourceEventOrdering;
   private final String datasetName;
   private final boolean retainStagingTable;
+  private final boolean sharedStagingTable;
+  private final int sharedStagingTableMaxColumns;
+  private final WriteStreamService writeStreamService;
+  private final DiffQueryType diffQueryType;
   private final boolean softDeletesEnabled;
   private ScheduledExecutorService scheduledExecutorService;
   private ScheduledFuture<?> scheduledFlush;
-  private ExecutorService executorService;
+  private final StageExecutor gcsWriteStage;
+  private final StageExecutor loadStage;
+  private final StageExecutor mergeStage;
+  // number of load and merge jobs in flight, cut when BigQuery rate limits them
+  private final AdaptiveConcurrencyLimiter loadJobLimiter;
+  private final AdaptiveConcurrencyLimiter mergeJobLimiter;
+  private final JobCompletionTracker jobCompletionTracker;
+  // schedules the retries of load and merge jobs, whose attempts run on the pools of their stages, and the memory
+  // gauge. Both tasks only hand off work or read a counter, so they never hold up each other.
+  private final ScheduledExecutorService retryScheduler;
   private Offset latestOffset;
   private long latestSequenceNum;
-  private Exception flushException;
+  private volatile Exception flushException;
   private final AtomicBoolean shouldStop;
+  // tables whose batch reached the size or count threshold, flushed ahead of the next scheduled flush
+  private final Set<TableId> tablesToFlush;
+  private final AtomicBoolean earlyFlushScheduled;
   private RetryPolicy<Object> gcsWriterRetryPolicy = new RetryPolicy<>()
                                                 .withMaxAttempts(25)
                                                 .withMaxDuration(Duration.of(2, ChronoUnit.MINUTES))
@@ -211,7 +285,21 @@ public class BigQueryEventConsumer implements EventConsumer {
                         String project, int loadIntervalSeconds, String stagingTablePrefix, boolean requireManualDrops,
                         @Nullable EncryptionConfiguration encryptionConfig, @Nullable Long baseRetryDelay,
                         @Nullable String datasetName, boolean softDeletesEnabled) {
+    this(context, storage, bigQuery, bucket, project, loadIntervalSeconds, stagingTablePrefix, requireManualDrops,
+         encryptionConfig, baseRetryDelay, datasetName, softDeletesEnabled, null);
+  }
+
+  /**
+   * @param writeStreamService the service to append merged batches to pending streams of their staging tables with,
+   *   or null if they are written to GCS and loaded into the staging tables
+   */
+  BigQueryEventConsumer(DeltaTargetContext context, Storage storage, BigQuery bigQuery, Bucket bucket,
+                        String project, int loadIntervalSeconds, String stagingTablePrefix, boolean requireManualDrops,
+                        @Nullable EncryptionConfiguration encryptionConfig, @Nullable Long baseRetryDelay,
+                        @Nullable String datasetName, boolean softDeletesEnabled,
+                        @Nullable WriteStreamService writeStreamService) {
     this.context = context;
+    this.storage = storage;
     this.bigQuery = bigQuery;
     this.loadIntervalSeconds = loadIntervalSeconds;
     this.stagingTablePrefix = stagingTablePrefix;
@@ -220,11 +308,16 @@ public class BigQueryEventConsumer implements EventConsumer {
     this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
     this.latestSequenceNum = 0L;
     this.encryptionConfig = encryptionConfig;
-    // these maps are only accessed in synchronized methods so they do not need to be thread safe.
-    this.latestMergedSequence = new HashMap<>();
-    this.latestSeenSequence = new HashMap<>();
-    this.primaryKeyStore = new HashMap<>();
-    this.sortKeyStore = new HashMap<>();
+    // these maps are also read by the table pipelines while events are applied, so they need to be thread safe.
+    this.latestMergedSequence = new ConcurrentHashMap<>();
+    this.primaryKeyStore = new ConcurrentHashMap<>();
+    this.sortKeyStore = new ConcurrentHashMap<>();
+    this.tableStates = new ConcurrentHashMap<>();
+    this.pendingMerges = new HashMap<>();
+    this.tablePipelines = new ConcurrentHashMap<>();
+    this.commitCheckpoints = new CommitCheckpoints();
+    String maxGenerationsStr = context.getRuntimeArguments().get(MAX_INFLIGHT_GENERATIONS);
+    this.generationPermits = new Semaphore(maxGenerationsStr == null ? 2 : Integer.parseInt(maxGenerationsStr));
     this.commitRetryPolicy = new RetryPolicy<>()
       .withMaxAttempts(Integer.MAX_VALUE)
       .withMaxDuration(Duration.of(5, ChronoUnit.MINUTES))
@@ -242,10 +335,39 @@ public class BigQueryEventConsumer implements EventConsumer {
         }
       });
     this.requireManualDrops = requireManualDrops;
-    this.executorService = Executors.newCachedThreadPool(Threads.createDaemonThreadFactory("bq-daemon-%d"));
+    // each stage of the table pipelines has its own bounded pool, so that a flush of many tables does not start more
+    // uploads or jobs at once than GCS and BigQuery accept
+    String gcsWriteThreadsStr = context.getRuntimeArguments().get(GCS_WRITE_THREADS);
+    String loadThreadsStr = context.getRuntimeArguments().get(LOAD_THREADS);
+    String mergeThreadsStr = context.getRuntimeArguments().get(MERGE_THREADS);
+    this.gcsWriteStage = new StageExecutor("gcs.write", gcsWriteThreadsStr == null ?
+      2 * Runtime.getRuntime().availableProcessors() : Integer.parseInt(gcsWriteThreadsStr), context.getMetrics());
+    int loadThreads = loadThreadsStr == null ? 10 : Integer.parseInt(loadThreadsStr);
+    int mergeThreads = mergeThreadsStr == null ? 10 : Integer.parseInt(mergeThreadsStr);
+    this.loadStage = new StageExecutor("load", loadThreads, context.getMetrics());
+    this.mergeStage = new StageExecutor("merge", mergeThreads, context.getMetrics());
+    // jobs start out using every thread of their stage, and back off by half whenever they hit a rate limit
+    this.loadJobLimiter = new AdaptiveConcurrencyLimiter(1, loadThreads, 0.5d);
+    this.mergeJobLimiter = new AdaptiveConcurrencyLimiter(1, mergeThreads, 0.5d);
+    // jobs are polled every 250ms at first, backing off to every 5 seconds for long running jobs
+    this.jobCompletionTracker = new JobCompletionTracker(250, 5000);
+    this.retryScheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("bq-retry-%d"));
+    String memoryBudgetStr = context.getRuntimeArguments().get(STAGING_MEMORY_BUDGET);
+    // by default staging objects can use a quarter of the heap
+    this.memoryBudget = new MemoryBudget(memoryBudgetStr == null ?
+                                           Runtime.getRuntime().maxMemory() / 4 : Long.parseLong(memoryBudgetStr));
+    this.memoryFlushScheduled = new AtomicBoolean(false);
+    this.writeStreamService = writeStreamService;
+    // batches appended to write streams are not written to GCS, so there are no objects to load in one job
+    this.sharedStagingTable = writeStreamService == null
+      && Boolean.parseBoolean(context.getRuntimeArguments().get(SHARED_STAGING_TABLE));
+    String sharedStagingTableMaxColumnsStr = context.getRuntimeArguments().get(SHARED_STAGING_TABLE_MAX_COLUMNS);
+    this.sharedStagingTableMaxColumns = sharedStagingTableMaxColumnsStr == null ?
+      DEFAULT_SHARED_STAGING_TABLE_MAX_COLUMNS : Integer.parseInt(sharedStagingTableMaxColumnsStr);
     this.gcsWriter = new MultiGCSWriter(storage, bucket.getName(),
                                         String.format("cdap/delta/%s/", context.getApplicationName()),
-                                        context, executorService);
+                                        context, gcsWriteStage, memoryBudget, sharedStagingTable,
+                                        writeStreamService != null);
     this.baseRetryDelay = baseRetryDelay == null ? 10L : baseRetryDelay;
     String maxClusteringColumnsStr = context.getRuntimeArguments().get("gcp.bigquery.max.clustering.columns");
     // current max clustering columns is set as 4 in big query side, use that as default max value
@@ -257,21 +379,36 @@ public class BigQueryEventConsumer implements EventConsumer {
       context.getSourceProperties().getOrdering();
     this.datasetName = datasetName;
     this.retainStagingTable = Boolean.parseBoolean(context.getRuntimeArguments().get(RETAIN_STAGING_TABLE));
+    String diffQueryTypeStr = context.getRuntimeArguments().get(DIFF_QUERY_TYPE);
+    this.diffQueryType = diffQueryTypeStr == null ?
+      DiffQueryType.JOIN : DiffQueryType.valueOf(diffQueryTypeStr.toUpperCase());
+    this.partitionSpecs = getPartitionSpecs(context.getRuntimeArguments());
     this.softDeletesEnabled = softDeletesEnabled;
     this.shouldStop = new AtomicBoolean(false);
+    this.tablesToFlush = ConcurrentHashMap.newKeySet();
+    this.earlyFlushScheduled = new AtomicBoolean(false);
+    // events are normalized and written to GCS on one lane per table, so that tables are staged in parallel
+    String ingestionLanesStr = context.getRuntimeArguments().get(INGESTION_LANES);
+    String laneQueueSizeStr = context.getRuntimeArguments().get(INGESTION_LANE_QUEUE_SIZE);
+    this.ingestionLanes = new IngestionLanes(
+      ingestionLanesStr == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(ingestionLanesStr),
+      laneQueueSizeStr == null ? 1000 : Integer.parseInt(laneQueueSizeStr));
   }
 
   @Override
   public void start() {
     scheduledFlush = scheduledExecutorService.scheduleAtFixedRate(() -> {
       try {
-        flush();
+        flushAndCommitMerged();
       } catch (InterruptedException e) {
         // just return and let things end
       } catch (Exception e) {
         flushException = e;
       }
     }, loadIntervalSeconds, loadIntervalSeconds, TimeUnit.SECONDS);
+    // gauged on its own schedule, since flushes can take longer than the load interval
+    retryScheduler.scheduleAtFixedRate(this::gaugeMemoryUsed, MEMORY_GAUGE_INTERVAL_SECONDS,
+                                       MEMORY_GAUGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
   }
 
   @Override
@@ -280,14 +417,28 @@ public class BigQueryEventConsumer implements EventConsumer {
       scheduledFlush.cancel(true);
     }
     scheduledExecutorService.shutdownNow();
-    executorService.shutdownNow();
+    gcsWriteStage.shutdownNow();
+    loadStage.shutdownNow();
+    mergeStage.shutdownNow();
+    ingestionLanes.shutdownNow();
+    jobCompletionTracker.close();
+    retryScheduler.shutdownNow();
     shouldStop.set(true);
     try {
       scheduledExecutorService.awaitTermination(10, TimeUnit.SECONDS);
-      executorService.awaitTermination(10, TimeUnit.SECONDS);
+      gcsWriteStage.awaitTermination(10, TimeUnit.SECONDS);
+      loadStage.awaitTermination(10, TimeUnit.SECONDS);
+      mergeStage.awaitTermination(10, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
       // just return and let everything end
     }
+    if (writeStreamService != null) {
+      try {
+        writeStreamService.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close the write stream service.", e);
+      }
+    }
   }
 
   @Override
@@ -362,8 +513,18 @@ public class BigQueryEventConsumer implements EventConsumer {
         }
         break;
       case DROP_DATABASE:
+        // need to flush changes before dropping the dataset, otherwise the merges in flight would record merged
+        // sequence numbers for tables that no longer exist
+        flush();
         datasetId = DatasetId.of(project, normalizedDatabaseName);
         primaryKeyStore.clear();
+        Set<TableId> droppedTables = new HashSet<>(latestMergedSequence.keySet());
+        droppedTables.addAll(tableStates.keySet());
+        for (TableId droppedTable : droppedTables) {
+          if (droppedTable.getDataset().equals(normalizedDatabaseName)) {
+            clearMergedSequenceNum(droppedTable);
+          }
+        }
         if (bigQuery.getDataset(datasetId) != null) {
           if (requireManualDrops) {
             String message = String.format("Encountered an event to drop dataset '%s' in project '%s', " +
@@ -378,6 +539,8 @@ public class BigQueryEventConsumer implements EventConsumer {
         break;
       case CREATE_TABLE:
         TableId tableId = TableId.of(project, normalizedDatabaseName, normalizedTableName);
+        // a direct load of an earlier snapshot of the table may still be running
+        awaitTablePipeline(tableId);
         Table table = bigQuery.getTable(tableId);
         // SNAPSHOT data is directly loaded in the target table. Check if any such direct load was in progress
         // for the current table when target received CREATE_TABLE ddl. This indicates that the snapshot was abandoned
@@ -386,6 +549,8 @@ public class BigQueryEventConsumer implements EventConsumer {
                                                       normalizedDatabaseName, normalizedTableName));
         if (table != null && state != null && state.length != 0 && Bytes.toBoolean(state)) {
           bigQuery.delete(tableId);
+          // the rows merged so far were deleted with the table, so they have to be merged again
+          clearMergedSequenceNum(tableId);
         }
         List<String> primaryKeys = event.getPrimaryKey();
         List<String> normalizedPrimaryKeys = primaryKeys.stream()
@@ -400,10 +565,11 @@ public class BigQueryEventConsumer implements EventConsumer {
               .setFields(clusteringSupportedKeys.subList(0, Math.min(maxClusteringColumns,
                                                                      clusteringSupportedKeys.size())))
               .build();
-          TableDefinition tableDefinition = StandardTableDefinition.newBuilder()
+          StandardTableDefinition.Builder definitionBuilder = StandardTableDefinition.newBuilder()
             .setSchema(Schemas.convert(addSupplementaryColumnsToTargetSchema(event.getSchema(), tableId)))
-            .setClustering(clustering)
-            .build();
+            .setClustering(clustering);
+          applyPartitionSpec(tableId, definitionBuilder);
+          TableDefinition tableDefinition = definitionBuilder.build();
 
           TableInfo.Builder builder = TableInfo.newBuilder(tableId, tableDefinition);
           if (encryptionConfig != null) {
@@ -419,6 +585,7 @@ public class BigQueryEventConsumer implements EventConsumer {
         flush();
         tableId = TableId.of(project, normalizedDatabaseName, normalizedTableName);
         primaryKeyStore.remove(tableId);
+        clearMergedSequenceNum(tableId);
         table = bigQuery.getTable(tableId);
         if (table != null) {
           if (requireManualDrops) {
@@ -436,12 +603,19 @@ public class BigQueryEventConsumer implements EventConsumer {
         if (stagingTable != null) {
           bigQuery.delete(stagingTableId);
         }
+        if (writeStreamService != null) {
+          writeStreamService.dropStagingTable(getStreamStagingTableId(normalizedDatabaseName, normalizedTableName));
+        }
         break;
       case ALTER_TABLE:
         // need to flush any changes before altering the table to ensure all changes before the schema change
         // are in the table when it is altered.
         flush();
         // after a flush, the staging table will be gone, so no need to alter it.
+        if (writeStreamService != null) {
+          // except for the staging table of write streams, which is created again with the new schema
+          writeStreamService.dropStagingTable(getStreamStagingTableId(normalizedDatabaseName, normalizedTableName));
+        }
         tableId = TableId.of(project, normalizedDatabaseName, normalizedTableName);
         table = bigQuery.getTable(tableId);
         primaryKeys = event.getPrimaryKey();
@@ -450,10 +624,14 @@ public class BigQueryEventConsumer implements EventConsumer {
           Clustering.newBuilder()
             .setFields(clusteringSupportedKeys.subList(0, Math.min(maxClusteringColumns, primaryKeys.size())))
             .build();
-        TableDefinition tableDefinition = StandardTableDefinition.newBuilder()
+        StandardTableDefinition.Builder definitionBuilder = StandardTableDefinition.newBuilder()
           .setSchema(Schemas.convert(addSupplementaryColumnsToTargetSchema(event.getSchema(), tableId)))
-          .setClustering(clustering)
-          .build();
+          .setClustering(clustering);
+        // the partitioning of an existing table can not be changed, the update leaves it as it is
+        if (table == null) {
+          applyPartitionSpec(tableId, definitionBuilder);
+        }
+        TableDefinition tableDefinition = definitionBuilder.build();
         TableInfo.Builder builder = TableInfo.newBuilder(tableId, tableDefinition);
         if (encryptionConfig != null) {
           builder.setEncryptionConfiguration(encryptionConfig);
@@ -489,10 +667,11 @@ public class BigQueryEventConsumer implements EventConsumer {
             Clustering.newBuilder()
               .setFields(primaryKeys.subList(0, Math.min(maxClusteringColumns, primaryKeys.size())))
               .build();
-          tableDefinition = StandardTableDefinition.newBuilder()
+          definitionBuilder = StandardTableDefinition.newBuilder()
             .setSchema(Schemas.convert(addSupplementaryColumnsToTargetSchema(event.getSchema(), tableId)))
-            .setClustering(clustering)
-            .build();
+            .setClustering(clustering);
+          applyPartitionSpec(tableId, definitionBuilder);
+          tableDefinition = definitionBuilder.build();
         }
 
         builder = TableInfo.newBuilder(tableId, tableDefinition);
@@ -505,6 +684,49 @@ public class BigQueryEventConsumer implements EventConsumer {
     }
   }
 
+  private static Map<String, PartitionSpec> getPartitionSpecs(Map<String, String> runtimeArguments) {
+    Map<String, PartitionSpec> partitionSpecs = new HashMap<>();
+    for (Map.Entry<String, String> entry : runtimeArguments.entrySet()) {
+      if (!entry.getKey().startsWith(TABLE_PARTITION_PREFIX)) {
+        continue;
+      }
+      try {
+        partitionSpecs.put(entry.getKey().substring(TABLE_PARTITION_PREFIX.length()),
+                           PartitionSpec.parse(entry.getValue()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(String.format("Invalid value '%s' for '%s'. %s", entry.getValue(),
+                                                         entry.getKey(), e.getMessage()), e);
+      }
+    }
+    return partitionSpecs;
+  }
+
+  @Nullable
+  private PartitionSpec getPartitionSpec(TableId tableId) {
+    return partitionSpecs.get(tableId.getDataset() + "." + tableId.getTable());
+  }
+
+  /**
+   * Partitions a table that is created as configured for it, once the partition column is checked against the
+   * schema of the table.
+   */
+  private void applyPartitionSpec(TableId tableId, StandardTableDefinition.Builder definitionBuilder)
+    throws DeltaFailureException {
+    PartitionSpec partitionSpec = getPartitionSpec(tableId);
+    if (partitionSpec == null) {
+      return;
+    }
+    try {
+      partitionSpec.validate(definitionBuilder.build().getSchema());
+    } catch (IllegalArgumentException e) {
+      throw new DeltaFailureException(String.format(
+        "Table '%s' in dataset '%s' can not be partitioned as configured by the runtime argument '%s%s.%s'. %s",
+        tableId.getTable(), tableId.getDataset(), TABLE_PARTITION_PREFIX, tableId.getDataset(), tableId.getTable(),
+        e.getMessage()), e);
+    }
+    partitionSpec.applyTo(definitionBuilder);
+  }
+
   @VisibleForTesting
   static List<String> getClusteringSupportedKeys(List<String> primaryKeys, Schema recordSchema) {
     List<String> result = new ArrayList<>();
@@ -527,21 +749,19 @@ public class BigQueryEventConsumer implements EventConsumer {
       return;
     }
     primaryKeyStore.put(tableId, primaryKeys);
-    context.putState(getTableStateKey(tableId),
-                     Bytes.toBytes(GSON.toJson(new BigQueryTableState(primaryKeys, getSortKeys(tableId)))));
+    putTableState(tableId, new BigQueryTableState(primaryKeys, getSortKeys(tableId)));
   }
 
   private List<String> getPrimaryKeys(TableId targetTableId) throws IOException, DeltaFailureException {
     List<String> primaryKeys = primaryKeyStore.get(targetTableId);
     if (primaryKeys == null) {
-      byte[] stateBytes = context.getState(getTableStateKey(targetTableId));
-      if (stateBytes == null || stateBytes.length == 0) {
+      BigQueryTableState targetTableState = getTableState(targetTableId);
+      if (targetTableState == null) {
         throw new DeltaFailureException(
           String.format("Primary key information for table '%s' in dataset '%s' could not be found. This can only " +
                           "happen if state was corrupted. Please create a new replicator and start again.",
                         targetTableId.getTable(), targetTableId.getDataset()));
       }
-      BigQueryTableState targetTableState = GSON.fromJson(new String(stateBytes), BigQueryTableState.class);
       primaryKeys = targetTableState.getPrimaryKeys();
       primaryKeyStore.put(targetTableId, primaryKeys);
     }
@@ -564,14 +784,23 @@ public class BigQueryEventConsumer implements EventConsumer {
     return Schema.recordOf(original.getRecordName() + ".sequenced", fields);
   }
 
+  /**
+   * Commits the latest offset up to which every table has been merged, if it moved since the last commit.
+   */
   private void commitOffset() throws DeltaFailureException {
+    CommitCheckpoints.Checkpoint checkpoint = commitCheckpoints.pollCommittable();
+    if (checkpoint == null) {
+      return;
+    }
+    Offset offset = checkpoint.getOffset();
+    long sequenceNum = checkpoint.getSequenceNumber();
     try {
       Failsafe.with(commitRetryPolicy).run(() -> {
-        if (latestOffset != null) {
+        if (offset != null) {
           if (LOG.isTraceEnabled()) {
-            LOG.trace("Committing offset : {} and seq num: {}", latestOffset.get(), latestSequenceNum);
+            LOG.trace("Committing offset : {} and seq num: {}", offset.get(), sequenceNum);
           }
-          context.commitOffset(latestOffset, latestSequenceNum);
+          context.commitOffset(offset, sequenceNum);
         }
       });
     } catch (Exception e) {
@@ -580,7 +809,65 @@ public class BigQueryEventConsumer implements EventConsumer {
   }
 
   @Override
-  public synchronized void applyDML(Sequenced<DMLEvent> sequencedEvent) throws Exception {
+  public void applyDML(Sequenced<DMLEvent> sequencedEvent) throws Exception {
+    // wait outside of the lock, since memory is only released once a flush cut the batches holding it
+    awaitMemoryBudget();
+    writeDML(sequencedEvent);
+  }
+
+  /**
+   * Blocks while staging objects hold more memory than the budget allows, flushing them early so that their memory
+   * is released once they are uploaded.
+   */
+  private void awaitMemoryBudget() throws Exception {
+    if (!memoryBudget.isExhausted()) {
+      return;
+    }
+    LOG.debug("Staging objects use {} bytes of the {} bytes memory budget, waiting for them to be uploaded.",
+              memoryBudget.getUsed(), memoryBudget.getLimit());
+    while (memoryBudget.isExhausted()) {
+      if (flushException != null) {
+        throw flushException;
+      }
+      gaugeMemoryUsed();
+      requestFlush();
+      memoryBudget.awaitAvailable(1, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Schedules a flush of all tables ahead of the next scheduled flush, unless one is already pending.
+   */
+  private void requestFlush() {
+    if (!memoryFlushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      scheduledExecutorService.execute(() -> {
+        try {
+          flushAndCommitMerged();
+        } catch (InterruptedException e) {
+          // just return and let things end
+        } catch (Exception e) {
+          flushException = e;
+        } finally {
+          memoryFlushScheduled.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the consumer is being stopped
+      memoryFlushScheduled.set(false);
+    }
+  }
+
+  private void gaugeMemoryUsed() {
+    Metrics metrics = context.getMetrics();
+    if (metrics != null) {
+      metrics.gauge("staging.memory.used", memoryBudget.getUsed());
+    }
+  }
+
+  private synchronized void writeDML(Sequenced<DMLEvent> sequencedEvent) throws Exception {
     // this is non-null if an error happened during a time scheduled flush
     if (flushException != null) {
       throw flushException;
@@ -589,10 +876,6 @@ public class BigQueryEventConsumer implements EventConsumer {
     String normalizedDatabaseName = BigQueryUtils.getNormalizedDatasetName(datasetName,
        event.getOperation().getDatabaseName());
     String normalizedTableName = BigQueryUtils.normalizeTableName(event.getOperation().getTableName());
-    DMLEvent normalizedDMLEvent = BigQueryUtils.normalize(event)
-      .setDatabaseName(normalizedDatabaseName)
-      .setTableName(normalizedTableName)
-      .build();
     long sequenceNumber = sequencedEvent.getSequenceNumber();
 
     TableId tableId = TableId.of(project, normalizedDatabaseName, normalizedTableName);
@@ -602,19 +885,35 @@ public class BigQueryEventConsumer implements EventConsumer {
       // first event of the table
       latestMergedSequencedNum = getLatestSequenceNum(tableId);
       latestMergedSequence.put(tableId, latestMergedSequencedNum);
-      // latestSeenSequence will replace the latestMergedSequence at the end of flush()
-      // set this default value to avoid dup query of max merged sequence num in next `flush()`
-      latestSeenSequence.put(tableId, latestMergedSequencedNum);
+      // after a restart without a CREATE_TABLE event, the primary keys are only known from the stored table state.
+      // The batches of the table are compacted and its merges bounded with them.
+      if (getTableState(tableId) != null) {
+        getPrimaryKeys(tableId);
+      }
     }
+    List<String> primaryKeys = primaryKeyStore.get(tableId);
 
     // it's possible that some previous events were merged to target table but offset were not committed
     // because offset is committed when the whole batch of all the tables were merged.
     // so it's possible we see an event that was already merged to target table
     if (sequenceNumber > latestMergedSequencedNum) {
-      latestSeenSequence.put(tableId, sequenceNumber);
       //Only write events which have not already been applied
-      Failsafe.with(gcsWriterRetryPolicy)
-              .run(() -> gcsWriter.write(new Sequenced<>(normalizedDMLEvent, sequenceNumber)));
+      // normalizing and encoding the event happens on the table's lane, outside of this lock. Failures are
+      // rethrown by the next call to applyDML or flush.
+      ingestionLanes.submit(tableId, () -> {
+        DMLEvent normalizedDMLEvent = BigQueryUtils.normalize(event)
+          .setDatabaseName(normalizedDatabaseName)
+          .setTableName(normalizedTableName)
+          .build();
+        PartitionSpec partitionSpec = getPartitionSpec(tableId);
+        boolean thresholdReached = Failsafe.with(gcsWriterRetryPolicy)
+          .get(() -> gcsWriter.write(new Sequenced<>(normalizedDMLEvent, sequenceNumber),
+                                     primaryKeys,
+                                     partitionSpec == null ? null : partitionSpec.getColumn()));
+        if (thresholdReached) {
+          requestTableFlush(tableId);
+        }
+      });
     }
 
     latestOffset = event.getOffset();
@@ -635,54 +934,17 @@ public class BigQueryEventConsumer implements EventConsumer {
     }
   }
 
+  /**
+   * Cuts the batches of all tables, waits until every batch cut so far is loaded and merged, then commits the offset.
+   */
   @VisibleForTesting
   synchronized void flush() throws InterruptedException, IOException, DeltaFailureException {
-    Map<MultiGCSWriter.BlobType, Collection<TableBlob>> tableBlobsByBlobType;
-    // if this throws an IOException, we want to propagate it, since we need the app to reset state to the last
-    // commit and replay events. This is because previous events are written directly to an outputstream to GCS
-    // and then dropped, so we cannot simply retry the flush here.
-    try {
-      tableBlobsByBlobType = gcsWriter.flush();
-    } catch (IOException e) {
-      flushException = e;
-      throw e;
-    }
-
-    processBlobsInParallel(tableBlobsByBlobType.get(MultiGCSWriter.BlobType.SNAPSHOT));
-    processBlobsInParallel(tableBlobsByBlobType.get(MultiGCSWriter.BlobType.STREAMING));
-
-    latestMergedSequence.clear();
-    latestMergedSequence.putAll(latestSeenSequence);
-    commitOffset();
-  }
-
-  private void processBlobsInParallel(Collection<TableBlob> tableBlobs)
-    throws InterruptedException, DeltaFailureException {
-    List<Future<?>> mergeFutures = new ArrayList<>(tableBlobs.size());
-    for (TableBlob blob : tableBlobs) {
-      // submit a callable instead of a runnable so that it can throw checked exceptions
-      mergeFutures.add(executorService.submit((Callable<Void>) () -> {
-        if (blob.isSnapshotOnly()) {
-          context.putState(String.format(DIRECT_LOADING_IN_PROGRESS_PREFIX + "%s-%s", blob.getDataset(),
-                                         blob.getTable()),
-                           Bytes.toBytes(true));
-          directLoadToTarget(blob);
-        } else {
-          context.putState(String.format(DIRECT_LOADING_IN_PROGRESS_PREFIX + "%s-%s", blob.getDataset(),
-                                         blob.getTable()),
-                           Bytes.toBytes(false));
-          mergeTableChanges(blob);
-        }
-        return null;
-      }));
-    }
+    cutBatches();
 
     DeltaFailureException exception = null;
-    for (Future mergeFuture : mergeFutures) {
+    for (CompletableFuture<Void> pipeline : tablePipelines.values()) {
       try {
-        getMergeFuture(mergeFuture);
-      } catch (InterruptedException e) {
-        throw e;
+        getMergeFuture(pipeline);
       } catch (DeltaFailureException e) {
         if (exception != null) {
           exception.addSuppressed(e);
@@ -694,105 +956,680 @@ public class BigQueryEventConsumer implements EventConsumer {
     if (exception != null) {
       throw exception;
     }
+    commitOffset();
   }
 
-  private void directLoadToTarget(TableBlob blob) throws Exception {
-    LOG.debug("Direct loading batch {} of {} events into target table {}.{}", blob.getBatchId(), blob.getNumEvents(),
-              blob.getDataset(), blob.getTable());
-    TableId targetTableId = TableId.of(project, blob.getDataset(), blob.getTable());
+  /**
+   * Cuts the batches of all tables and hands them to the table pipelines without waiting for them to be merged,
+   * then commits the offset up to which every table has been merged.
+   */
+  private synchronized void flushAndCommitMerged() throws InterruptedException, DeltaFailureException {
+    gaugeMemoryUsed();
+    cutBatches();
+    commitOffset();
+  }
+
+  private synchronized void cutBatches() throws InterruptedException {
+    // wait for every lane to finish writing the events seen so far. applyDML is blocked while this method holds the
+    // lock, so the batches cut below contain exactly the events up to latestOffset.
+    ingestionLanes.drain();
+    // every table is cut below, including the ones waiting for an early flush
+    tablesToFlush.clear();
+    submitToPipelines(null);
+    // every event up to the latest offset is now either merged or part of a batch submitted above
+    commitCheckpoints.close(latestOffset, latestSequenceNum);
+  }
+
+  /**
+   * Schedules an early flush of a table whose batch reached the configured size or count threshold.
+   * This is called from the ingestion lanes, so the flush itself runs on the flush thread, since it has to wait for
+   * the lanes to drain.
+   */
+  private void requestTableFlush(TableId tableId) {
+    tablesToFlush.add(tableId);
+    if (!earlyFlushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      scheduledExecutorService.execute(() -> {
+        earlyFlushScheduled.set(false);
+        try {
+          flushTables();
+        } catch (InterruptedException e) {
+          // just return and let things end
+        } catch (Exception e) {
+          flushException = e;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the consumer is being stopped, events that were not merged will be replayed
+      earlyFlushScheduled.set(false);
+    }
+  }
+
+  /**
+   * Cuts the batches of the tables that reached the size or count threshold and hands them to the table pipelines,
+   * leaving the batches of all other tables open until the next scheduled flush.
+   */
+  private synchronized void flushTables() throws InterruptedException {
+    if (tablesToFlush.isEmpty()) {
+      return;
+    }
+    ingestionLanes.drain();
+    Set<TableId> tables = new HashSet<>(tablesToFlush);
+    tablesToFlush.removeAll(tables);
+    submitToPipelines(tables);
+  }
+
+  /**
+   * Cuts a generation of batches and appends the upload, load and merge of each batch to the pipeline of its table.
+   * Batches of the same table are merged one after the other in the order they were cut, while different tables are
+   * merged independently of each other. New events are written to the next generation while this one is uploaded
+   * and merged in the background. A failure fails all later batches of the table and is rethrown by the next call to
+   * applyDML or flush. If the staging table is shared, the batches of each dataset are loaded with as few load jobs
+   * as the column limit of the shared staging tables allows before they are merged.
+   *
+   * @param tables the tables to cut, or null to cut every table
+   */
+  private void submitToPipelines(@Nullable Collection<TableId> tables) throws InterruptedException {
+    // ingestion blocks here once too many generations are still being uploaded or merged
+    generationPermits.acquire();
+    Map<TableId, List<CompletableFuture<TableBlob>>> blobsByTable;
+    try {
+      blobsByTable = tables == null ? gcsWriter.cut() : gcsWriter.cut(tables);
+    } catch (RuntimeException e) {
+      generationPermits.release();
+      throw e;
+    }
+
+    CommitCheckpoints.Checkpoint checkpoint = commitCheckpoints.register();
+    Map<String, CompletableFuture<Map<String, CompletableFuture<TableId>>>> sharedStagingLoads = sharedStagingTable ?
+      loadSharedStagingTables(blobsByTable) : Collections.emptyMap();
+    Map<String, List<CompletableFuture<Void>>> pipelinesByDataset = new HashMap<>();
+    List<CompletableFuture<Void>> generation = new ArrayList<>(blobsByTable.size());
+    for (Map.Entry<TableId, List<CompletableFuture<TableBlob>>> entry : blobsByTable.entrySet()) {
+      TableId tableId = TableId.of(project, entry.getKey().getDataset(), entry.getKey().getTable());
+      CompletableFuture<TableId> sharedStagingLoad =
+        sharedStagingLoads.getOrDefault(tableId.getDataset(), CompletableFuture.completedFuture(Collections.emptyMap()))
+          .thenCompose(loads -> loads.getOrDefault(tableId.getTable(), CompletableFuture.completedFuture(null)));
+      CompletableFuture<Void> pipeline = tablePipelines.getOrDefault(tableId, CompletableFuture.completedFuture(null));
+      for (CompletableFuture<TableBlob> blobFuture : entry.getValue()) {
+        // batches are loaded and merged on the pools of those stages, so while one table merges a batch, the next
+        // batch of another table can already be loaded. The stages compose on the completion of their jobs, so no
+        // thread of a stage is held while BigQuery runs a job.
+        pipeline = pipeline.thenCombine(blobFuture, (previous, blob) -> blob)
+          .thenCompose(blob -> {
+            // snapshot batches are loaded directly into their target table, so they never wait for the shared load
+            CompletableFuture<TableId> stagingLoad = blob.isSnapshotOnly() ?
+              CompletableFuture.completedFuture(null) : sharedStagingLoad;
+            return stagingLoad.thenComposeAsync(sharedStagingTableId -> loadBatch(tableId, blob, sharedStagingTableId),
+                                                loadStage);
+          })
+          .thenComposeAsync(stagedBatch -> mergeBatch(tableId, stagedBatch), mergeStage);
+        if (writeStreamService != null) {
+          // rows held for a write stream are released once they are appended, or here if the batch never got there
+          pipeline.whenComplete((result, t) -> blobFuture.thenAccept(blob -> {
+            if (blob.getWriteStreamRows() != null) {
+              blob.getWriteStreamRows().release();
+            }
+          }));
+        }
+      }
+      CompletableFuture<Void> tail = pipeline;
+      tablePipelines.put(tableId, tail);
+      tail.whenComplete((result, t) -> {
+        if (t == null) {
+          // unless a later batch of the table was appended in the meantime
+          tablePipelines.remove(tableId, tail);
+        } else if (flushException == null) {
+          Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+          flushException = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+      });
+      generation.add(pipeline);
+      pipelinesByDataset.computeIfAbsent(tableId.getDataset(), d -> new ArrayList<>()).add(pipeline);
+    }
+
+    for (Map.Entry<String, CompletableFuture<Map<String, CompletableFuture<TableId>>>> entry :
+      sharedStagingLoads.entrySet()) {
+      // the shared staging tables are dropped once every table of their dataset is done with its slice, even if some
+      // of them failed. Their objects are already deleted, so failed batches are replayed from the committed offset.
+      // The drops run on the merge stage, after the merges that read the tables.
+      List<CompletableFuture<Void>> pipelines = pipelinesByDataset.get(entry.getKey());
+      entry.getValue().thenAccept(loads -> {
+        Set<CompletableFuture<TableId>> sharedStagingTableLoads = new HashSet<>(loads.values());
+        List<CompletableFuture<?>> readers = new ArrayList<>(pipelines);
+        readers.addAll(sharedStagingTableLoads);
+        CompletableFuture.allOf(readers.toArray(new CompletableFuture[0])).whenCompleteAsync((result, t) -> {
+          for (CompletableFuture<TableId> sharedStagingTableLoad : sharedStagingTableLoads) {
+            if (!sharedStagingTableLoad.isCompletedExceptionally()) {
+              dropSharedStagingTable(sharedStagingTableLoad.join());
+            }
+          }
+        }, mergeStage);
+      });
+    }
+
+    CompletableFuture.allOf(generation.toArray(new CompletableFuture[0])).whenComplete((result, t) -> {
+      generationPermits.release();
+      if (t == null) {
+        commitCheckpoints.complete(checkpoint);
+      }
+    });
+  }
+
+  /**
+   * Loads a snapshot batch directly into its target table, or any other batch into the staging table it is merged
+   * from.
+   */
+  private CompletableFuture<StagedBatch> loadBatch(TableId tableId, TableBlob blob,
+                                                   @Nullable TableId sharedStagingTableId) {
+    try {
+      markMergePending(tableId);
+      context.putState(String.format(DIRECT_LOADING_IN_PROGRESS_PREFIX + "%s-%s", blob.getDataset(),
+                                     blob.getTable()),
+                       Bytes.toBytes(blob.isSnapshotOnly()));
+    } catch (IOException e) {
+      return failedFuture(e);
+    }
+    if (blob.isSnapshotOnly()) {
+      return directLoadToTarget(blob).thenApply(loaded -> new StagedBatch(blob, null, null, false));
+    }
+    return loadStagingTable(blob, sharedStagingTableId);
+  }
+
+  private CompletableFuture<Void> mergeBatch(TableId tableId, StagedBatch batch) {
+    CompletableFuture<Void> merge = batch.stagingSource == null ?
+      CompletableFuture.completedFuture(null) : mergeTableChanges(batch);
+    return merge.thenRunAsync(() -> {
+      // the next batch of the table only needs to merge events after this one
+      long mergedSequenceNum = latestMergedSequence.merge(tableId, batch.blob.getMaxSequenceNum(), Long::max);
+      try {
+        recordMergedSequenceNum(tableId, mergedSequenceNum);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, mergeStage);
+  }
+
+  /**
+   * Loads the batches of each dataset that are merged through a staging table into staging tables shared by the
+   * tables of the dataset, once every batch of the dataset is uploaded. Tables are added to a shared staging table
+   * until it reaches the column limit, then the next one is started. Each shared staging table is loaded with a
+   * single load job.
+   *
+   * @return the loads of the shared staging tables of each dataset, keyed by the name of the tables they hold. Only
+   *   completed once every batch of the dataset is uploaded.
+   */
+  private Map<String, CompletableFuture<Map<String, CompletableFuture<TableId>>>> loadSharedStagingTables(
+    Map<TableId, List<CompletableFuture<TableBlob>>> blobsByTable) {
+    Map<String, List<CompletableFuture<TableBlob>>> blobsByDataset = new HashMap<>();
+    for (Map.Entry<TableId, List<CompletableFuture<TableBlob>>> entry : blobsByTable.entrySet()) {
+      blobsByDataset.computeIfAbsent(entry.getKey().getDataset(), d -> new ArrayList<>()).addAll(entry.getValue());
+    }
+
+    Map<String, CompletableFuture<Map<String, CompletableFuture<TableId>>>> loads = new HashMap<>();
+    for (Map.Entry<String, List<CompletableFuture<TableBlob>>> entry : blobsByDataset.entrySet()) {
+      List<CompletableFuture<TableBlob>> blobFutures = entry.getValue();
+      // a failed upload only fails the pipeline of its own table, the other batches are still loaded
+      CompletableFuture<Map<String, CompletableFuture<TableId>>> load =
+        CompletableFuture.allOf(blobFutures.toArray(new CompletableFuture[0]))
+          .handle((uploaded, t) -> uploaded)
+          .thenApplyAsync(uploaded -> {
+            // snapshot batches are loaded directly into their target tables
+            List<TableBlob> blobs = blobFutures.stream()
+              .filter(blobFuture -> !blobFuture.isCompletedExceptionally())
+              .map(CompletableFuture::join)
+              .filter(blob -> !blob.isSnapshotOnly())
+              .collect(Collectors.toList());
+            Map<String, CompletableFuture<TableId>> tableLoads = new HashMap<>();
+            for (List<TableBlob> shard : shardSharedStagingBatches(blobs)) {
+              CompletableFuture<TableId> shardLoad = loadSharedStagingTable(entry.getKey(), shard);
+              for (TableBlob blob : shard) {
+                tableLoads.put(blob.getTable(), shardLoad);
+              }
+            }
+            return tableLoads;
+          }, loadStage);
+      loads.put(entry.getKey(), load);
+    }
+    return loads;
+  }
+
+  /**
+   * Splits the batches of a dataset into the groups that are loaded into the same shared staging table. BigQuery
+   * counts the nested fields of a table towards its column limit, so a group is closed once the column of the next
+   * table would take it over the limit. A table that is over the limit on its own gets a shared staging table to
+   * itself, which only adds the table name column to the columns of its own staging table.
+   */
+  private List<List<TableBlob>> shardSharedStagingBatches(List<TableBlob> blobs) {
+    List<List<TableBlob>> shards = new ArrayList<>();
+    List<TableBlob> shard = new ArrayList<>();
+    // the table name column
+    int shardColumns = 1;
+    for (TableBlob blob : blobs) {
+      int columns = countColumns(getSharedStagingField(blob));
+      if (!shard.isEmpty() && shardColumns + columns > sharedStagingTableMaxColumns) {
+        shards.add(shard);
+        shard = new ArrayList<>();
+        shardColumns = 1;
+      }
+      shard.add(blob);
+      shardColumns += columns;
+    }
+    if (!shard.isEmpty()) {
+      shards.add(shard);
+    }
+    if (shards.size() > 1) {
+      LOG.debug("Loading batches of {} tables of dataset {} into {} shared staging tables.", blobs.size(),
+                blobs.get(0).getDataset(), shards.size());
+    }
+    return shards;
+  }
+
+  /**
+   * Returns the number of columns a field adds to a table, counting the field itself and all nested fields.
+   */
+  private static int countColumns(Field field) {
+    int columns = 1;
+    if (field.getSubFields() != null) {
+      for (Field subField : field.getSubFields()) {
+        columns += countColumns(subField);
+      }
+    }
+    return columns;
+  }
+
+  private CompletableFuture<TableId> loadSharedStagingTable(String dataset, List<TableBlob> blobs) {
+    // batch ids are unique, so the latest one identifies the shared staging table and its load job
+    long batchId = blobs.stream().mapToLong(TableBlob::getBatchId).max().getAsLong();
+    TableId stagingTableId = TableId.of(project, dataset,
+                                        BigQueryUtils.normalizeTableName(stagingTablePrefix + "shared_" + batchId));
     long retryDelay = Math.min(91, context.getMaxRetrySeconds()) - 1;
-    runWithRetries(runContext -> loadTable(targetTableId, blob, JobType.LOAD_TARGET, runContext.getAttemptCount()),
-                   retryDelay,
-                   blob.getDataset(),
-                   blob.getSourceDbSchemaName(),
-                   blob.getTable(),
-                   String.format("Failed to load a batch of changes from GCS into staging table for %s.%s",
-                                 blob.getDataset(), blob.getTable()),
-                   "Exhausted retries while attempting to load changed to the staging table.");
+    String onFailedAttemptMessage = String.format(
+      "Failed to load a batch of changes from GCS into shared staging table %s.%s", dataset, stagingTableId.getTable());
+    RetryPolicy<Object> retryPolicy = createBaseRetryPolicy(retryDelay)
+      .abortOn(this::isInvalidOperationError)
+      .onFailedAttempt(failureContext -> {
+        Throwable t = logBigQueryFailure(onFailedAttemptMessage, failureContext);
+        for (TableBlob blob : blobs) {
+          setTableError(blob.getDataset(), blob.getSourceDbSchemaName(), blob.getTable(), t);
+        }
+      });
+    return runWithRetryPolicyAsync(attemptNumber -> loadSharedTable(stagingTableId, blobs, batchId, attemptNumber),
+                                   "Exhausted retries while attempting to load changes to the shared staging table.",
+                                   retryPolicy)
+      .thenApplyAsync(loaded -> {
+        // the objects are no longer needed once they are loaded
+        for (TableBlob blob : blobs) {
+          try {
+            storage.delete(blob.getBlobId());
+          } catch (Exception e) {
+            // there is no retry for this cleanup error since it will not affect future functionality.
+            LOG.warn("Failed to delete temporary GCS object {} in bucket {}. The object will need to be manually "
+                       + "deleted.", blob.getBlobId().getName(), blob.getBlobId().getBucket(), e);
+          }
+        }
+        return stagingTableId;
+      }, loadStage);
+  }
+
+  private CompletableFuture<Void> loadSharedTable(TableId stagingTableId, List<TableBlob> blobs, long batchId,
+                                                  int attemptNumber) {
+    LOG.info("Loading batches of {} tables into shared staging table {}.{} {}", blobs.size(),
+             stagingTableId.getDataset(), stagingTableId.getTable(),
+             attemptNumber > 0 ? "attempt: " + attemptNumber : "");
+
+    return runJob(loadJobLimiter, loadStage, () -> {
+      if (attemptNumber > 0) {
+        // Check if any job from previous attempts was successful to avoid loading the same data multiple times
+        Job previousJob = getPreviousJobIfNotFailed(stagingTableId.getDataset(), stagingTableId.getTable(), batchId,
+                                                    attemptNumber, JobType.LOAD_STAGING);
+        if (previousJob != null) {
+          return previousJob;
+        }
+      }
+      return createSharedLoadJob(stagingTableId, blobs, batchId, attemptNumber);
+    }).thenAccept(BigQueryEventConsumer::checkLoadJob);
+  }
+
+  /**
+   * Creates a job that loads the batches of multiple tables into a shared staging table. Each row holds the staging
+   * record of its table in the column of the table, next to a {@link Constants#TABLE} column with the table name.
+   */
+  private Job createSharedLoadJob(TableId stagingTableId, List<TableBlob> blobs, long batchId, int attemptNumber) {
+    List<Field> fields = new ArrayList<>();
+    fields.add(Field.newBuilder(Constants.TABLE, StandardSQLTypeName.STRING).setMode(Field.Mode.REQUIRED).build());
+    List<String> uris = new ArrayList<>();
+    for (TableBlob blob : blobs) {
+      fields.add(getSharedStagingField(blob));
+      uris.add(String.format("gs://%s/%s", blob.getBlobId().getBucket(), blob.getBlobId().getName()));
+    }
+
+    JobId jobId = JobId.newBuilder()
+      .setLocation(bucket.getLocation())
+      .setJob(getJobId(JobType.LOAD_STAGING, stagingTableId.getDataset(), stagingTableId.getTable(), batchId,
+                       attemptNumber))
+      .build();
+    // the load job creates the table, clustered by table name so that each merge only scans the slice of its table
+    LoadJobConfiguration.Builder jobConfigBuilder = LoadJobConfiguration
+      .newBuilder(stagingTableId, uris)
+      .setSchema(com.google.cloud.bigquery.Schema.of(fields))
+      .setClustering(Clustering.newBuilder().setFields(ImmutableList.of(Constants.TABLE)).build())
+      .setFormatOptions(FormatOptions.json());
+    if (encryptionConfig != null) {
+      jobConfigBuilder.setDestinationEncryptionConfiguration(encryptionConfig);
+    }
+    JobInfo jobInfo = JobInfo.newBuilder(jobConfigBuilder.build())
+      .setJobId(jobId)
+      .build();
+    return BigQueryUtils.createBigQueryJob(bigQuery, jobInfo);
+  }
+
+  /**
+   * Returns the column of a shared staging table that holds the staging records of the table of the given batch.
+   */
+  private static Field getSharedStagingField(TableBlob blob) {
+    // the column of a table is null in the rows of other tables, so none of its fields can be required
+    List<Field> recordFields = new ArrayList<>();
+    for (Field field : Schemas.convert(blob.getStagingSchema()).getFields()) {
+      recordFields.add(field.getMode() == Field.Mode.REQUIRED ?
+                         field.toBuilder().setMode(Field.Mode.NULLABLE).build() : field);
+    }
+    return Field.newBuilder(BigQueryUtils.getSharedStagingColumn(blob.getTable()), StandardSQLTypeName.STRUCT,
+                            FieldList.of(recordFields))
+      .setMode(Field.Mode.NULLABLE)
+      .build();
+  }
+
+  private void dropSharedStagingTable(@Nullable TableId sharedStagingTableId) {
+    if (sharedStagingTableId == null || retainStagingTable) {
+      return;
+    }
     try {
-      blob.getBlob().delete();
+      bigQuery.delete(sharedStagingTableId);
     } catch (Exception e) {
-      // there is no retry for this cleanup error since it will not affect future functionality.
-      LOG.warn("Failed to delete temporary GCS object {} in bucket {}. The object will need to be manually deleted.",
-               blob.getBlob().getBlobId().getName(), blob.getBlob().getBlobId().getBucket(), e);
+      // there is no retry for this clean up since it will not affect future functionality
+      LOG.warn("Failed to delete shared staging table {}.{}. The table will need to be manually deleted.",
+               sharedStagingTableId.getDataset(), sharedStagingTableId.getTable(), e);
     }
-    LOG.debug("Direct loading of batch {} of {} events into target table {}.{} done", blob.getBatchId(),
-              blob.getNumEvents(), blob.getDataset(), blob.getTable());
   }
 
-  private void mergeTableChanges(TableBlob blob) throws DeltaFailureException, InterruptedException {
-    String normalizedStagingTableName = BigQueryUtils.normalizeTableName(stagingTablePrefix + blob.getTable());
+  /**
+   * Waits until every batch of the table cut so far has been loaded and merged.
+   */
+  private void awaitTablePipeline(TableId tableId) throws InterruptedException, IOException, DeltaFailureException {
+    CompletableFuture<Void> pipeline = tablePipelines.get(tableId);
+    if (pipeline != null) {
+      getMergeFuture(pipeline);
+    }
+  }
+
+  private CompletableFuture<Void> directLoadToTarget(TableBlob blob) {
+    LOG.debug("Direct loading batch {} of {} events into target table {}.{}", blob.getBatchId(), blob.getNumEvents(),
+              blob.getDataset(), blob.getTable());
+    TableId targetTableId = TableId.of(project, blob.getDataset(), blob.getTable());
+    long retryDelay = Math.min(91, context.getMaxRetrySeconds()) - 1;
+    return runWithRetriesAsync(attemptNumber -> loadTable(targetTableId, blob, JobType.LOAD_TARGET, attemptNumber),
+                               retryDelay,
+                               blob.getDataset(),
+                               blob.getSourceDbSchemaName(),
+                               blob.getTable(),
+                               String.format("Failed to load a batch of changes from GCS into staging table for %s.%s",
+                                             blob.getDataset(), blob.getTable()),
+                               "Exhausted retries while attempting to load changed to the staging table.")
+      .thenRunAsync(() -> {
+        try {
+          storage.delete(blob.getBlobId());
+        } catch (Exception e) {
+          // there is no retry for this cleanup error since it will not affect future functionality.
+          LOG.warn("Failed to delete temporary GCS object {} in bucket {}. The object will need to be manually "
+                     + "deleted.", blob.getBlobId().getName(), blob.getBlobId().getBucket(), e);
+        }
+        LOG.debug("Direct loading of batch {} of {} events into target table {}.{} done", blob.getBatchId(),
+                  blob.getNumEvents(), blob.getDataset(), blob.getTable());
+      }, loadStage);
+  }
 
+  /**
+   * Makes a batch that is merged through a staging table readable from the staging table.
+   *
+   * @param sharedStagingTableId the shared staging table the batch was already loaded into, or null if the batch
+   *   has to be loaded into the staging table of its own table first
+   */
+  private CompletableFuture<StagedBatch> loadStagingTable(TableBlob blob, @Nullable TableId sharedStagingTableId) {
+    if (blob.getWriteStreamRows() != null) {
+      // appends are not jobs, so they are run on the thread of the load stage
+      try {
+        return CompletableFuture.completedFuture(appendToStagingTable(blob));
+      } catch (Exception e) {
+        return failedFuture(e);
+      }
+    }
+    if (sharedStagingTableId != null) {
+      // only read the rows of this table, which are nested in the column of the table
+      String stagingSource = String.format("(SELECT %s.* FROM %s WHERE %s = '%s')",
+                                           BigQueryUtils.getSharedStagingColumn(blob.getTable()),
+                                           BigQueryUtils.wrapInBackTick(sharedStagingTableId.getDataset(),
+                                                                        sharedStagingTableId.getTable()),
+                                           Constants.TABLE, blob.getTable());
+      return CompletableFuture.completedFuture(new StagedBatch(blob, sharedStagingTableId, stagingSource, true));
+    }
+    long retryDelay = Math.min(91, context.getMaxRetrySeconds()) - 1;
+    String normalizedStagingTableName = BigQueryUtils.normalizeTableName(stagingTablePrefix + blob.getTable());
     TableId stagingTableId = TableId.of(project, blob.getDataset(), normalizedStagingTableName);
+    return runWithRetriesAsync(attemptNumber -> loadTable(stagingTableId, blob, JobType.LOAD_STAGING, attemptNumber),
+                               retryDelay,
+                               blob.getDataset(),
+                               blob.getSourceDbSchemaName(),
+                               blob.getTable(),
+                               String.format("Failed to load a batch of changes from GCS into staging table for %s.%s",
+                                             blob.getDataset(), blob.getTable()),
+                               "Exhausted retries while attempting to load changed to the staging table.")
+      .thenApply(loaded -> new StagedBatch(blob, stagingTableId,
+                                           BigQueryUtils.wrapInBackTick(stagingTableId.getDataset(),
+                                                                        stagingTableId.getTable()),
+                                           false));
+  }
+
+  /**
+   * Appends the rows of a batch to the staging table of its table through a pending write stream.
+   */
+  private StagedBatch appendToStagingTable(TableBlob blob) throws DeltaFailureException, InterruptedException {
+    WriteStreamRows rows = blob.getWriteStreamRows();
+    if (rows.isEmpty()) {
+      // the batch was cut before any of its events were written
+      return new StagedBatch(blob, null, null, false);
+    }
     long retryDelay = Math.min(91, context.getMaxRetrySeconds()) - 1;
-    runWithRetries(runContext -> loadTable(stagingTableId, blob, JobType.LOAD_STAGING, runContext.getAttemptCount()),
+    TableId stagingTableId = getStreamStagingTableId(blob.getDataset(), blob.getTable());
+    com.google.cloud.bigquery.Schema stagingSchema = Schemas.convert(blob.getStagingSchema());
+    AtomicReference<String> streamName = new AtomicReference<>();
+    // every attempt appends all rows to a new stream, the stream of a failed attempt is never committed
+    runWithRetries(runContext -> streamName.set(appendToStream(stagingTableId, stagingSchema, rows)),
                    retryDelay,
                    blob.getDataset(),
                    blob.getSourceDbSchemaName(),
                    blob.getTable(),
-                   String.format("Failed to load a batch of changes from GCS into staging table for %s.%s",
-                                 blob.getDataset(), blob.getTable()),
-                   "Exhausted retries while attempting to load changed to the staging table.");
-
-    runWithRetries(runContext -> mergeStagingTable(stagingTableId, blob, runContext.getAttemptCount()),
+                   String.format("Failed to append a batch of changes to a write stream of the staging table for "
+                                   + "%s.%s", blob.getDataset(), blob.getTable()),
+                   "Exhausted retries while attempting to append changes to the staging table.");
+    rows.release();
+    // the rows of the finalized stream become visible in the staging table once it is committed
+    runWithRetries(runContext -> writeStreamService.commit(stagingTableId,
+                                                           Collections.singletonList(streamName.get())),
                    retryDelay,
                    blob.getDataset(),
                    blob.getSourceDbSchemaName(),
                    blob.getTable(),
-                   String.format("Failed to merge a batch of changes from the staging table into %s.%s",
+                   String.format("Failed to commit a batch of changes to the staging table for %s.%s",
                                  blob.getDataset(), blob.getTable()),
-                   String.format("Exhausted retries while attempting to merge changes into target table %s.%s. "
-                                   + "Check that the service account has the right permissions "
-                                   + "and the table was not modified.", blob.getDataset(), blob.getTable()));
+                   "Exhausted retries while attempting to commit changes to the staging table.");
+    // staging tables of write streams are reused by the next batches of the table
+    return new StagedBatch(blob, stagingTableId,
+                           BigQueryUtils.wrapInBackTick(stagingTableId.getDataset(), stagingTableId.getTable()), true);
+  }
 
-    try {
-      blob.getBlob().delete();
-    } catch (Exception e) {
-      // there is no retry for this cleanup error since it will not affect future functionality.
-      LOG.warn("Failed to delete temporary GCS object {} in bucket {}. The object will need to be manually deleted.",
-               blob.getBlob().getBlobId().getName(), blob.getBlob().getBlobId().getBucket(), e);
+  /**
+   * Appends the rows of a batch to a new pending stream of its staging table and finalizes the stream.
+   *
+   * @return the name of the stream
+   */
+  private String appendToStream(TableId stagingTableId, com.google.cloud.bigquery.Schema stagingSchema,
+                                WriteStreamRows rows) throws IOException, InterruptedException {
+    WriteStreamService.PendingStream stream = writeStreamService.createPendingStream(stagingTableId, stagingSchema);
+    for (JSONArray chunk : rows.getChunks()) {
+      stream.append(chunk);
     }
-    // clean up staging table after merging is done, there is no retry for this clean up since it will not affect
-    // future functionality
-    if (!retainStagingTable) {
-      bigQuery.delete(stagingTableId);
+    long rowCount = stream.finalizeStream();
+    LOG.debug("Appended {} rows to write stream {}", rowCount, stream.getName());
+    return stream.getName();
+  }
+
+  /**
+   * Returns the staging table the batches of a table are appended to through pending write streams. It is not the
+   * staging table batches are loaded into, since it is partitioned and kept from one batch to the next.
+   */
+  private TableId getStreamStagingTableId(String dataset, String table) {
+    return TableId.of(project, dataset, BigQueryUtils.normalizeTableName(stagingTablePrefix + "stream_" + table));
+  }
+
+  /**
+   * Merges a batch into its target table from the staging table it was loaded into.
+   */
+  private CompletableFuture<Void> mergeTableChanges(StagedBatch batch) {
+    long retryDelay = Math.min(91, context.getMaxRetrySeconds()) - 1;
+    TableBlob blob = batch.blob;
+    CompletableFuture<Void> merge = runWithRetriesAsync(
+      attemptNumber -> mergeStagingTable(batch.stagingSource, blob, attemptNumber),
+      retryDelay,
+      blob.getDataset(),
+      blob.getSourceDbSchemaName(),
+      blob.getTable(),
+      String.format("Failed to merge a batch of changes from the staging table into %s.%s",
+                    blob.getDataset(), blob.getTable()),
+      String.format("Exhausted retries while attempting to merge changes into target table %s.%s. "
+                      + "Check that the service account has the right permissions "
+                      + "and the table was not modified.", blob.getDataset(), blob.getTable()));
+
+    if (batch.reusedStagingTable) {
+      // the object of a batch in the shared staging table was deleted once it was loaded, and the table is dropped
+      // once all tables are merged. Batches appended to write streams have no object and keep their staging table.
+      return merge;
     }
+    return merge.thenRunAsync(() -> {
+      if (blob.getBlobId() != null) {
+        try {
+          storage.delete(blob.getBlobId());
+        } catch (Exception e) {
+          // there is no retry for this cleanup error since it will not affect future functionality.
+          LOG.warn("Failed to delete temporary GCS object {} in bucket {}. The object will need to be manually "
+                     + "deleted.", blob.getBlobId().getName(), blob.getBlobId().getBucket(), e);
+        }
+      }
+      // clean up staging table after merging is done, there is no retry for this clean up since it will not affect
+      // future functionality
+      if (!retainStagingTable) {
+        bigQuery.delete(batch.stagingTableId);
+      }
+    }, mergeStage);
   }
 
-  private void loadTable(TableId tableId, TableBlob blob, JobType jobType, int attemptNumber)
-    throws InterruptedException, IOException, DeltaFailureException {
+  private CompletableFuture<Void> loadTable(TableId tableId, TableBlob blob, JobType jobType, int attemptNumber) {
     LOG.info("Loading batch {} of {} events into {} table for {}.{} {}", blob.getBatchId(), blob.getNumEvents(),
              jobType.isForTargetTable() ? "target" : "staging", blob.getDataset(), blob.getTable(),
              attemptNumber > 0 ? "attempt: " + attemptNumber : "");
 
-    Job loadJob = null;
-    if (attemptNumber > 0) {
-      // Check if any job from previous attempts was successful to avoid loading the same data multiple times
-      // which can lead to data inconsistency
-      loadJob = getPreviousJobIfNotFailed(blob, attemptNumber, jobType);
-    }
+    return runJob(loadJobLimiter, loadStage, () -> {
+      if (attemptNumber > 0) {
+        // Check if any job from previous attempts was successful to avoid loading the same data multiple times
+        // which can lead to data inconsistency
+        Job previousJob = getPreviousJobIfNotFailed(blob.getDataset(), blob.getTable(), blob.getBatchId(),
+                                                    attemptNumber, jobType);
+        if (previousJob != null) {
+          return previousJob;
+        }
+      }
+      return createLoadJob(tableId, blob, attemptNumber, jobType);
+    }).thenAccept(completedJob -> {
+      checkLoadJob(completedJob);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Loaded batch {} into staging table for {}.{}", blob.getBatchId(), blob.getDataset(),
+                  blob.getTable());
+      }
+    });
+  }
 
-    if (loadJob == null) {
-      loadJob = createLoadJob(tableId, blob, attemptNumber, jobType);
-    }
+  /**
+   * Creates or finds a job on a thread of the given stage with a permit of the given limiter. The permit is held
+   * until the job completes, and marked as throttled if BigQuery rejected the job or failed it because of a rate
+   * limit. No thread waits for the job while it runs.
+   *
+   * @return a future of the completed job, completed with null if the job no longer exists
+   */
+  private CompletableFuture<Job> runJob(AdaptiveConcurrencyLimiter limiter, Executor stage,
+                                        JobSupplier jobSupplier) {
+    CompletableFuture<Job> result = new CompletableFuture<>();
+    stage.execute(() -> {
+      AdaptiveConcurrencyLimiter.Permit permit;
+      try {
+        permit = limiter.acquire();
+      } catch (InterruptedException e) {
+        result.completeExceptionally(e);
+        return;
+      }
+      CompletableFuture<Job> completion;
+      try {
+        completion = jobCompletionTracker.track(jobSupplier.get());
+      } catch (Exception e) {
+        completion = failedFuture(e);
+      }
+      completion.whenComplete((completedJob, t) -> {
+        try {
+          if (t != null) {
+            Throwable cause = unwrap(t);
+            if (cause instanceof BigQueryException && BigQueryUtils.isRateLimitExceeded((BigQueryException) cause)) {
+              permit.throttled();
+            }
+            result.completeExceptionally(cause);
+            return;
+          }
+          if (completedJob != null) {
+            BigQueryError error = completedJob.getStatus().getError();
+            if (error == null) {
+              permit.succeeded();
+            } else if (BigQueryUtils.isRateLimitExceeded(error)) {
+              permit.throttled();
+            }
+          }
+          result.complete(completedJob);
+        } finally {
+          permit.close();
+        }
+      });
+    });
+    return result;
+  }
 
-    Job completedJob = loadJob.waitFor();
+  /**
+   * Fails the stage of a load job if the job no longer exists or failed.
+   */
+  private static void checkLoadJob(@Nullable Job completedJob) {
     if (completedJob == null) {
       // should not happen since we just submitted the job
-      throw new IOException("Load job no longer exists. Will be retried till retry timeout is reached.");
+      throw new CompletionException(
+        new IOException("Load job no longer exists. Will be retried till retry timeout is reached."));
     }
     if (completedJob.getStatus().getError() != null) {
       // load job failed
-      throw new IOException(String.format("Failed to execute BigQuery load job: %s",
-                                          completedJob.getStatus().getError()));
-    }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Loaded batch {} into staging table for {}.{}", blob.getBatchId(), blob.getDataset(), blob.getTable());
+      throw new CompletionException(new IOException(String.format("Failed to execute BigQuery load job: %s",
+                                                                  completedJob.getStatus().getError())));
     }
   }
 
-  private Job getPreviousJobIfNotFailed(TableBlob blob, int attemptNumber, JobType jobType) {
-    Job previousJob = getJobFromPreviousAttemptsIfExists(blob, attemptNumber, jobType);
+  private Job getPreviousJobIfNotFailed(String dataset, String table, long batchId, int attemptNumber,
+                                        JobType jobType) {
+    Job previousJob = getJobFromPreviousAttemptsIfExists(dataset, table, batchId, attemptNumber, jobType);
     if (previousJob != null) {
       if (isFailedJob(previousJob)) {
         LOG.warn("Previous job {} failed with error {} attempting to run a new job", previousJob,
@@ -833,7 +1670,7 @@ public class BigQueryEventConsumer implements EventConsumer {
       .setLocation(bucket.getLocation())
       .setJob(getJobId(jobType, blob.getDataset(), blob.getTable(), blob.getBatchId(), attemptNumber))
       .build();
-    BlobId blobId = blob.getBlob().getBlobId();
+    BlobId blobId = blob.getBlobId();
     String uri = String.format("gs://%s/%s", blobId.getBucket(), blobId.getName());
 
     // Explicitly set schema for load jobs
@@ -846,11 +1683,17 @@ public class BigQueryEventConsumer implements EventConsumer {
     if (encryptionConfig != null) {
       jobConfigBuilder.setDestinationEncryptionConfiguration(encryptionConfig);
     }
-    if (blob.isJsonFormat()) {
-      jobConfigBuilder.setFormatOptions(FormatOptions.json());
-    } else {
-      jobConfigBuilder.setFormatOptions(FormatOptions.avro());
-      jobConfigBuilder.setUseAvroLogicalTypes(true);
+    switch (blob.getFormat()) {
+      case JSON:
+        jobConfigBuilder.setFormatOptions(FormatOptions.json());
+        break;
+      case AVRO:
+        jobConfigBuilder.setFormatOptions(FormatOptions.avro());
+        jobConfigBuilder.setUseAvroLogicalTypes(true);
+        break;
+      case PARQUET:
+        jobConfigBuilder.setFormatOptions(FormatOptions.parquet());
+        break;
     }
     LoadJobConfiguration loadJobConf = jobConfigBuilder.build();
     JobInfo jobInfo = JobInfo.newBuilder(loadJobConf)
@@ -859,39 +1702,40 @@ public class BigQueryEventConsumer implements EventConsumer {
     return BigQueryUtils.createBigQueryJob(bigQuery, jobInfo);
   }
 
-  private void mergeStagingTable(TableId stagingTableId, TableBlob blob,
-                                 int attemptNumber) throws InterruptedException, IOException, DeltaFailureException {
+  private CompletableFuture<Void> mergeStagingTable(String stagingSource, TableBlob blob, int attemptNumber) {
 
     LOG.info("Merging batch {} for {}.{} {}", blob.getBatchId(), blob.getDataset(), blob.getTable(),
              attemptNumber > 0 ? "attempt: " + attemptNumber : "");
 
-    Job mergeJob = null;
-    if (attemptNumber > 0) {
-      // Check if any job from previous attempts was successful to avoid merging the same data multiple times
-      // which can lead to data inconsistency
-      mergeJob = getPreviousJobIfNotFailed(blob, attemptNumber, JobType.MERGE_TARGET);
-    }
-
-    if (mergeJob == null) {
-      mergeJob = createMergeJob(stagingTableId, blob, attemptNumber);
-    }
-
-    Job completedJob = mergeJob.waitFor();
-    if (completedJob == null) {
-      // should not happen since we just submitted the job
-      throw new IOException("Merge query job no longer exists. Will be retried till retry timeout is reached.");
-    }
-    if (completedJob.getStatus().getError() != null) {
-      // merge job failed
-      throw new IOException(String.format("Failed to execute BigQuery merge query job: %s",
-                                          completedJob.getStatus().getError()));
-    }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Merged batch {} into {}.{}", blob.getBatchId(), blob.getDataset(), blob.getTable());
-    }
+    return runJob(mergeJobLimiter, mergeStage, () -> {
+      if (attemptNumber > 0) {
+        // Check if any job from previous attempts was successful to avoid merging the same data multiple times
+        // which can lead to data inconsistency
+        Job previousJob = getPreviousJobIfNotFailed(blob.getDataset(), blob.getTable(), blob.getBatchId(),
+                                                    attemptNumber, JobType.MERGE_TARGET);
+        if (previousJob != null) {
+          return previousJob;
+        }
+      }
+      return createMergeJob(stagingSource, blob, attemptNumber);
+    }).thenAccept(completedJob -> {
+      if (completedJob == null) {
+        // should not happen since we just submitted the job
+        throw new CompletionException(
+          new IOException("Merge query job no longer exists. Will be retried till retry timeout is reached."));
+      }
+      if (completedJob.getStatus().getError() != null) {
+        // merge job failed
+        throw new CompletionException(new IOException(String.format(
+          "Failed to execute BigQuery merge query job: %s", completedJob.getStatus().getError())));
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Merged batch {} into {}.{}", blob.getBatchId(), blob.getDataset(), blob.getTable());
+      }
+    });
   }
 
-  private Job createMergeJob(TableId stagingTableId, TableBlob blob, int attemptNumber)
+  private Job createMergeJob(String stagingSource, TableBlob blob, int attemptNumber)
     throws IOException, DeltaFailureException {
     TableId targetTableId = TableId.of(project, blob.getDataset(), blob.getTable());
     List<String> primaryKeys = getPrimaryKeys(targetTableId);
@@ -1082,15 +1926,26 @@ public class BigQueryEventConsumer implements EventConsumer {
      * WHERE B._row_id IS NULL
      */
 
-    String diffQuery =
-      createDiffQuery(stagingTableId, primaryKeys, blob.getBatchId(), latestMergedSequence.get(targetTableId),
-                      sourceRowIdSupported, sourceEventOrdering, sortKeys);
+    // a compacted batch only holds the net change of each row, none of which is superseded by another
+    String diffQuery = blob.isCompacted() ?
+      createCompactedDiffQuery(stagingSource, blob.getBatchId(), latestMergedSequence.get(targetTableId)) :
+      createDiffQuery(stagingSource, primaryKeys, blob.getBatchId(), latestMergedSequence.get(targetTableId),
+                      sourceRowIdSupported, sourceEventOrdering, sortKeys, diffQueryType);
     if (LOG.isTraceEnabled()) {
       LOG.trace("Diff query : {}", diffQuery);
     }
+    // rows of the target outside of the key range of the batch can not match, so their blocks are not scanned.
+    // The bounds of the partition column prune the partitions of the target in the same way.
+    List<String> boundedColumns = new ArrayList<>(primaryKeys);
+    PartitionSpec partitionSpec = getPartitionSpec(targetTableId);
+    if (partitionSpec != null && !boundedColumns.contains(partitionSpec.getColumn())) {
+      boundedColumns.add(partitionSpec.getColumn());
+    }
+    String targetCondition = sourceRowIdSupported || blob.getKeyBounds() == null ? "" :
+      blob.getKeyBounds().getCondition("T", boundedColumns);
     String mergeQuery =
       createMergeQuery(targetTableId, primaryKeys, blob.getTargetSchema(), diffQuery, sourceRowIdSupported,
-                       sourceEventOrdering, softDeletesEnabled, sortKeys);
+                       sourceEventOrdering, softDeletesEnabled, sortKeys, targetCondition);
     if (LOG.isTraceEnabled()) {
       LOG.trace("Merge query : {}", mergeQuery);
     }
@@ -1116,9 +1971,19 @@ public class BigQueryEventConsumer implements EventConsumer {
     return BigQueryUtils.createBigQueryJob(bigQuery, jobInfo);
   }
 
-  static String createDiffQuery(TableId stagingTable, List<String> primaryKeys, long batchId,
+  /**
+   * @param stagingSource the staging table to read, or a subquery that reads the rows of the table from a shared
+   *   staging table
+   * @param diffQueryType the form of the query
+   */
+  static String createDiffQuery(String stagingSource, List<String> primaryKeys, long batchId,
                                 Long latestSequenceNumInTargetTable, boolean sourceRowIdSupported,
-                                SourceProperties.Ordering sourceEventsOrdering, Optional<List<Schema.Type>> sortKeys) {
+                                SourceProperties.Ordering sourceEventsOrdering, Optional<List<Schema.Type>> sortKeys,
+                                DiffQueryType diffQueryType) {
+    if (diffQueryType == DiffQueryType.WINDOW) {
+      return createWindowDiffQuery(stagingSource, primaryKeys, batchId, latestSequenceNumInTargetTable,
+                                   sourceRowIdSupported, sourceEventsOrdering, sortKeys);
+    }
     String joinCondition;
     String whereClause;
     /*
@@ -1174,21 +2039,119 @@ public class BigQueryEventConsumer implements EventConsumer {
       joinCondition += getOrderingCondition(sortKeys, "A", "B");
     }
     return "SELECT A.* FROM\n" +
-      "(SELECT * FROM " + BigQueryUtils.wrapInBackTick(stagingTable.getDataset(), stagingTable.getTable()) +
+      "(SELECT * FROM " + stagingSource +
       " WHERE _batch_id = " + batchId +
       " AND _sequence_num > " + latestSequenceNumInTargetTable + ") as A\n" +
       "LEFT OUTER JOIN\n" +
-      "(SELECT * FROM " + BigQueryUtils.wrapInBackTick(stagingTable.getDataset(), stagingTable.getTable()) +
+      "(SELECT * FROM " + stagingSource +
       " WHERE _batch_id = " + batchId +
       " AND _sequence_num > " + latestSequenceNumInTargetTable + ") as B\n" +
       "ON " + joinCondition +
       " WHERE " + whereClause;
   }
 
+  /**
+   * Creates the diff query of a batch that was compacted by {@link EventCompactor}, which only has to skip the events
+   * that were already merged.
+   */
+  static String createCompactedDiffQuery(String stagingSource, long batchId, Long latestSequenceNumInTargetTable) {
+    return "SELECT * FROM " + stagingSource +
+      " WHERE _batch_id = " + batchId +
+      " AND _sequence_num > " + latestSequenceNumInTargetTable;
+  }
+
+  /**
+   * Creates a diff query that finds the latest events with a window function instead of joining the batch with
+   * itself, which does not blow up on rows with many events in a batch.
+   */
+  private static String createWindowDiffQuery(String stagingSource, List<String> primaryKeys, long batchId,
+                                              Long latestSequenceNumInTargetTable, boolean sourceRowIdSupported,
+                                              SourceProperties.Ordering sourceEventsOrdering,
+                                              Optional<List<Schema.Type>> sortKeys) {
+    /*
+     * For events with row id, the row id never changes, so the latest event of each row id is kept:
+     *
+     * SELECT * FROM [staging table] WHERE _batch_id = 1234567890 AND _sequence_num > $LATEST_APPLIED
+     * QUALIFY ROW_NUMBER() OVER (PARTITION BY _row_id ORDER BY $ORDER) = 1
+     *
+     * For events without row id, an update can change the primary key, in which case the event is superseded by a
+     * later event whose before image has its key, rather than by a later event with the same key. The join form is
+     * kept for this chain, but B only holds the latest event of each before key, with just the columns the join
+     * condition reads (assuming id is the PK):
+     *
+     * SELECT A.* FROM
+     *   (SELECT * FROM [staging table] WHERE _batch_id = 1234567890 AND _sequence_num > $LATEST_APPLIED) as A
+     *   LEFT OUTER JOIN
+     *   (SELECT _before_id, _sequence_num FROM [staging table]
+     *      WHERE _batch_id = 1234567890 AND _sequence_num > $LATEST_APPLIED
+     *      QUALIFY ROW_NUMBER() OVER (PARTITION BY _before_id ORDER BY $ORDER) = 1) as B
+     *   ON A.id = B._before_id AND A._sequence_num < B._sequence_num
+     *   WHERE B._before_id IS NULL
+     *
+     * A later event with the same before key exists exactly if the latest one is later, so this returns the same
+     * events as the join form.
+     *
+     * $ORDER is _sequence_num DESC for ordered events. For un-ordered events it is the sort keys, followed by
+     * _source_timestamp and _sequence_num, all descending, which is the order of $ORDERING_CONDITION as long as the
+     * sort keys of the events of a row are either all set or all missing.
+     */
+    String filter = " WHERE _batch_id = " + batchId + " AND _sequence_num > " + latestSequenceNumInTargetTable;
+    List<String> orderColumns = new ArrayList<>();
+    if (sourceEventsOrdering == SourceProperties.Ordering.UN_ORDERED) {
+      if (sortKeys.isPresent()) {
+        for (int i = 0; i < sortKeys.get().size(); i++) {
+          orderColumns.add(Constants.SORT_KEYS + "." + Constants.SORT_KEY_FIELD + "_" + i);
+        }
+      }
+      orderColumns.add(Constants.SOURCE_TIMESTAMP);
+    }
+    orderColumns.add(Constants.SEQUENCE_NUM);
+    String order = orderColumns.stream().map(column -> column + " DESC").collect(Collectors.joining(", "));
+
+    if (sourceRowIdSupported) {
+      return "SELECT * FROM " + stagingSource + filter + "\n" +
+        "QUALIFY ROW_NUMBER() OVER (PARTITION BY " + Constants.ROW_ID + " ORDER BY " + order + ") = 1";
+    }
+
+    List<String> bColumns = primaryKeys.stream()
+      .map(name -> String.format("`_before_%s`", name))
+      .collect(Collectors.toList());
+    String partition = String.join(", ", bColumns);
+    bColumns.add(Constants.SEQUENCE_NUM);
+    if (sourceEventsOrdering == SourceProperties.Ordering.UN_ORDERED) {
+      bColumns.add(Constants.SOURCE_TIMESTAMP);
+      if (sortKeys.isPresent()) {
+        bColumns.add(Constants.SORT_KEYS);
+      }
+    }
+    String joinCondition = primaryKeys.stream()
+      .map(name -> String.format("A.`%s` = B.`_before_%s`", name, name))
+      .collect(Collectors.joining(" AND "));
+    if (sourceEventsOrdering == SourceProperties.Ordering.ORDERED) {
+      joinCondition += String.format(" AND A.%s < B.%1$s\n", Constants.SEQUENCE_NUM);
+    } else {
+      joinCondition += getOrderingCondition(sortKeys, "A", "B");
+    }
+    String whereClause = primaryKeys.stream()
+      .map(name -> String.format("B.`_before_%s` IS NULL", name))
+      .collect(Collectors.joining(" AND "));
+    return "SELECT A.* FROM\n" +
+      "(SELECT * FROM " + stagingSource + filter + ") as A\n" +
+      "LEFT OUTER JOIN\n" +
+      "(SELECT " + String.join(", ", bColumns) + " FROM " + stagingSource + filter + "\n" +
+      "QUALIFY ROW_NUMBER() OVER (PARTITION BY " + partition + " ORDER BY " + order + ") = 1) as B\n" +
+      "ON " + joinCondition +
+      " WHERE " + whereClause;
+  }
+
+  /**
+   * @param targetCondition a condition on the target table that is added to the merge condition, prefixed with AND,
+   *   or an empty string
+   */
   static String createMergeQuery(TableId targetTableId, List<String> primaryKeys, Schema targetSchema,
                                  String diffQuery, boolean sourceRowIdSupported,
                                  SourceProperties.Ordering sourceEventOrdering, boolean softDeletesEnabled,
-                                 Optional<List<Schema.Type>> sortKeys) {
+                                 Optional<List<Schema.Type>> sortKeys, String targetCondition) {
     String mergeCondition;
 
     /*
@@ -1212,6 +2175,8 @@ public class BigQueryEventConsumer implements EventConsumer {
      * 2. For event without row Id, we use primary keys to match the row, $MERGE_CONDITION will be (assuming id is the
      * PK):
      *    T.id = D._before_id
+     *    followed by the key range of the batch if it was tracked, so that only the target blocks holding it are read:
+     *    AND T.id BETWEEN 3 AND 500
      *
      * Following are the differences between ordered and un-ordered events:
      * 1. For Ordered events, the $DELETE_OPERATION will be :
@@ -1306,7 +2271,7 @@ public class BigQueryEventConsumer implements EventConsumer {
     String mergeQuery = "MERGE " +
       BigQueryUtils.wrapInBackTick(targetTableId.getDataset(), targetTableId.getTable()) + " as T\n" +
       "USING (" + diffQuery + ") as D\n" +
-      "ON " + mergeCondition + "\n" +
+      "ON " + mergeCondition + targetCondition + "\n" +
       "WHEN MATCHED AND D._op = \"DELETE\" " + updateAndDeleteCondition + "THEN\n" +
       deleteOperation + "\n" +
       // In a case when a replicator is paused for too long and crashed when resumed
@@ -1362,17 +2327,20 @@ public class BigQueryEventConsumer implements EventConsumer {
    * while iterating from the provided (attemptNumber - 1) to 0
    * Existence of the job is checked by creating deterministic job Id containing attempt number
    *
-   * @param blob blob to create deterministic job Id
+   * @param dataset dataset to create deterministic job Id
+   * @param table table to create deterministic job Id
+   * @param batchId batch id to create deterministic job Id
    * @param attemptNumber attempt number below which to check previous jobs
    * @param jobType job type to create deterministic job Id
    * @return first job which exists while iterating from the provided
    * (attemptNumber - 1) to 0, null if no job exists
    */
-  private Job getJobFromPreviousAttemptsIfExists(TableBlob blob, int attemptNumber, JobType jobType) {
+  private Job getJobFromPreviousAttemptsIfExists(String dataset, String table, long batchId, int attemptNumber,
+                                                 JobType jobType) {
     for (int prevAttemptNumber = attemptNumber - 1; prevAttemptNumber >= 0; prevAttemptNumber--) {
       JobId jobId = JobId.newBuilder()
         .setLocation(bucket.getLocation())
-        .setJob(getJobId(jobType, blob.getDataset(), blob.getTable(), blob.getBatchId(), prevAttemptNumber))
+        .setJob(getJobId(jobType, dataset, table, batchId, prevAttemptNumber))
         .build();
 
       Job job = bigQuery.getJob(jobId);
@@ -1417,8 +2385,84 @@ public class BigQueryEventConsumer implements EventConsumer {
     }
   }
 
+  /**
+   * Runs attempts like {@link #runWithRetries}, for attempts that complete asynchronously. Retries are scheduled
+   * without holding a thread while an attempt runs or while the next one is delayed.
+   *
+   * @param attempt starts the attempt of the given number
+   */
+  private CompletableFuture<Void> runWithRetriesAsync(IntFunction<CompletableFuture<Void>> attempt, long retryDelay,
+                                                      String dataset, String schema, String table,
+                                                      String onFailedAttemptMessage, String retriesExhaustedMessage) {
+    return runWithRetryPolicyAsync(attempt, retriesExhaustedMessage, createBaseRetryPolicy(retryDelay)
+      //Do not retry in case of invalid requests errors, but let the retrey happen from Worker
+      //which can potentially mitigate the issue
+      .abortOn(this::isInvalidOperationError)
+      .onFailedAttempt(failureContext -> {
+        handleBigQueryFailure(dataset, schema, table, onFailedAttemptMessage, failureContext);
+      }));
+  }
+
+  private CompletableFuture<Void> runWithRetryPolicyAsync(IntFunction<CompletableFuture<Void>> attempt,
+                                                          String retriesExhaustedMessage,
+                                                          RetryPolicy<Object> retryPolicy) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    // attempts fail with their cause, so that the retry policy sees the same failures as with synchronous attempts
+    Failsafe.with(retryPolicy).with(retryScheduler)
+      .getStageAsync(context -> unwrapFailure(attempt.apply(context.getAttemptCount())))
+      .whenComplete((completed, t) -> {
+        if (t == null) {
+          result.complete(null);
+          return;
+        }
+        Throwable cause = unwrap(t);
+        if (cause instanceof TimeoutExceededException) {
+          // if the retry timeout was reached, fail the pipeline immediately
+          DeltaFailureException exc = new DeltaFailureException(retriesExhaustedMessage, cause);
+          flushException = exc;
+          result.completeExceptionally(exc);
+        } else {
+          result.completeExceptionally(cause);
+        }
+      });
+    return result;
+  }
+
+  /**
+   * Returns the cause of a failure of a dependent stage, which is wrapped in a {@link CompletionException}.
+   */
+  private static Throwable unwrap(Throwable t) {
+    return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+  }
+
+  private static <T> CompletableFuture<T> unwrapFailure(CompletableFuture<T> future) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    future.whenComplete((value, t) -> {
+      if (t == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(unwrap(t));
+      }
+    });
+    return result;
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable t) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(t);
+    return future;
+  }
+
   private void handleBigQueryFailure(String dataset, String schema, String table, String onFailedAttemptMessage,
                                      ExecutionAttemptedEvent<Object> failureContext) {
+    setTableError(dataset, schema, table, logBigQueryFailure(onFailedAttemptMessage, failureContext));
+  }
+
+  /**
+   * Logs a failed attempt and returns its cause.
+   */
+  private static Throwable logBigQueryFailure(String onFailedAttemptMessage,
+                                              ExecutionAttemptedEvent<Object> failureContext) {
     Throwable t = failureContext.getLastFailure();
     LOG.error(onFailedAttemptMessage, t);
     if (t.getCause() instanceof BigQueryException) {
@@ -1431,6 +2475,10 @@ public class BigQueryEventConsumer implements EventConsumer {
         errors.forEach(err -> LOG.error(err.getMessage()));
       }
     }
+    return t;
+  }
+
+  private void setTableError(String dataset, @Nullable String schema, String table, Throwable t) {
     // its ok to set table state every retry, because this is a no-op if there is no change to the state.
     try {
       context.setTableError(dataset, table, new ReplicationError(t));
@@ -1517,7 +2565,23 @@ public class BigQueryEventConsumer implements EventConsumer {
     return condition.toString();
   }
 
-  private long getLatestSequenceNum(TableId tableId) throws InterruptedException, DeltaFailureException {
+  private long getLatestSequenceNum(TableId tableId) throws InterruptedException, DeltaFailureException,
+    IOException {
+    Long storedSequenceNum;
+    synchronized (tableStates) {
+      // the state is updated in place by the merges of other tables' pipelines
+      BigQueryTableState tableState = getTableState(tableId);
+      storedSequenceNum = tableState == null || tableState.isMergePending() ? null : tableState.getMergedSequenceNum();
+    }
+    if (storedSequenceNum != null) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Loaded {} as the latest merged sequence number for {}.{} from the table state",
+                  storedSequenceNum, tableId.getDataset(), tableId.getTable());
+      }
+      return storedSequenceNum;
+    }
+
+    // a batch may have been merged after the stored sequence number, or none was stored, so ask the table
     RetryPolicy<Object> retryPolicy = createBaseRetryPolicy(baseRetryDelay)
       .onFailedAttempt(failureContext -> {
         Throwable t = failureContext.getLastFailure();
@@ -1567,17 +2631,15 @@ public class BigQueryEventConsumer implements EventConsumer {
       List<Schema.Type> sortKeyTypes = sortKeys.stream()
         .map(SortKey::getType).collect(Collectors.toList());
       sortKeyStore.put(tableId, new SortKeyState(sortKeyTypes));
-      context.putState(getTableStateKey(tableId),
-                       Bytes.toBytes(GSON.toJson(new BigQueryTableState(getPrimaryKeys(tableId), sortKeyTypes))));
+      putTableState(tableId, new BigQueryTableState(getPrimaryKeys(tableId), sortKeyTypes));
     }
   }
 
   private List<Schema.Type> getSortKeys(TableId tableId) throws IOException {
     SortKeyState sortKeyState = sortKeyStore.get(tableId);
     if (sortKeyState == null) {
-      byte[] stateBytes = context.getState(getTableStateKey(tableId));
-      if (stateBytes != null && stateBytes.length > 0) {
-        BigQueryTableState targetTableState = GSON.fromJson(new String(stateBytes), BigQueryTableState.class);
+      BigQueryTableState targetTableState = getTableState(tableId);
+      if (targetTableState != null) {
         if (targetTableState.getSortKeys() != null) {
           sortKeyState = new SortKeyState(targetTableState.getSortKeys());
           sortKeyStore.put(tableId, sortKeyState);
@@ -1592,6 +2654,99 @@ public class BigQueryEventConsumer implements EventConsumer {
     return Optional.ofNullable(sortKeyState != null ? sortKeyState.getSortKeys() : null);
   }
 
+  /**
+   * Returns the persisted state of a table, which is only read from the state store the first time.
+   *
+   * @return the state of the table, or null if no state was stored for the table
+   */
+  @Nullable
+  private BigQueryTableState getTableState(TableId tableId) throws IOException {
+    BigQueryTableState tableState = tableStates.get(tableId);
+    if (tableState == null) {
+      byte[] stateBytes = context.getState(getTableStateKey(tableId));
+      if (stateBytes == null || stateBytes.length == 0) {
+        return null;
+      }
+      tableState = GSON.fromJson(new String(stateBytes), BigQueryTableState.class);
+      tableStates.putIfAbsent(tableId, tableState);
+    }
+    return tableState;
+  }
+
+  /**
+   * Stores new primary and sort keys of a table, keeping the merged sequence number of its previous state.
+   */
+  private void putTableState(TableId tableId, BigQueryTableState tableState) throws IOException {
+    synchronized (tableStates) {
+      BigQueryTableState previous = getTableState(tableId);
+      if (previous != null) {
+        tableState.setMergedSequenceNum(previous.getMergedSequenceNum());
+        tableState.setMergePending(previous.isMergePending());
+      }
+      tableStates.put(tableId, tableState);
+      context.putState(getTableStateKey(tableId), Bytes.toBytes(GSON.toJson(tableState)));
+    }
+  }
+
+  /**
+   * Marks that a batch is about to be loaded or merged into a table, so that the merged sequence number of the table
+   * can not be trusted until the batch is recorded as merged. The mark is only stored for the first of the batches
+   * of the table in flight.
+   */
+  private void markMergePending(TableId tableId) throws IOException {
+    synchronized (tableStates) {
+      if (pendingMerges.merge(tableId, 1, Integer::sum) == 1) {
+        updateMergedSequenceNum(tableId, tableState -> tableState.setMergePending(true));
+      }
+    }
+  }
+
+  /**
+   * Records the highest sequence number merged into a table, which is read back when the table sees its first event
+   * after a restart. It is only stored once no other batch of the table is in flight, since the table stays marked
+   * as pending until then.
+   */
+  private void recordMergedSequenceNum(TableId tableId, long mergedSequenceNum) throws IOException {
+    synchronized (tableStates) {
+      if (pendingMerges.merge(tableId, -1, Integer::sum) > 0) {
+        return;
+      }
+      pendingMerges.remove(tableId);
+      updateMergedSequenceNum(tableId, tableState -> {
+        tableState.setMergedSequenceNum(mergedSequenceNum);
+        tableState.setMergePending(false);
+      });
+    }
+  }
+
+  /**
+   * Forgets the merged sequence number of a table whose rows were deleted, so that its next events are merged again.
+   */
+  private void clearMergedSequenceNum(TableId tableId) throws IOException {
+    synchronized (tableStates) {
+      pendingMerges.remove(tableId);
+      // the next event of the table reads the sequence number again
+      latestMergedSequence.remove(tableId);
+      updateMergedSequenceNum(tableId, tableState -> {
+        tableState.setMergedSequenceNum(null);
+        tableState.setMergePending(false);
+      });
+    }
+  }
+
+  private void updateMergedSequenceNum(TableId tableId, Consumer<BigQueryTableState> update) throws IOException {
+    synchronized (tableStates) {
+      BigQueryTableState tableState = getTableState(tableId);
+      // the state is first stored with the primary keys of the table. Without it, the latest merged sequence number
+      // is queried from the table.
+      if (tableState == null) {
+        return;
+      }
+      update.accept(tableState);
+      context.putState(getTableStateKey(tableId), Bytes.toBytes(GSON.toJson(tableState)));
+    }
+  }
+
   private String getTableStateKey(TableId tableId) {
     return String.format("bigquery-%s-%s", tableId.getDataset(), tableId.getTable());
   }
@@ -1603,9 +2758,10 @@ public class BigQueryEventConsumer implements EventConsumer {
 
   /**
    * Utility method that unwraps ExecutionExceptions and propagates their cause as-is when possible.
-   * Expects to be given a Future for a call to mergeTableChanges.
+   * Expects to be given a Future for the pipeline of a table, which uploads batches and merges them.
    */
-  private static <T> T getMergeFuture(Future<T> mergeFuture) throws InterruptedException, DeltaFailureException {
+  private static <T> T getMergeFuture(Future<T> mergeFuture)
+    throws InterruptedException, IOException, DeltaFailureException {
     try {
       return mergeFuture.get();
     } catch (ExecutionException e) {
@@ -1613,6 +2769,9 @@ public class BigQueryEventConsumer implements EventConsumer {
       if (cause instanceof DeltaFailureException) {
         throw (DeltaFailureException) cause;
       }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
       if (cause instanceof InterruptedException) {
         throw (InterruptedException) cause;
       }
@@ -1640,4 +2799,33 @@ public class BigQueryEventConsumer implements EventConsumer {
   private boolean isInvalidOperationError(Throwable ex) {
     return ex instanceof BigQueryException && BigQueryUtils.isInvalidOperationError((BigQueryException) ex);
   }
+
+  /**
+   * Creates or finds the job of an attempt.
+   */
+  private interface JobSupplier {
+    Job get() throws IOException, DeltaFailureException;
+  }
+
+  /**
+   * A batch that was loaded by the load stage of its table pipeline, to be merged by the merge stage.
+   */
+  private static final class StagedBatch {
+    private final TableBlob blob;
+    // the staging table the batch was loaded into, null if the batch is not merged
+    private final TableId stagingTableId;
+    // the query source of the rows of the batch in the staging table, null if the batch is not merged
+    private final String stagingSource;
+    // whether the staging table is shared with other tables or batches, in which case it is not dropped after the
+    // merge
+    private final boolean reusedStagingTable;
+
+    private StagedBatch(TableBlob blob, @Nullable TableId stagingTableId, @Nullable String stagingSource,
+                        boolean reusedStagingTable) {
+      this.blob = blob;
+      this.stagingTableId = stagingTableId;
+      this.stagingSource = stagingSource;
+      this.reusedStagingTable = reusedStagingTable;
+    }
+  }
 }
@@ -36,6 +36,13 @@ public class BigQueryTableState {
   @Nullable
   private List<Schema.Type> sortKeys;
 
+  // highest sequence number merged into the target table, null if it is not known
+  @Nullable
+  private Long mergedSequenceNum;
+
+  // whether a batch may have been merged into the target table after the merged sequence number was stored
+  private boolean mergePending;
+
   public BigQueryTableState(List<String> primaryKeys) {
     this(primaryKeys, null);
   }
@@ -60,6 +67,23 @@ public class BigQueryTableState {
     this.sortKeys = sortKeys;
   }
 
+  @Nullable
+  public Long getMergedSequenceNum() {
+    return mergedSequenceNum;
+  }
+
+  public void setMergedSequenceNum(@Nullable Long mergedSequenceNum) {
+    this.mergedSequenceNum = mergedSequenceNum;
+  }
+
+  public boolean isMergePending() {
+    return mergePending;
+  }
+
+  public void setMergePending(boolean mergePending) {
+    this.mergePending = mergePending;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -72,11 +96,13 @@ public class BigQueryTableState {
 
     BigQueryTableState that = (BigQueryTableState) o;
     return Objects.equals(primaryKeys, that.primaryKeys)
-            && Objects.equals(sortKeys, that.sortKeys);
+            && Objects.equals(sortKeys, that.sortKeys)
+            && Objects.equals(mergedSequenceNum, that.mergedSequenceNum)
+            && mergePending == that.mergePending;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(primaryKeys, sortKeys);
+    return Objects.hash(primaryKeys, sortKeys, mergedSequenceNum, mergePending);
   }
 }
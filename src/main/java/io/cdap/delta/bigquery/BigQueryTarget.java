@@ -53,10 +53,7 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -72,11 +69,9 @@ public class BigQueryTarget implements DeltaTarget {
   public static final int CONFLICT = 409;
   private static final String GCS_SCHEME = "gs://";
   private static final String GCP_CMEK_KEY_NAME = "gcp.cmek.key.name";
+  // whether merged batches are appended to staging tables through the Storage Write API instead of loaded from GCS
+  private static final String STAGING_WRITE_API = "gcp.bigquery.staging.write.api";
   private static final int MAX_TABLES_PER_QUERY = 1000;
-  private  static final String RATE_LIMIT_EXCEEDED_REASON = "rateLimitExceeded";
-  private static final Set<Integer> RATE_LIMIT_EXCEEDED_CODES = new HashSet<>(Arrays.asList(400, 403));
-  private  static final int BILLING_TIER_LIMIT_EXCEEDED_CODE = 400;
-  private  static final String BILLING_TIER_LIMIT_EXCEEDED_REASON = "billingTierLimitExceeded";
   private  static final int RETRY_COUNT = 25;
   private final int retryCount;
   private final Conf conf;
@@ -119,13 +114,8 @@ public class BigQueryTarget implements DeltaTarget {
               }
               if (ex instanceof BigQueryException) {
                 BigQueryException t = (BigQueryException) ex;
-                int code = t.getCode();
-                String reason = t.getError() != null ? t.getError().getReason() : null;
-                boolean isRateLimitExceeded =  RATE_LIMIT_EXCEEDED_CODES.contains(code)
-                        && RATE_LIMIT_EXCEEDED_REASON.equals(reason);
-                boolean isBillingTierLimitExceeded = code == BILLING_TIER_LIMIT_EXCEEDED_CODE
-                        && BILLING_TIER_LIMIT_EXCEEDED_REASON.equals(reason);
-                return t.isRetryable() || isRateLimitExceeded || isBillingTierLimitExceeded;
+                return t.isRetryable() || BigQueryUtils.isRateLimitExceeded(t)
+                  || BigQueryUtils.isBillingTierLimitExceeded(t);
               }
               return false;
             });
@@ -204,10 +194,13 @@ public class BigQueryTarget implements DeltaTarget {
                       "Please make sure the service account has permission to create buckets, " +
                       "or create the bucket before starting the program.", stagingBucketName, project), e);
     }
+    WriteStreamService writeStreamService =
+      Boolean.parseBoolean(context.getRuntimeArguments().get(STAGING_WRITE_API)) ?
+        new BigQueryWriteStreamService(bigQuery, credentials, project, encryptionConfig) : null;
     return new BigQueryEventConsumer(context, storage, bigQuery, bucket, project,
                                      conf.getLoadIntervalSeconds(), conf.getStagingTablePrefix(),
                                      conf.requiresManualDrops(), encryptionConfig, null, conf.getDatasetName(),
-                                     conf.softDeletesEnabled());
+                                     conf.softDeletesEnabled(), writeStreamService);
   }
 
   @VisibleForTesting
@@ -29,6 +29,7 @@ import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.TableResult;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -41,13 +42,13 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
@@ -73,6 +74,13 @@ public final class BigQueryUtils {
 
   private static final Set<String> BQ_ABORT_REASONS = new HashSet<>(Arrays.asList("invalid", "invalidQuery"));
   private static final int BQ_INVALID_REQUEST_CODE = 400;
+  private static final String RATE_LIMIT_EXCEEDED_REASON = "rateLimitExceeded";
+  private static final Set<Integer> RATE_LIMIT_EXCEEDED_CODES = new HashSet<>(Arrays.asList(400, 403));
+  private static final int BILLING_TIER_LIMIT_EXCEEDED_CODE = 400;
+  private static final String BILLING_TIER_LIMIT_EXCEEDED_REASON = "billingTierLimitExceeded";
+  private static final int NORMALIZED_SCHEMA_CACHE_SIZE = 10000;
+  // CDAP schemas cache their hash, so looking up a schema that was seen before does not re-walk its fields
+  private static final Map<Schema, NormalizedSchema> NORMALIZED_SCHEMAS = new ConcurrentHashMap<>();
 
   private BigQueryUtils() {
   }
@@ -225,6 +233,19 @@ public final class BigQueryUtils {
     return normalize(name, FIELD_NAME_MAX_LENGTH, false, false);
   }
 
+  /**
+   * Returns the column of a shared staging table that holds the staging records of the given table.
+   * Column names are case insensitive and more restricted than table names, so the hash of the table name is
+   * appended to keep the columns of different tables apart.
+   * @param table the table name
+   * @return the column name
+   */
+  public static String getSharedStagingColumn(String table) {
+    String hash = Integer.toHexString(table.hashCode());
+    String name = normalizeFieldName("_t_" + table);
+    return name.substring(0, Math.min(name.length(), FIELD_NAME_MAX_LENGTH - hash.length() - 1)) + "_" + hash;
+  }
+
   private static String normalize(String name, int maxLength, boolean canStartWithNumber, boolean useExtendedCharset) {
     if (name == null || name.isEmpty()) {
       return name;
@@ -267,24 +288,64 @@ public final class BigQueryUtils {
     return normalizedEventBuilder;
   }
 
-  private static StructuredRecord normalize(StructuredRecord record) {
-    Schema schema = record.getSchema();
-    List<Schema.Field> fields = schema.getFields();
-    List<Schema.Field> normalizedFields = new ArrayList<>(fields.size());
-    Map<String, Object> valueMap = new HashMap<>();
-    for (Schema.Field field : fields) {
-      String normalizedName = normalizeFieldName(field.getName());
-      normalizedFields.add(Schema.Field.of(normalizedName, field.getSchema()));
-      valueMap.put(normalizedName, record.get(field.getName()));
+  @VisibleForTesting
+  static StructuredRecord normalize(StructuredRecord record) {
+    NormalizedSchema normalizedSchema = getNormalizedSchema(record.getSchema());
+    if (normalizedSchema.isPassThrough()) {
+      return record;
     }
-    StructuredRecord.Builder builder =
-      StructuredRecord.builder(Schema.recordOf(schema.getRecordName(), normalizedFields));
-    for (Schema.Field normalizedField : normalizedFields) {
-      builder.set(normalizedField.getName(), valueMap.get(normalizedField.getName()));
+    String[] originalNames = normalizedSchema.originalNames;
+    String[] normalizedNames = normalizedSchema.normalizedNames;
+    StructuredRecord.Builder builder = StructuredRecord.builder(normalizedSchema.schema);
+    for (int i = 0; i < originalNames.length; i++) {
+      builder.set(normalizedNames[i], record.get(originalNames[i]));
     }
     return builder.build();
   }
 
+  private static NormalizedSchema getNormalizedSchema(Schema schema) {
+    NormalizedSchema normalizedSchema = NORMALIZED_SCHEMAS.get(schema);
+    if (normalizedSchema != null) {
+      return normalizedSchema;
+    }
+    // source schemas only change on DDL, so this is a safety valve rather than an eviction policy
+    if (NORMALIZED_SCHEMAS.size() >= NORMALIZED_SCHEMA_CACHE_SIZE) {
+      NORMALIZED_SCHEMAS.clear();
+    }
+    return NORMALIZED_SCHEMAS.computeIfAbsent(schema, NormalizedSchema::new);
+  }
+
+  /**
+   * Field name normalization of a source schema, computed once per schema and shared by all of its records.
+   */
+  private static final class NormalizedSchema {
+    private final Schema schema;
+    private final String[] originalNames;
+    private final String[] normalizedNames;
+
+    private NormalizedSchema(Schema original) {
+      List<Schema.Field> fields = original.getFields();
+      List<Schema.Field> normalizedFields = new ArrayList<>(fields.size());
+      this.originalNames = new String[fields.size()];
+      this.normalizedNames = new String[fields.size()];
+      boolean renamed = false;
+      for (int i = 0; i < fields.size(); i++) {
+        Schema.Field field = fields.get(i);
+        String normalizedName = normalizeFieldName(field.getName());
+        originalNames[i] = field.getName();
+        normalizedNames[i] = normalizedName;
+        normalizedFields.add(Schema.Field.of(normalizedName, field.getSchema()));
+        renamed = renamed || !normalizedName.equals(field.getName());
+      }
+      // null schema means records of this schema are already normalized and can be used as is
+      this.schema = renamed ? Schema.recordOf(original.getRecordName(), normalizedFields) : null;
+    }
+
+    private boolean isPassThrough() {
+      return schema == null;
+    }
+  }
+
   static String wrapInBackTick(String datasetName, String tableName) {
     return BACKTICK + datasetName + "." + tableName + BACKTICK;
   }
@@ -322,4 +383,37 @@ public final class BigQueryUtils {
     }
     return false;
   }
+
+  /**
+   * Checks if BigQuery exception is due to a rate limit, such as the limit on concurrent jobs or table updates
+   *
+   * @param ex {@link BigQueryException}
+   * @return true if BigQuery exception is due to a rate limit
+   */
+  public static boolean isRateLimitExceeded(BigQueryException ex) {
+    return RATE_LIMIT_EXCEEDED_CODES.contains(ex.getCode()) && isRateLimitExceeded(ex.getError());
+  }
+
+  /**
+   * Checks if the error of a failed job is due to a rate limit. Errors of jobs have no status code, so only the
+   * reason is checked.
+   *
+   * @param error the error of the job
+   * @return true if the job failed because of a rate limit
+   */
+  public static boolean isRateLimitExceeded(@Nullable BigQueryError error) {
+    return error != null && RATE_LIMIT_EXCEEDED_REASON.equals(error.getReason());
+  }
+
+  /**
+   * Checks if BigQuery exception is due to the billing tier of a query
+   *
+   * @param ex {@link BigQueryException}
+   * @return true if BigQuery exception is due to the billing tier of a query
+   */
+  public static boolean isBillingTierLimitExceeded(BigQueryException ex) {
+    BigQueryError error = ex.getError();
+    return ex.getCode() == BILLING_TIER_LIMIT_EXCEEDED_CODE && error != null
+      && BILLING_TIER_LIMIT_EXCEEDED_REASON.equals(error.getReason());
+  }
 }
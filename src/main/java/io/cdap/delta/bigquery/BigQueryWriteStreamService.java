@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.auth.Credentials;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Clustering;
+import com.google.cloud.bigquery.EncryptionConfiguration;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableInfo;
+import com.google.cloud.bigquery.TimePartitioning;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.FinalizeWriteStreamResponse;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.StorageError;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link WriteStreamService} that uses the BigQuery Storage Write API.
+ */
+class BigQueryWriteStreamService implements WriteStreamService {
+  // the rows of a batch are only read by its merge, so staging tables keep them in daily partitions that expire a
+  // day after they were written instead of deleting them
+  private static final long STAGING_PARTITION_EXPIRATION_MS = TimeUnit.DAYS.toMillis(1);
+  private final BigQuery bigQuery;
+  private final BigQueryWriteClient client;
+  private final String project;
+  private final EncryptionConfiguration encryptionConfig;
+  // the schemas staging tables were created with or brought up to, so that a table is only looked up again once
+  // the schema of its batches changes
+  private final Map<TableId, Schema> stagingSchemas;
+
+  BigQueryWriteStreamService(BigQuery bigQuery, Credentials credentials, String project,
+                             @Nullable EncryptionConfiguration encryptionConfig) throws IOException {
+    this.bigQuery = bigQuery;
+    this.client = BigQueryWriteClient.create(BigQueryWriteSettings.newBuilder()
+                                               .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
+                                               .build());
+    this.project = project;
+    this.encryptionConfig = encryptionConfig;
+    this.stagingSchemas = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public PendingStream createPendingStream(TableId tableId, Schema schema) throws IOException, InterruptedException {
+    TableName tableName = getTableName(tableId);
+    TableId stagingTableId = TableId.of(tableName.getProject(), tableName.getDataset(), tableName.getTable());
+    if (!schema.equals(stagingSchemas.get(stagingTableId))) {
+      updateStagingTable(stagingTableId, schema);
+      stagingSchemas.put(stagingTableId, schema);
+    }
+
+    WriteStream writeStream = client.createWriteStream(
+      CreateWriteStreamRequest.newBuilder()
+        .setParent(tableName.toString())
+        .setWriteStream(WriteStream.newBuilder().setType(WriteStream.Type.PENDING).build())
+        .build());
+    try {
+      JsonStreamWriter writer = JsonStreamWriter.newBuilder(writeStream.getName(), writeStream.getTableSchema(), client)
+        .build();
+      return new BigQueryPendingStream(writeStream.getName(), writer);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      // building the writer declares checked exceptions that are not IOExceptions
+      if (e instanceof InterruptedException) {
+        throw (InterruptedException) e;
+      }
+      throw e instanceof IOException ? (IOException) e :
+        new IOException(String.format("Unable to create a writer for write stream %s.", writeStream.getName()), e);
+    }
+  }
+
+  /**
+   * Creates a staging table, or adds the columns of the schema it does not have yet. Added columns are nullable,
+   * since BigQuery can not add required columns to an existing table.
+   */
+  private void updateStagingTable(TableId tableId, Schema schema) {
+    Table table = bigQuery.getTable(tableId);
+    if (table == null) {
+      StandardTableDefinition tableDefinition = StandardTableDefinition.newBuilder()
+        .setSchema(schema)
+        .setTimePartitioning(TimePartitioning.newBuilder(TimePartitioning.Type.DAY)
+                               .setExpirationMs(STAGING_PARTITION_EXPIRATION_MS)
+                               .build())
+        .setClustering(Clustering.newBuilder().setFields(Collections.singletonList(Constants.BATCH_ID)).build())
+        .build();
+      TableInfo.Builder tableInfo = TableInfo.newBuilder(tableId, tableDefinition);
+      if (encryptionConfig != null) {
+        tableInfo.setEncryptionConfiguration(encryptionConfig);
+      }
+      bigQuery.create(tableInfo.build());
+      return;
+    }
+
+    StandardTableDefinition tableDefinition = table.getDefinition();
+    List<Field> fields = new ArrayList<>(tableDefinition.getSchema().getFields());
+    Set<String> names = fields.stream().map(Field::getName).collect(Collectors.toSet());
+    for (Field field : schema.getFields()) {
+      if (!names.contains(field.getName())) {
+        fields.add(field.toBuilder().setMode(Field.Mode.NULLABLE).build());
+      }
+    }
+    if (fields.size() > names.size()) {
+      bigQuery.update(table.toBuilder()
+                        .setDefinition(tableDefinition.toBuilder().setSchema(Schema.of(fields)).build())
+                        .build());
+    }
+  }
+
+  @Override
+  public void commit(TableId tableId, List<String> streamNames) throws IOException {
+    BatchCommitWriteStreamsResponse response = client.batchCommitWriteStreams(
+      BatchCommitWriteStreamsRequest.newBuilder()
+        .setParent(getTableName(tableId).toString())
+        .addAllWriteStreams(streamNames)
+        .build());
+    for (StorageError error : response.getStreamErrorsList()) {
+      // a previous attempt already committed the stream if it failed after the commit went through
+      if (error.getCode() != StorageError.StorageErrorCode.STREAM_ALREADY_COMMITTED) {
+        throw new IOException(String.format("Unable to commit write stream %s: %s", error.getEntity(),
+                                            error.getErrorMessage()));
+      }
+    }
+  }
+
+  @Override
+  public void dropStagingTable(TableId tableId) {
+    TableName tableName = getTableName(tableId);
+    TableId stagingTableId = TableId.of(tableName.getProject(), tableName.getDataset(), tableName.getTable());
+    stagingSchemas.remove(stagingTableId);
+    bigQuery.delete(stagingTableId);
+  }
+
+  @Override
+  public void close() {
+    client.close();
+  }
+
+  private TableName getTableName(TableId tableId) {
+    return TableName.of(tableId.getProject() == null ? project : tableId.getProject(), tableId.getDataset(),
+                        tableId.getTable());
+  }
+
+  /**
+   * A pending stream that appends rows with a {@link JsonStreamWriter}. Each append is sent at the offset following
+   * the previous one, so that BigQuery rejects rows that would be appended twice.
+   */
+  private class BigQueryPendingStream implements PendingStream {
+    private final String name;
+    private final JsonStreamWriter writer;
+    private final List<ApiFuture<AppendRowsResponse>> appends;
+    private long offset;
+
+    private BigQueryPendingStream(String name, JsonStreamWriter writer) {
+      this.name = name;
+      this.writer = writer;
+      this.appends = new ArrayList<>();
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public void append(JSONArray rows) throws IOException {
+      try {
+        appends.add(writer.append(rows, offset));
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw e instanceof IOException ? (IOException) e :
+          new IOException(String.format("Unable to append %d rows to write stream %s.", rows.length(), name), e);
+      }
+      offset += rows.length();
+    }
+
+    @Override
+    public long finalizeStream() throws IOException, InterruptedException {
+      try {
+        for (ApiFuture<AppendRowsResponse> append : appends) {
+          AppendRowsResponse response = append.get();
+          if (response.hasError()) {
+            throw new IOException(String.format("Unable to append rows to write stream %s: %s", name,
+                                                response.getError().getMessage()));
+          }
+        }
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IOException(String.format("Unable to append rows to write stream %s.", name), e.getCause());
+      } finally {
+        writer.close();
+      }
+
+      FinalizeWriteStreamResponse response = client.finalizeWriteStream(name);
+      return response.getRowCount();
+    }
+  }
+}
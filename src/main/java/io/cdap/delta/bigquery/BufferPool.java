@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed size direct byte buffers that are leased by staging objects as they fill.
+ * <p>
+ * At most a configured number of direct buffers is ever allocated. Once all of them are leased, heap buffers are
+ * handed out instead, which are left to the garbage collector when they are released.
+ */
+class BufferPool {
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final Queue<ByteBuffer> free;
+  private final AtomicInteger allocated;
+
+  BufferPool(int bufferSize, int maxBuffers) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive.");
+    }
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+    this.free = new ConcurrentLinkedQueue<>();
+    this.allocated = new AtomicInteger();
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns an empty buffer, which must be given back with {@link #release(ByteBuffer)} once it is no longer used.
+   */
+  ByteBuffer lease() {
+    ByteBuffer buffer = free.poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    if (allocated.incrementAndGet() <= maxBuffers) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    allocated.decrementAndGet();
+    return ByteBuffer.allocate(bufferSize);
+  }
+
+  void release(ByteBuffer buffer) {
+    if (buffer.isDirect()) {
+      buffer.clear();
+      free.offer(buffer);
+    }
+  }
+}
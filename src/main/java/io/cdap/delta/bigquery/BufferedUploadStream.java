@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.WriteChannel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream to a GCS object that buffers in buffers leased from a {@link BufferPool}.
+ * <p>
+ * The upload channel allocates a buffer of a whole chunk as soon as anything is written to it, so it is only opened
+ * once a chunk worth of data has been buffered. Small objects are uploaded in a single request when the stream is
+ * closed, without opening a resumable upload session. Until the first pooled buffer would be full, the stream buffers
+ * in a heap buffer that starts small and doubles as it fills, so that objects of a few events only hold a few KiB.
+ */
+class BufferedUploadStream extends OutputStream {
+  private final BufferPool bufferPool;
+  private final int chunkSize;
+  private final int initialBufferSize;
+  private final Destination destination;
+  private final List<ByteBuffer> buffers;
+  private int buffered;
+  private WriteChannel channel;
+  private boolean closed;
+
+  /**
+   * The object a stream uploads to.
+   */
+  interface Destination {
+
+    /**
+     * Opens a resumable upload channel to the object. Called at most once, when the first chunk is full.
+     */
+    WriteChannel openChannel();
+
+    /**
+     * Creates the object with the given content in a single request. Called if the object is smaller than a chunk.
+     */
+    void create(byte[] content);
+  }
+
+  /**
+   * Creates a stream that only buffers in pooled buffers.
+   *
+   * @param bufferPool the pool to lease buffers from
+   * @param chunkSize the number of bytes to buffer before they are written to the upload channel
+   * @param destination the object to upload to
+   */
+  BufferedUploadStream(BufferPool bufferPool, int chunkSize, Destination destination) {
+    this(bufferPool, chunkSize, bufferPool.getBufferSize(), destination);
+  }
+
+  /**
+   * @param bufferPool the pool to lease buffers from
+   * @param chunkSize the number of bytes to buffer before they are written to the upload channel
+   * @param initialBufferSize the size of the first buffer, which grows up to the size of the pooled buffers before
+   *   any buffer is leased
+   * @param destination the object to upload to
+   */
+  BufferedUploadStream(BufferPool bufferPool, int chunkSize, int initialBufferSize, Destination destination) {
+    if (initialBufferSize <= 0) {
+      throw new IllegalArgumentException("Initial buffer size must be positive.");
+    }
+    this.bufferPool = bufferPool;
+    this.chunkSize = chunkSize;
+    this.initialBufferSize = initialBufferSize;
+    this.destination = destination;
+    this.buffers = new ArrayList<>();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    currentBuffer().put((byte) b);
+    buffered++;
+    if (buffered >= chunkSize) {
+      upload();
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    while (len > 0) {
+      ByteBuffer buffer = currentBuffer();
+      int length = Math.min(len, buffer.remaining());
+      buffer.put(bytes, off, length);
+      off += length;
+      len -= length;
+      buffered += length;
+      if (buffered >= chunkSize) {
+        upload();
+      }
+    }
+  }
+
+  /**
+   * Returns the approximate number of bytes of memory held by the stream and its upload channel.
+   */
+  long getMemoryUsage() {
+    long memory = channel == null ? 0 : chunkSize;
+    for (ByteBuffer buffer : buffers) {
+      memory += buffer.capacity();
+    }
+    return memory;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (channel == null) {
+        destination.create(getBufferedBytes());
+      } else {
+        upload();
+        channel.close();
+      }
+    } finally {
+      releaseBuffers();
+    }
+  }
+
+  private byte[] getBufferedBytes() {
+    byte[] bytes = new byte[buffered];
+    int offset = 0;
+    for (ByteBuffer buffer : buffers) {
+      buffer.flip();
+      int length = buffer.remaining();
+      buffer.get(bytes, offset, length);
+      offset += length;
+    }
+    return bytes;
+  }
+
+  private ByteBuffer currentBuffer() throws IOException {
+    if (closed) {
+      throw new IOException("Stream is already closed.");
+    }
+    int pooledSize = bufferPool.getBufferSize();
+    if (buffers.isEmpty()) {
+      // once a chunk was uploaded the object is known to be large, so it goes straight to pooled buffers
+      if (channel == null && initialBufferSize < pooledSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(initialBufferSize);
+        buffers.add(buffer);
+        return buffer;
+      }
+    } else {
+      ByteBuffer last = buffers.get(buffers.size() - 1);
+      if (last.hasRemaining()) {
+        return last;
+      }
+      if (last.capacity() < pooledSize) {
+        // only the first buffer can be smaller than a pooled one, it is copied into one of twice its size
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.min(2L * last.capacity(), pooledSize));
+        last.flip();
+        grown.put(last);
+        buffers.set(0, grown);
+        return grown;
+      }
+    }
+    ByteBuffer buffer = bufferPool.lease();
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  private void upload() throws IOException {
+    if (buffered == 0) {
+      return;
+    }
+    if (channel == null) {
+      channel = destination.openChannel();
+    }
+    for (ByteBuffer buffer : buffers) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) <= 0) {
+          throw new IOException("No bytes were written to the upload channel.");
+        }
+      }
+    }
+    releaseBuffers();
+  }
+
+  private void releaseBuffers() {
+    for (ByteBuffer buffer : buffers) {
+      bufferPool.release(buffer);
+    }
+    buffers.clear();
+    buffered = 0;
+  }
+}
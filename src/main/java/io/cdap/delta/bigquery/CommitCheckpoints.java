@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.delta.api.Offset;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.annotation.Nullable;
+
+/**
+ * Tracks which source offset can be committed while the batches of different tables are merged independently.
+ * <p>
+ * Batches are registered against the open checkpoint when they are cut. A flush closes the open checkpoint with the
+ * latest offset and sequence number seen, once every event up to it is part of a registered batch. A closed
+ * checkpoint can be committed once the batches registered against it and against every earlier checkpoint are
+ * merged, since all events up to its sequence number are in the target tables by then.
+ */
+class CommitCheckpoints {
+  private final Deque<Checkpoint> closed;
+  private Checkpoint open;
+
+  CommitCheckpoints() {
+    this.closed = new ArrayDeque<>();
+    this.open = new Checkpoint();
+  }
+
+  /**
+   * Registers a batch that has to be merged before the open checkpoint can be committed.
+   *
+   * @return the checkpoint to pass to {@link #complete(Checkpoint)} once the batch is merged
+   */
+  synchronized Checkpoint register() {
+    open.pending++;
+    return open;
+  }
+
+  /**
+   * Marks a batch registered against the given checkpoint as merged.
+   */
+  synchronized void complete(Checkpoint checkpoint) {
+    checkpoint.pending--;
+  }
+
+  /**
+   * Closes the open checkpoint. Every event up to the given sequence number must be merged or part of a batch
+   * registered against this or an earlier checkpoint.
+   */
+  synchronized void close(@Nullable Offset offset, long sequenceNumber) {
+    open.offset = offset;
+    open.sequenceNumber = sequenceNumber;
+    closed.add(open);
+    open = new Checkpoint();
+  }
+
+  /**
+   * Removes and returns the latest closed checkpoint that can be committed, or null if there is none.
+   */
+  @Nullable
+  synchronized Checkpoint pollCommittable() {
+    Checkpoint committable = null;
+    while (!closed.isEmpty() && closed.peek().pending == 0) {
+      committable = closed.poll();
+    }
+    return committable;
+  }
+
+  /**
+   * An offset and the batches that have to be merged before it can be committed.
+   */
+  static final class Checkpoint {
+    private int pending;
+    private Offset offset;
+    private long sequenceNumber;
+
+    private Checkpoint() {
+      // created through CommitCheckpoints only
+    }
+
+    @Nullable
+    Offset getOffset() {
+      return offset;
+    }
+
+    long getSequenceNumber() {
+      return sequenceNumber;
+    }
+  }
+}
@@ -28,6 +28,8 @@ public final class Constants {
   public static final String BATCH_ID = "_batch_id";
   public static final String SORT_KEYS = "_sort";
   public static final String SORT_KEY_FIELD = "_key";
+  // name of the source table of the rows in a staging table shared by multiple tables
+  public static final String TABLE = "_table";
 
   private Constants() {}
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+/**
+ * Form of the query that removes the events of a batch that are superseded by later events of the same row, before
+ * the batch is merged into the target table.
+ */
+public enum DiffQueryType {
+  // joins every event of the batch with all later events of the batch
+  JOIN,
+  // ranks the events of each row with a window function, only reading the columns needed to find the latest one
+  WINDOW
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Folds the events of a batch of ordered events into the net change of each row, so that a row that is changed many
+ * times in a batch is only staged once.
+ * <p>
+ * Rows are identified by their row id, or by their primary key for sources without row ids. Events are chained by
+ * key: an update or delete continues the chain of the row whose current key is its before key, and an insert
+ * continues the chain of a row that was deleted at its key. Primary key changes move the chain to the new key. The
+ * net event of a chain carries the latest row and, for sources without row ids, the row the chain started from as
+ * its before image, which is the row the target table holds before the batch is merged. Since no net event is
+ * superseded by another, the merge does not have to remove superseded events from a compacted batch.
+ */
+class EventCompactor {
+  // approximate heap bytes of an event apart from its rows, and of a value apart from its content
+  private static final int EVENT_OVERHEAD = 128;
+  private static final int VALUE_OVERHEAD = 16;
+  private final List<String> primaryKeys;
+  // chains by the current key of their row
+  private final Map<Object, Chain> chains;
+  // chains whose key was taken over by another row, which can no longer be continued
+  private final List<Chain> detached;
+  private long estimatedSize;
+
+  /**
+   * @param primaryKeys the primary key columns, or null if rows are identified by their row id
+   */
+  EventCompactor(@Nullable List<String> primaryKeys) {
+    this.primaryKeys = primaryKeys;
+    this.chains = new HashMap<>();
+    this.detached = new ArrayList<>();
+  }
+
+  /**
+   * Returns the number of rows held, which is the number of events the batch is compacted to.
+   */
+  int size() {
+    return chains.size() + detached.size();
+  }
+
+  /**
+   * Returns the approximate number of bytes of the events held, which is used both as the memory they take and as
+   * the number of bytes of the batch while its events are held back.
+   */
+  long getEstimatedSize() {
+    return estimatedSize;
+  }
+
+  void add(Sequenced<DMLEvent> sequencedEvent) {
+    DMLEvent event = sequencedEvent.getEvent();
+    Chain chain = chains.remove(getKey(event, true));
+    if (chain == null) {
+      chain = new Chain(event);
+    } else {
+      chain.fold();
+      estimatedSize -= chain.size;
+    }
+    chain.last = sequencedEvent;
+    chain.size = chain.estimateSize();
+    estimatedSize += chain.size;
+    Chain taken = chains.put(getKey(event, false), chain);
+    if (taken != null) {
+      detached.add(taken);
+    }
+  }
+
+  /**
+   * Returns the net event of every row in sequence order.
+   */
+  List<Sequenced<DMLEvent>> getEvents() {
+    List<Chain> all = new ArrayList<>(chains.values());
+    all.addAll(detached);
+    all.sort(Comparator.comparingLong(chain -> chain.last.getSequenceNumber()));
+    List<Sequenced<DMLEvent>> events = new ArrayList<>(all.size());
+    for (Chain chain : all) {
+      events.add(chain.getNetEvent());
+    }
+    return events;
+  }
+
+  /**
+   * Drops the events held, once the net events were written.
+   */
+  void clear() {
+    chains.clear();
+    detached.clear();
+    estimatedSize = 0L;
+  }
+
+  /**
+   * Returns the key of the row before the event, or of the row after it.
+   */
+  private Object getKey(DMLEvent event, boolean before) {
+    if (primaryKeys == null) {
+      return event.getRowId();
+    }
+    // updates without before image are rejected once they are staged
+    StructuredRecord row = before && event.getOperation().getType() == DMLOperation.Type.UPDATE
+      && event.getPreviousRow() != null ? event.getPreviousRow() : event.getRow();
+    List<Object> key = new ArrayList<>(primaryKeys.size());
+    for (String primaryKey : primaryKeys) {
+      key.add(row.get(primaryKey));
+    }
+    return key;
+  }
+
+  /**
+   * The events of one row in a batch.
+   */
+  private final class Chain {
+    // the row the target table holds before the batch, null if the row did not exist or is unknown
+    private StructuredRecord original;
+    private Sequenced<DMLEvent> last;
+    // estimated size of the original row and the last event, updated whenever the last event is replaced
+    private long size;
+
+    private Chain(DMLEvent first) {
+      switch (first.getOperation().getType()) {
+        case UPDATE:
+          original = first.getPreviousRow();
+          break;
+        case DELETE:
+          original = first.getRow();
+          break;
+      }
+    }
+
+    /**
+     * Prepares the chain for the next event of its row.
+     */
+    private void fold() {
+      DMLEvent previous = last.getEvent();
+      if (original == null && previous.getOperation().getType() == DMLOperation.Type.DELETE) {
+        // the delete would have removed a row the target table may hold, so the next event has to replace that row
+        original = previous.getRow();
+      }
+    }
+
+    private long estimateSize() {
+      DMLEvent event = last.getEvent();
+      long size = EVENT_OVERHEAD + EventCompactor.estimateSize(event.getRow())
+        + EventCompactor.estimateSize(event.getPreviousRow());
+      // the original row is usually the before image of the first event, which may still be the last one
+      if (original != event.getRow() && original != event.getPreviousRow()) {
+        size += EventCompactor.estimateSize(original);
+      }
+      return size;
+    }
+
+    private Sequenced<DMLEvent> getNetEvent() {
+      DMLEvent event = last.getEvent();
+      if (primaryKeys == null || original == null) {
+        // rows with row ids are matched by the row id of the latest event, and rows that did not exist before
+        // the batch by the before image of the latest event
+        return last;
+      }
+      DMLEvent.Builder builder = DMLEvent.builder(event);
+      if (event.getOperation().getType() == DMLOperation.Type.DELETE) {
+        // deletes are matched by their row
+        builder.setRow(original);
+      } else {
+        builder.setOperationType(DMLOperation.Type.UPDATE).setPreviousRow(original);
+      }
+      return new Sequenced<>(builder.build(), last.getSequenceNumber());
+    }
+  }
+
+  /**
+   * Returns the approximate number of heap bytes of a value of a row, counting two bytes per char.
+   */
+  static long estimateSize(@Nullable Object value) {
+    if (value == null) {
+      return 0L;
+    }
+    if (value instanceof StructuredRecord) {
+      StructuredRecord record = (StructuredRecord) value;
+      long size = VALUE_OVERHEAD;
+      for (Schema.Field field : record.getSchema().getFields()) {
+        size += estimateSize(record.get(field.getName()));
+      }
+      return size;
+    }
+    if (value instanceof CharSequence) {
+      return VALUE_OVERHEAD + 2L * ((CharSequence) value).length();
+    }
+    if (value instanceof byte[]) {
+      return VALUE_OVERHEAD + ((byte[]) value).length;
+    }
+    if (value instanceof ByteBuffer) {
+      return VALUE_OVERHEAD + ((ByteBuffer) value).remaining();
+    }
+    if (value instanceof Collection) {
+      long size = VALUE_OVERHEAD;
+      for (Object element : (Collection<?>) value) {
+        size += estimateSize(element);
+      }
+      return size;
+    }
+    if (value instanceof Map) {
+      long size = VALUE_OVERHEAD;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+      }
+      return size;
+    }
+    return VALUE_OVERHEAD;
+  }
+}
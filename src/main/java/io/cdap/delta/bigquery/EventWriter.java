@@ -16,14 +16,12 @@
 
 package io.cdap.delta.bigquery;
 
-import io.cdap.cdap.api.data.format.StructuredRecord;
-
 import java.io.Closeable;
 import java.io.IOException;
 
 /**
- * Write event represented as StructuredRecord to the storage.
+ * Write event represented as a {@link StagingRecord} to the storage.
  */
 interface EventWriter extends Closeable {
-  void write(StructuredRecord record) throws IOException;
+  void write(StagingRecord record) throws IOException;
 }
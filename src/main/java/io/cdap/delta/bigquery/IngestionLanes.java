@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.apache.twill.common.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed set of single threaded lanes that events are striped across by key.
+ * <p>
+ * All tasks submitted with the same key run on the same lane in submission order, while tasks for keys that hash to
+ * different lanes run in parallel. Each lane has a bounded queue, so submitters block once a lane falls behind.
+ * The first failure of any task is remembered and rethrown to the submitter on the next call to
+ * {@link #submit(Object, Runnable)} or {@link #drain()}. Once a failure happens, tasks still queued are skipped,
+ * since the caller is expected to fail and replay from the last committed offset.
+ */
+class IngestionLanes {
+  private static final Logger LOG = LoggerFactory.getLogger(IngestionLanes.class);
+
+  private final List<Lane> lanes;
+  private final AtomicReference<Throwable> failure;
+
+  IngestionLanes(int numLanes, int queueCapacity) {
+    if (numLanes < 1) {
+      throw new IllegalArgumentException("Number of ingestion lanes must be at least 1.");
+    }
+    this.failure = new AtomicReference<>();
+    this.lanes = new ArrayList<>(numLanes);
+    ThreadFactory threadFactory = Threads.createDaemonThreadFactory("bq-ingest-%d");
+    for (int i = 0; i < numLanes; i++) {
+      Lane lane = new Lane(queueCapacity);
+      lane.thread = threadFactory.newThread(lane);
+      lanes.add(lane);
+      lane.thread.start();
+    }
+  }
+
+  int size() {
+    return lanes.size();
+  }
+
+  /**
+   * Submits a task to the lane owning the given key, blocking if that lane's queue is full.
+   */
+  void submit(Object key, Runnable task) throws InterruptedException {
+    checkFailure();
+    lanes.get(Math.floorMod(key.hashCode(), lanes.size())).queue.put(new Task(task));
+  }
+
+  /**
+   * Waits until every task submitted before this call has run, then rethrows the first failure, if any.
+   * Callers must make sure nothing is submitted concurrently if they need a consistent cut across all lanes.
+   */
+  void drain() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(lanes.size());
+    for (Lane lane : lanes) {
+      if (lane.stopped) {
+        throw new IllegalStateException("Ingestion lanes have already been stopped.");
+      }
+      lane.queue.put(latch::countDown);
+    }
+    latch.await();
+    checkFailure();
+  }
+
+  void shutdownNow() {
+    for (Lane lane : lanes) {
+      lane.stop();
+    }
+  }
+
+  private void checkFailure() {
+    Throwable t = failure.get();
+    if (t == null) {
+      return;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IllegalStateException(t.getMessage(), t);
+  }
+
+  /**
+   * A single consumer thread draining a bounded queue of tasks.
+   */
+  private class Lane implements Runnable {
+    private final BlockingQueue<Runnable> queue;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    private Lane(int queueCapacity) {
+      this.queue = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        Runnable task;
+        try {
+          task = queue.take();
+        } catch (InterruptedException e) {
+          // lane is being stopped
+          return;
+        }
+        // skip queued writes once any lane has failed, they will be replayed after the failure is surfaced.
+        // latch markers from drain() are still run so that callers waiting on them are released.
+        if (failure.get() != null && task instanceof Task) {
+          continue;
+        }
+        try {
+          task.run();
+        } catch (Throwable t) {
+          if (failure.compareAndSet(null, t)) {
+            LOG.error("Failed to write event to the staging area.", t);
+          }
+        }
+      }
+    }
+
+    private void stop() {
+      stopped = true;
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Marker for tasks submitted through {@link #submit(Object, Runnable)}, so they can be told apart from barriers.
+   */
+  private static final class Task implements Runnable {
+    private final Runnable delegate;
+
+    private Task(Runnable delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void run() {
+      delegate.run();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatus;
+import org.apache.twill.common.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the completion of BigQuery jobs without blocking a thread per job.
+ * <p>
+ * Every tick, the tracker hands each job whose next poll is due to a small pool of threads that reload it, and
+ * completes the future of the job once it is done. At most as many jobs as the pool has threads are reloaded at
+ * once, due jobs beyond that are reloaded on the next ticks. The poll interval of a job starts short, so that quick
+ * jobs are noticed soon after they finish, and backs off up to a maximum for long running jobs. Callers compose on
+ * the future of a job, so the number of threads polling BigQuery does not grow with the number of jobs in flight.
+ */
+class JobCompletionTracker implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(JobCompletionTracker.class);
+  private static final double BACKOFF_MULTIPLIER = 1.5d;
+  private static final int DEFAULT_MAX_CONCURRENT_RELOADS = 8;
+
+  private final long initialIntervalNanos;
+  private final long maxIntervalNanos;
+  private final int maxConcurrentReloads;
+  private final Queue<TrackedJob> jobs;
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService reloadExecutor;
+  private final AtomicInteger reloading;
+
+  /**
+   * @param initialIntervalMillis the interval between the first polls of a job, which is also the tick interval
+   * @param maxIntervalMillis the maximum interval between two polls of a job
+   */
+  JobCompletionTracker(long initialIntervalMillis, long maxIntervalMillis) {
+    this(initialIntervalMillis, maxIntervalMillis, DEFAULT_MAX_CONCURRENT_RELOADS);
+  }
+
+  /**
+   * @param initialIntervalMillis the interval between the first polls of a job, which is also the tick interval
+   * @param maxIntervalMillis the maximum interval between two polls of a job
+   * @param maxConcurrentReloads the maximum number of jobs that are reloaded at once
+   */
+  JobCompletionTracker(long initialIntervalMillis, long maxIntervalMillis, int maxConcurrentReloads) {
+    this.initialIntervalNanos = TimeUnit.MILLISECONDS.toNanos(initialIntervalMillis);
+    this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis);
+    this.maxConcurrentReloads = maxConcurrentReloads;
+    this.jobs = new ConcurrentLinkedQueue<>();
+    this.reloading = new AtomicInteger();
+    this.reloadExecutor = Executors.newFixedThreadPool(maxConcurrentReloads,
+                                                       Threads.createDaemonThreadFactory("bq-job-reload-%d"));
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("bq-job-poll-%d"));
+    scheduler.scheduleWithFixedDelay(this::poll, initialIntervalMillis, initialIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns a future that is completed with the job once it is done, with null if the job no longer exists, or
+   * exceptionally if it can not be reloaded. The future is completed on a thread of the tracker, so callers should
+   * not run blocking work in stages that are not async.
+   */
+  CompletableFuture<Job> track(Job job) {
+    if (isDone(job)) {
+      return CompletableFuture.completedFuture(job);
+    }
+    TrackedJob trackedJob = new TrackedJob(job, System.nanoTime() + initialIntervalNanos, initialIntervalNanos);
+    jobs.add(trackedJob);
+    if (scheduler.isShutdown()) {
+      // the tracker was closed concurrently, make sure the job is not left behind
+      jobs.remove(trackedJob);
+      trackedJob.future.cancel(false);
+    }
+    return trackedJob.future;
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    reloadExecutor.shutdownNow();
+    TrackedJob trackedJob;
+    while ((trackedJob = jobs.poll()) != null) {
+      trackedJob.future.completeExceptionally(new CancellationException("Job completion tracker was closed."));
+    }
+  }
+
+  private void poll() {
+    long now = System.nanoTime();
+    for (TrackedJob trackedJob : jobs) {
+      if (trackedJob.future.isDone()) {
+        // the caller gave up on the job
+        jobs.remove(trackedJob);
+        continue;
+      }
+      if (trackedJob.reloading || trackedJob.nextPollNanos - now > 0) {
+        continue;
+      }
+      if (reloading.get() >= maxConcurrentReloads) {
+        // the remaining due jobs are reloaded on the next tick
+        return;
+      }
+      trackedJob.reloading = true;
+      reloading.incrementAndGet();
+      try {
+        reloadExecutor.execute(() -> reload(trackedJob));
+      } catch (RejectedExecutionException e) {
+        // the tracker is being closed, which fails the job
+        reloading.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  private void reload(TrackedJob trackedJob) {
+    try {
+      Job reloaded = trackedJob.job.reload();
+      if (reloaded == null || isDone(reloaded)) {
+        jobs.remove(trackedJob);
+        trackedJob.future.complete(reloaded);
+        return;
+      }
+      trackedJob.interval = Math.min(maxIntervalNanos, (long) (trackedJob.interval * BACKOFF_MULTIPLIER));
+      trackedJob.nextPollNanos = System.nanoTime() + trackedJob.interval;
+    } catch (Exception e) {
+      LOG.debug("Failed to get the status of job {}", trackedJob.job.getJobId(), e);
+      jobs.remove(trackedJob);
+      trackedJob.future.completeExceptionally(e);
+    } finally {
+      reloading.decrementAndGet();
+      // written last, so that the next poll sees the updated poll time
+      trackedJob.reloading = false;
+    }
+  }
+
+  private static boolean isDone(Job job) {
+    JobStatus status = job.getStatus();
+    return status != null && status.getState() == JobStatus.State.DONE;
+  }
+
+  /**
+   * A job that is not done yet, with the time of its next poll.
+   */
+  private static final class TrackedJob {
+    private final Job job;
+    private final CompletableFuture<Job> future;
+    private long nextPollNanos;
+    private long interval;
+    // whether a reload of the job is in flight, so that it is not reloaded twice at once
+    private volatile boolean reloading;
+
+    private TrackedJob(Job job, long nextPollNanos, long interval) {
+      this.job = job;
+      this.future = new CompletableFuture<>();
+      this.nextPollNanos = nextPollNanos;
+      this.interval = interval;
+    }
+  }
+}
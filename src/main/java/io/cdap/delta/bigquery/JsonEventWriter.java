@@ -16,43 +16,77 @@
 
 package io.cdap.delta.bigquery;
 
-import com.google.gson.internal.bind.JsonTreeWriter;
-import io.cdap.cdap.api.data.format.StructuredRecord;
-import io.cdap.cdap.api.data.schema.Schema;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
 
 /**
- * EventWriter that writes records in JSON format.
+ * EventWriter that writes records in newline delimited JSON format.
+ * <p>
+ * Each record is serialized into a reused character buffer and only copied to the output once it has been written
+ * completely, so that a record that fails to serialize never leaves a partial line behind. The output is optionally
+ * gzip compressed, which BigQuery loads natively.
  */
 public class JsonEventWriter implements EventWriter {
-  private final BufferedWriter jsonWriter;
+  private final Writer writer;
+  private final CharArrayWriter recordBuffer;
+  // table name and record column of the shared staging table each record is nested in, null if records are top level
+  private final String table;
+  private final String recordColumn;
+  private final StagingRecordJson recordJson;
 
-  JsonEventWriter(OutputStream outputStream) {
-    this.jsonWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+  /**
+   * @param bufferSize size of the character and compression buffers in front of the output stream
+   * @param gzip whether to gzip compress the output
+   */
+  JsonEventWriter(OutputStream outputStream, int bufferSize, boolean gzip) throws IOException {
+    this(outputStream, bufferSize, gzip, null, null);
+  }
+
+  /**
+   * @param bufferSize size of the character and compression buffers in front of the output stream
+   * @param gzip whether to gzip compress the output
+   * @param table if not null, every record is nested in the given column of a row of a shared staging table,
+   *   next to a {@link Constants#TABLE} column with this table name
+   * @param recordColumn the column records are nested in, only used if the table is not null
+   */
+  JsonEventWriter(OutputStream outputStream, int bufferSize, boolean gzip, @Nullable String table,
+                  @Nullable String recordColumn) throws IOException {
+    OutputStream out = gzip ? new GZIPOutputStream(outputStream, bufferSize) : outputStream;
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), bufferSize);
+    this.recordBuffer = new CharArrayWriter();
+    this.recordJson = new StagingRecordJson();
+    this.table = table;
+    this.recordColumn = recordColumn;
   }
 
   @Override
-  public void write(StructuredRecord record) throws IOException {
-    try (JsonTreeWriter writer = new JsonTreeWriter()) {
-      writer.beginObject();
-      for (Schema.Field recordField : Objects.requireNonNull(record.getSchema().getFields())) {
-        StructuredRecordToJson.write(writer, recordField.getName(), record.get(recordField.getName()),
-                                     recordField.getSchema());
-      }
-      writer.endObject();
-      jsonWriter.write(writer.get().getAsJsonObject().toString());
-      jsonWriter.newLine();
+  public void write(StagingRecord record) throws IOException {
+    recordBuffer.reset();
+    JsonWriter jsonWriter = new JsonWriter(recordBuffer);
+    if (table != null) {
+      jsonWriter.beginObject();
+      jsonWriter.name(Constants.TABLE).value(table);
+      jsonWriter.name(recordColumn);
+    }
+    recordJson.write(jsonWriter, record);
+    if (table != null) {
+      jsonWriter.endObject();
     }
+    recordBuffer.write('\n');
+    recordBuffer.writeTo(writer);
   }
 
   @Override
   public void close() throws IOException {
-    jsonWriter.close();
+    writer.close();
   }
 }
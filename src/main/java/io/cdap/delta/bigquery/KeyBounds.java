@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the smallest and largest value of key and partition columns in the rows of a batch that can match rows of
+ * the target table, which are turned into range filters on the target table of a merge, so that BigQuery can prune
+ * the blocks and partitions of the target.
+ * <p>
+ * Only integer, string, date and timestamp columns are tracked. Their order matches the order BigQuery compares them
+ * in.
+ */
+class KeyBounds {
+  // the tracked columns and their types, which determine how their bounds are written as literals
+  private final Map<String, ColumnType> columns;
+  // bounds of each column, strings for string columns and longs for all others
+  private final Map<String, Object> min;
+  private final Map<String, Object> max;
+  // columns that were null in some row, which can not be restricted to a range
+  private final Set<String> nullColumns;
+  private boolean empty;
+
+  /**
+   * @param schema the schema of the rows
+   * @param columns the columns to track, columns of types that can not be tracked are skipped
+   */
+  KeyBounds(Schema schema, List<String> columns) {
+    this.columns = new LinkedHashMap<>();
+    for (String column : columns) {
+      Schema.Field field = schema.getField(column);
+      ColumnType type = field == null ? null : getColumnType(field.getSchema());
+      if (type != null) {
+        this.columns.put(column, type);
+      }
+    }
+    this.min = new HashMap<>();
+    this.max = new HashMap<>();
+    this.nullColumns = new HashSet<>();
+    this.empty = true;
+  }
+
+  /**
+   * Widens the bounds to include the key of the given row.
+   */
+  void add(StructuredRecord row) {
+    empty = false;
+    for (String column : columns.keySet()) {
+      Object value = row.get(column);
+      if (value == null) {
+        nullColumns.add(column);
+        continue;
+      }
+      if (value instanceof Integer) {
+        value = ((Integer) value).longValue();
+      }
+      Object currentMin = min.get(column);
+      if (currentMin == null || compare(value, currentMin) < 0) {
+        min.put(column, value);
+      }
+      Object currentMax = max.get(column);
+      if (currentMax == null || compare(value, currentMax) > 0) {
+        max.put(column, value);
+      }
+    }
+  }
+
+  /**
+   * Returns a condition that restricts the given columns of a table to the bounds, prefixed with AND, or an empty
+   * string if none of the columns can be restricted. If no row was added, no row of the table can match, and the
+   * condition is always false.
+   *
+   * @param alias the alias of the table in the query
+   * @param keyColumns the columns to restrict, columns that are not tracked are skipped
+   */
+  String getCondition(String alias, List<String> keyColumns) {
+    if (empty) {
+      return " AND FALSE";
+    }
+    List<String> conditions = new ArrayList<>();
+    for (String column : keyColumns) {
+      Object lower = min.get(column);
+      if (lower != null && !nullColumns.contains(column)) {
+        ColumnType type = columns.get(column);
+        conditions.add(String.format("%s.`%s` BETWEEN %s AND %s", alias, column, type.toLiteral(lower),
+                                     type.toLiteral(max.get(column))));
+      }
+    }
+    return conditions.isEmpty() ? "" : " AND " + String.join(" AND ", conditions);
+  }
+
+  private static ColumnType getColumnType(Schema schema) {
+    Schema nonNullable = schema.isNullable() ? schema.getNonNullable() : schema;
+    Schema.LogicalType logicalType = nonNullable.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return ColumnType.DATE;
+        case TIMESTAMP_MILLIS:
+          return ColumnType.TIMESTAMP_MILLIS;
+        case TIMESTAMP_MICROS:
+          return ColumnType.TIMESTAMP_MICROS;
+        default:
+          return null;
+      }
+    }
+    switch (nonNullable.getType()) {
+      case INT:
+      case LONG:
+        return ColumnType.INTEGER;
+      case STRING:
+        return ColumnType.STRING;
+      default:
+        return null;
+    }
+  }
+
+  private static int compare(Object a, Object b) {
+    if (a instanceof Long) {
+      return Long.compare((Long) a, (Long) b);
+    }
+    // BigQuery orders strings by code points, which differs from the order of their UTF-16 chars
+    String x = (String) a;
+    String y = (String) b;
+    int i = 0;
+    int j = 0;
+    while (i < x.length() && j < y.length()) {
+      int c = x.codePointAt(i);
+      int d = y.codePointAt(j);
+      if (c != d) {
+        return Integer.compare(c, d);
+      }
+      i += Character.charCount(c);
+      j += Character.charCount(d);
+    }
+    return Integer.compare(x.length() - i, y.length() - j);
+  }
+
+  /**
+   * Types of the tracked columns.
+   */
+  private enum ColumnType {
+    INTEGER,
+    STRING,
+    // days since the epoch
+    DATE,
+    TIMESTAMP_MILLIS,
+    TIMESTAMP_MICROS;
+
+    private String toLiteral(Object value) {
+      switch (this) {
+        case STRING:
+          return "'" + ((String) value).replace("\\", "\\\\").replace("'", "\\'").replace("\n", "\\n")
+            .replace("\r", "\\r") + "'";
+        case DATE:
+          return "DATE_FROM_UNIX_DATE(" + value + ")";
+        case TIMESTAMP_MILLIS:
+          return "TIMESTAMP_MILLIS(" + value + ")";
+        case TIMESTAMP_MICROS:
+          return "TIMESTAMP_MICROS(" + value + ")";
+        default:
+          return value.toString();
+      }
+    }
+  }
+}
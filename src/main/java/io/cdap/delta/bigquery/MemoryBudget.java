@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts for the memory held by staging objects that are being written or uploaded.
+ * <p>
+ * Reserving memory never blocks, since it happens while events are written and the memory is already in use by
+ * then. Instead, callers that produce new events check {@link #isExhausted()} and wait with
+ * {@link #awaitAvailable(long, TimeUnit)} until enough memory is released.
+ */
+class MemoryBudget {
+  private final long limit;
+  private long used;
+
+  MemoryBudget(long limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Memory budget must be positive.");
+    }
+    this.limit = limit;
+  }
+
+  long getLimit() {
+    return limit;
+  }
+
+  synchronized long getUsed() {
+    return used;
+  }
+
+  synchronized void reserve(long bytes) {
+    used += bytes;
+  }
+
+  synchronized void release(long bytes) {
+    used -= bytes;
+    if (used < limit) {
+      notifyAll();
+    }
+  }
+
+  synchronized boolean isExhausted() {
+    return used >= limit;
+  }
+
+  /**
+   * Waits until the memory in use drops below the limit, or the timeout elapses.
+   *
+   * @return true if memory is available
+   */
+  synchronized boolean awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (used >= limit) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+}
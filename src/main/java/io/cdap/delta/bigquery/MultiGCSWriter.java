@@ -16,13 +16,17 @@
 
 package io.cdap.delta.bigquery;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.bigquery.TableId;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.CountingOutputStream;
 import com.google.gson.Gson;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.api.metrics.Metrics;
 import io.cdap.delta.api.DMLEvent;
 import io.cdap.delta.api.DMLOperation;
 import io.cdap.delta.api.DeltaTargetContext;
@@ -30,163 +34,353 @@ import io.cdap.delta.api.ReplicationError;
 import io.cdap.delta.api.Sequenced;
 import io.cdap.delta.api.SortKey;
 import io.cdap.delta.api.SourceProperties;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /**
  * Writes to multiple GCS files.
+ * <p>
+ * Events for different tables can be written concurrently. Events for the same table must be written by one thread
+ * at a time in sequence order, which the caller guarantees by routing each table to a single ingestion lane.
+ * Cutting a batch waits for in progress writes to finish and swaps out the objects of the batch, which are then
+ * closed in the background while new events are written to the next batch.
  */
 public class MultiGCSWriter {
   private static final Logger LOG = LoggerFactory.getLogger(MultiGCSWriter.class);
   private static final Gson GSON = new Gson();
+  // format of the staging objects, avro, json or parquet
+  private static final String STAGING_FORMAT = "gcp.bigquery.staging.format";
+  // codec of the Avro staging objects, one of null, deflate or snappy
+  private static final String STAGING_AVRO_CODEC = "gcp.bigquery.staging.avro.codec";
+  // deflate level between 1 and 9
+  private static final String STAGING_AVRO_CODEC_LEVEL = "gcp.bigquery.staging.avro.codec.level";
+  // approximate number of uncompressed bytes per Avro data block, each block is compressed separately
+  private static final String STAGING_AVRO_SYNC_INTERVAL = "gcp.bigquery.staging.avro.sync.interval";
+  private static final int DEFAULT_DEFLATE_LEVEL = 6;
+  // size of the buffers in front of JSON staging objects
+  private static final String STAGING_JSON_BUFFER_SIZE = "gcp.bigquery.staging.json.buffer.size";
+  // whether to gzip newline delimited JSON staging objects
+  private static final String STAGING_JSON_GZIP = "gcp.bigquery.staging.json.gzip";
+  private static final int DEFAULT_JSON_BUFFER_SIZE = 64 * 1024;
+  // size of Parquet row groups, each open staging object buffers up to one row group in memory as rows are written
+  private static final String STAGING_PARQUET_ROW_GROUP_SIZE = "gcp.bigquery.staging.parquet.row.group.size";
+  private static final int DEFAULT_PARQUET_ROW_GROUP_SIZE = 8 * 1024 * 1024;
+  // number of events after which a table's batch is cut and flushed early, disabled if not positive
+  private static final String FLUSH_TABLE_MAX_EVENTS = "gcp.bigquery.flush.table.max.events";
+  // number of bytes written to GCS after which a table's batch is cut and flushed early, disabled if not positive
+  private static final String FLUSH_TABLE_MAX_BYTES = "gcp.bigquery.flush.table.max.bytes";
+  // size of the chunks uploaded to GCS, each open staging object buffers up to one chunk in memory
+  private static final String STAGING_UPLOAD_CHUNK_SIZE = "gcp.bigquery.staging.upload.chunk.size";
+  private static final int DEFAULT_UPLOAD_CHUNK_SIZE = 15 * 1024 * 1024;
+  // size of the pooled buffers staging objects are buffered in until a chunk can be uploaded
+  private static final String STAGING_BUFFER_SIZE = "gcp.bigquery.staging.buffer.size";
+  private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  // size of the first buffer of a staging object, which doubles up to the pooled buffer size before any is leased
+  private static final String STAGING_BUFFER_INITIAL_SIZE = "gcp.bigquery.staging.buffer.initial.size";
+  private static final int DEFAULT_BUFFER_INITIAL_SIZE = 8 * 1024;
+  // bytes of direct memory the pooled buffers can use, further buffers are allocated on the heap
+  private static final String STAGING_BUFFER_POOL_SIZE = "gcp.bigquery.staging.buffer.pool.size";
+  // approximate number of bytes of rows appended to a pending write stream in one request
+  private static final String STAGING_APPEND_SIZE = "gcp.bigquery.staging.write.api.append.size";
+  private static final int DEFAULT_APPEND_SIZE = 1024 * 1024;
+  // whether the events of merged batches of ordered sources are folded into the net change of each row
+  private static final String STAGING_COMPACTION = "gcp.bigquery.staging.compaction";
+  // number of rows a compacted batch holds after which it is cut and flushed early
+  private static final String STAGING_COMPACTION_MAX_KEYS = "gcp.bigquery.staging.compaction.max.keys";
+  private static final int DEFAULT_COMPACTION_MAX_KEYS = 100000;
   private final Storage storage;
   private final String bucket;
   private final String baseObjectName;
   private final Map<Key, TableObject> objects;
   private final Map<Schema, org.apache.avro.Schema> schemaMap;
   private final DeltaTargetContext context;
-  private final ExecutorService executorService;
+  private final Executor executor;
   private final boolean rowIdSupported;
   private final SourceProperties.Ordering eventOrdering;
+  private final ReadWriteLock flushLock;
+  private final StagingFormat stagingFormat;
+  private final CodecFactory avroCodec;
+  private final int avroSyncInterval;
+  private final int jsonBufferSize;
+  private final boolean jsonGzip;
+  private final int parquetRowGroupSize;
+  private final long maxTableEvents;
+  private final long maxTableBytes;
+  private final AtomicLong lastBatchId;
+  private final int uploadChunkSize;
+  private final int initialBufferSize;
+  private final MemoryBudget memoryBudget;
+  private final BufferPool bufferPool;
+  private final boolean sharedStaging;
+  private final boolean streamed;
+  private final int appendSize;
+  private final boolean compaction;
+  private final int maxCompactionKeys;
 
   /**
-   * GCS blob type can be SNAPSHOT when all records in the blob represents snapshot or STREAMING
-   * when all records in the blob are part of streaming.
+   * @param executor the executor that objects are closed and uploaded on when they are cut
+   * @param sharedStaging whether batches that are merged through a staging table are loaded into a staging table
+   *   shared by all tables of their dataset. These batches are always written as newline delimited JSON with each
+   *   record nested in the column of its table, since a single load job can read such objects for any number of
+   *   tables into one table.
+   * @param streamed whether batches that are merged through a staging table are kept in memory as rows that are
+   *   appended to a pending write stream of the staging table once the batch is staged, instead of being written
+   *   to GCS
    */
-  public enum BlobType {
-    SNAPSHOT,
-    STREAMING
-  }
-
-  public MultiGCSWriter(Storage storage, String bucket, String baseObjectName,
-                        DeltaTargetContext context, ExecutorService executorService) {
+  public MultiGCSWriter(Storage storage, String bucket, String baseObjectName, DeltaTargetContext context,
+                        Executor executor, MemoryBudget memoryBudget, boolean sharedStaging, boolean streamed) {
     this.storage = storage;
     this.bucket = bucket;
     this.baseObjectName = baseObjectName;
-    this.objects = new HashMap<>();
-    this.schemaMap = new HashMap<>();
+    this.objects = new ConcurrentHashMap<>();
+    this.schemaMap = new ConcurrentHashMap<>();
     this.context = context;
-    this.executorService = executorService;
+    this.executor = executor;
     this.rowIdSupported = context.getSourceProperties() != null && context.getSourceProperties().isRowIdSupported();
     this.eventOrdering = context.getSourceProperties() == null ? SourceProperties.Ordering.ORDERED :
       context.getSourceProperties().getOrdering();
+    this.flushLock = new ReentrantReadWriteLock();
+    this.lastBatchId = new AtomicLong();
+    this.memoryBudget = memoryBudget;
+    this.sharedStaging = sharedStaging;
+    this.streamed = streamed;
+    String appendSizeStr = context.getRuntimeArguments().get(STAGING_APPEND_SIZE);
+    this.appendSize = appendSizeStr == null ? DEFAULT_APPEND_SIZE : Integer.parseInt(appendSizeStr);
+    // the net change of a row can only be computed if events are ordered
+    this.compaction = Boolean.parseBoolean(context.getRuntimeArguments().get(STAGING_COMPACTION))
+      && eventOrdering == SourceProperties.Ordering.ORDERED;
+    String maxCompactionKeysStr = context.getRuntimeArguments().get(STAGING_COMPACTION_MAX_KEYS);
+    this.maxCompactionKeys = maxCompactionKeysStr == null ?
+      DEFAULT_COMPACTION_MAX_KEYS : Integer.parseInt(maxCompactionKeysStr);
+    this.stagingFormat = getStagingFormat(context.getRuntimeArguments().get(STAGING_FORMAT),
+                                          MultiGCSWriter.class.getClassLoader());
+    this.avroCodec = getAvroCodec(context.getRuntimeArguments().get(STAGING_AVRO_CODEC),
+                                  context.getRuntimeArguments().get(STAGING_AVRO_CODEC_LEVEL));
+    String syncIntervalStr = context.getRuntimeArguments().get(STAGING_AVRO_SYNC_INTERVAL);
+    this.avroSyncInterval = syncIntervalStr == null ? 0 : Integer.parseInt(syncIntervalStr);
+    String jsonBufferSizeStr = context.getRuntimeArguments().get(STAGING_JSON_BUFFER_SIZE);
+    this.jsonBufferSize = jsonBufferSizeStr == null ? DEFAULT_JSON_BUFFER_SIZE : Integer.parseInt(jsonBufferSizeStr);
+    this.jsonGzip = Boolean.parseBoolean(context.getRuntimeArguments().get(STAGING_JSON_GZIP));
+    String rowGroupSizeStr = context.getRuntimeArguments().get(STAGING_PARQUET_ROW_GROUP_SIZE);
+    this.parquetRowGroupSize = rowGroupSizeStr == null ?
+      DEFAULT_PARQUET_ROW_GROUP_SIZE : Integer.parseInt(rowGroupSizeStr);
+    String maxTableEventsStr = context.getRuntimeArguments().get(FLUSH_TABLE_MAX_EVENTS);
+    this.maxTableEvents = maxTableEventsStr == null ? 0L : Long.parseLong(maxTableEventsStr);
+    String maxTableBytesStr = context.getRuntimeArguments().get(FLUSH_TABLE_MAX_BYTES);
+    this.maxTableBytes = maxTableBytesStr == null ? 0L : Long.parseLong(maxTableBytesStr);
+    String uploadChunkSizeStr = context.getRuntimeArguments().get(STAGING_UPLOAD_CHUNK_SIZE);
+    this.uploadChunkSize = uploadChunkSizeStr == null ?
+      DEFAULT_UPLOAD_CHUNK_SIZE : Integer.parseInt(uploadChunkSizeStr);
+    String bufferSizeStr = context.getRuntimeArguments().get(STAGING_BUFFER_SIZE);
+    int bufferSize = bufferSizeStr == null ? DEFAULT_BUFFER_SIZE : Integer.parseInt(bufferSizeStr);
+    String initialBufferSizeStr = context.getRuntimeArguments().get(STAGING_BUFFER_INITIAL_SIZE);
+    this.initialBufferSize = initialBufferSizeStr == null ?
+      DEFAULT_BUFFER_INITIAL_SIZE : Integer.parseInt(initialBufferSizeStr);
+    String bufferPoolSizeStr = context.getRuntimeArguments().get(STAGING_BUFFER_POOL_SIZE);
+    // by default the pool can use an eighth of the max heap size. The default direct memory limit is the max heap
+    // size, so this leaves most of it to the GCS and BigQuery clients.
+    long bufferPoolSize = bufferPoolSizeStr == null ?
+      Runtime.getRuntime().maxMemory() / 8 : Long.parseLong(bufferPoolSizeStr);
+    this.bufferPool = new BufferPool(bufferSize, (int) Math.min(bufferPoolSize / bufferSize, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Returns the configured format of staging objects. Parquet falls back to Avro if the Hadoop classes it is written
+   * with can not be loaded, since Hadoop is only on the classpath if the worker provides it.
+   */
+  @VisibleForTesting
+  static StagingFormat getStagingFormat(@Nullable String formatStr, ClassLoader classLoader) {
+    StagingFormat format = formatStr == null ? StagingFormat.AVRO : StagingFormat.valueOf(formatStr.toUpperCase());
+    if (format == StagingFormat.PARQUET && !ParquetEventWriter.isAvailable(classLoader)) {
+      LOG.warn("Hadoop is not available, staging objects will be written as Avro instead of Parquet.");
+      return StagingFormat.AVRO;
+    }
+    return format;
+  }
+
+  /**
+   * Returns the codec for Avro staging objects, or null if they should not be compressed.
+   * BigQuery reads deflate and snappy compressed Avro data blocks natively.
+   */
+  @Nullable
+  private static CodecFactory getAvroCodec(@Nullable String codecName, @Nullable String levelStr) {
+    if (codecName == null || codecName.isEmpty()) {
+      return null;
+    }
+    switch (codecName.toLowerCase()) {
+      case "null":
+        return null;
+      case "deflate":
+        int level = levelStr == null ? DEFAULT_DEFLATE_LEVEL : Integer.parseInt(levelStr);
+        if (level < 1 || level > 9) {
+          throw new IllegalArgumentException(String.format(
+            "Invalid value '%s' for '%s'. The deflate level must be between 1 and 9.", levelStr,
+            STAGING_AVRO_CODEC_LEVEL));
+        }
+        return CodecFactory.deflateCodec(level);
+      case "snappy":
+        return CodecFactory.snappyCodec();
+      default:
+        throw new IllegalArgumentException(String.format(
+          "Invalid value '%s' for '%s'. Supported codecs are null, deflate and snappy.", codecName,
+          STAGING_AVRO_CODEC));
+    }
   }
 
-  public synchronized void write(Sequenced<DMLEvent> sequencedEvent) {
+  /**
+   * Writes an event to the object of its table.
+   *
+   * @return true if this event made the table's current batch reach the configured event or byte threshold.
+   *   This is returned only once per batch, the caller is expected to cut the table with {@link #cut(Collection)}.
+   */
+  public boolean write(Sequenced<DMLEvent> sequencedEvent) {
+    return write(sequencedEvent, null, null);
+  }
+
+  /**
+   * Writes an event to the object of its table like {@link #write(Sequenced)}.
+   *
+   * @param primaryKeys the primary key of the table, used to compact its batches if the source has no row ids, or
+   *   null if it is not known yet
+   * @param partitionColumn the column the target table is partitioned on, or null if it is not partitioned
+   */
+  public boolean write(Sequenced<DMLEvent> sequencedEvent, @Nullable List<String> primaryKeys,
+                       @Nullable String partitionColumn) {
     DMLEvent event = sequencedEvent.getEvent();
     DMLOperation dmlOperation = event.getOperation();
     Key key = new Key(dmlOperation.getDatabaseName(), dmlOperation.getTableName(), event.isSnapshot());
-    TableObject tableObject = objects.computeIfAbsent(key, t -> new TableObject(dmlOperation.getDatabaseName(),
-                                                                                dmlOperation.getSchemaName(),
-                                                                                dmlOperation.getTableName(),
-                                                                                event.isSnapshot(),
-                                                                                isJsonFormat(event.getRow())));
+    // writes only share the lock with each other, so that tables are written in parallel but never during a flush
+    flushLock.readLock().lock();
     try {
-      tableObject.writeEvent(sequencedEvent);
+      TableObject tableObject = objects.computeIfAbsent(key, t -> new TableObject(dmlOperation.getDatabaseName(),
+                                                                                  dmlOperation.getSchemaName(),
+                                                                                  dmlOperation.getTableName(),
+                                                                                  event.isSnapshot(),
+                                                                                  stagingFormat, primaryKeys,
+                                                                                  partitionColumn));
+      // uncontended when callers route a table to a single thread, but keeps the object consistent regardless
+      synchronized (tableObject) {
+        tableObject.writeEvent(sequencedEvent);
+        tableObject.updateReservedMemory();
+        return tableObject.checkThresholds();
+      }
     } catch (IOException e) {
       // this should never happen, as it's writing to an in memory byte[]
       throw new IllegalStateException(String.format("Unable to write event %s to bytes.", event), e);
+    } finally {
+      flushLock.readLock().unlock();
     }
   }
 
-  private boolean isJsonFormat(StructuredRecord record) {
-    List<Schema.Field> fields = record.getSchema().getFields();
-    if (fields == null) {
-      return false;
-    }
-    for (Schema.Field field : fields) {
-      boolean isNullable = field.getSchema().isNullable();
-      Schema.LogicalType logicalType
-        = isNullable ? field.getSchema().getNonNullable().getLogicalType() : field.getSchema().getLogicalType();
-      if (logicalType != null && logicalType.equals(Schema.LogicalType.DATETIME)) {
-        return true;
-      }
-    }
-    return false;
+  /**
+   * Cuts the current batch of every table. The objects of the batches are swapped out, so that later events start
+   * new batches, and are closed in the background. Writes are only blocked while the objects are swapped out, not
+   * while they are uploaded.
+   *
+   * @return the blobs being written for each table, keyed by dataset and table name. If a table has both a snapshot
+   *   and a streaming batch, the snapshot batch comes first.
+   */
+  public synchronized Map<TableId, List<CompletableFuture<TableBlob>>> cut() {
+    return cut(key -> true);
   }
 
-  public synchronized Map<BlobType, Collection<TableBlob>> flush() throws IOException, InterruptedException {
-    List<Future<TableBlob>> writeFutures = new ArrayList<>(objects.size());
-    Map<BlobType, Collection<TableBlob>> result = new HashMap<>();
-    result.put(BlobType.SNAPSHOT, new ArrayList<>());
-    result.put(BlobType.STREAMING, new ArrayList<>());
-    for (Map.Entry<Key, TableObject> entry : objects.entrySet()) {
-      TableObject tableObject = entry.getValue();
-      writeFutures.add(executorService.submit(() -> {
-        LOG.debug("Writing batch {} of {} events into GCS for table {}.{}", tableObject.batchId, tableObject.numEvents,
-                  tableObject.dataset, tableObject.table);
-        try {
-          tableObject.close();
-        } catch (IOException e) {
-          String errMsg = String.format("Error writing batch of %d changes for %s.%s to GCS",
-                                        tableObject.numEvents, tableObject.dataset, tableObject.table);
-          context.setTableError(tableObject.dataset, tableObject.table,
-                                new ReplicationError(errMsg, e.getStackTrace()));
-          throw new IOException(errMsg, e);
-        }
-        LOG.debug("Wrote batch {} of {} events into GCS for table {}.{}", tableObject.batchId, tableObject.numEvents,
-                  tableObject.dataset, tableObject.table);
-
-        Blob blob = storage.get(tableObject.blobId);
-        return new TableBlob(tableObject.dataset, tableObject.sourceDbSchemaName, tableObject.table,
-                             tableObject.targetSchema, tableObject.stagingSchema, tableObject.batchId,
-                             tableObject.numEvents, blob, tableObject.snapshotOnly, tableObject.jsonFormat);
-      }));
-    }
+  /**
+   * Cuts the current batches of the given tables like {@link #cut()}, leaving the batches of all other tables open.
+   *
+   * @param tables the tables to cut, matched by dataset and table name
+   */
+  public synchronized Map<TableId, List<CompletableFuture<TableBlob>>> cut(Collection<TableId> tables) {
+    return cut(key -> tables.stream().anyMatch(tableId -> tableId.getDataset().equals(key.database)
+      && tableId.getTable().equals(key.table)));
+  }
 
-    IOException error = null;
-    for (Future<TableBlob> writeFuture : writeFutures) {
-      try {
-        TableBlob writtenObject = getWriteFuture(writeFuture);
-        Collection<TableBlob> collection = writtenObject.isSnapshotOnly() ? result.get(BlobType.SNAPSHOT) :
-          result.get(BlobType.STREAMING);
-        collection.add(writtenObject);
-      } catch (InterruptedException e) {
-        objects.clear();
-        throw e;
-      } catch (IOException e) {
-        if (error == null) {
-          error = e;
-        } else {
-          error.addSuppressed(e);
+  private Map<TableId, List<CompletableFuture<TableBlob>>> cut(Predicate<Key> filter) {
+    List<TableObject> tableObjects = new ArrayList<>();
+    flushLock.writeLock().lock();
+    try {
+      Iterator<Map.Entry<Key, TableObject>> iterator = objects.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Key, TableObject> entry = iterator.next();
+        if (filter.test(entry.getKey())) {
+          tableObjects.add(entry.getValue());
+          iterator.remove();
         }
       }
+    } finally {
+      flushLock.writeLock().unlock();
     }
 
-    objects.clear();
-    if (error != null) {
-      throw error;
+    // snapshot batches are loaded directly into the target, before changes streamed after them are merged
+    tableObjects.sort(Comparator.comparing(tableObject -> !tableObject.snapshotOnly));
+    Map<TableId, List<CompletableFuture<TableBlob>>> result = new HashMap<>();
+    for (TableObject tableObject : tableObjects) {
+      result.computeIfAbsent(TableId.of(tableObject.dataset, tableObject.table), t -> new ArrayList<>())
+        .add(CompletableFuture.supplyAsync(() -> writeBlob(tableObject), executor));
     }
     return result;
   }
 
-  private static TableBlob getWriteFuture(Future<TableBlob> writeFuture) throws IOException, InterruptedException {
+  private TableBlob writeBlob(TableObject tableObject) {
+    String sink = tableObject.streamed ? "memory" : "GCS";
+    LOG.debug("Writing batch {} of {} events into {} for table {}.{}", tableObject.batchId, tableObject.numEvents,
+              sink, tableObject.dataset, tableObject.table);
     try {
-      return writeFuture.get();
-    } catch (ExecutionException e) {
-      Throwable cause = e.getCause();
-      if (cause instanceof IOException) {
-        throw (IOException) cause;
-      }
-      if (cause instanceof InterruptedException) {
-        throw (InterruptedException) cause;
-      }
-      throw new RuntimeException(cause.getMessage(), cause);
+      tableObject.close();
+    } catch (IOException e) {
+      String errMsg = String.format("Error writing batch of %d changes for %s.%s to %s",
+                                    tableObject.numEvents, tableObject.dataset, tableObject.table, sink);
+      context.setTableError(tableObject.dataset, tableObject.table,
+                            new ReplicationError(errMsg, e.getStackTrace()));
+      throw new CompletionException(new IOException(errMsg, e));
+    } finally {
+      // the buffers of the object are no longer referenced once it is closed, even if closing failed
+      memoryBudget.release(tableObject.reservedMemory);
+    }
+    if (tableObject.streamRows != null) {
+      // the rows are held until they are appended to a write stream of the staging table
+      tableObject.streamRows.reserve(memoryBudget);
+    }
+    long bytesWritten = tableObject.getBytesWritten();
+    LOG.debug("Wrote batch {} of {} events ({} bytes) into {} for table {}.{}", tableObject.batchId,
+              tableObject.numEvents, bytesWritten, sink, tableObject.dataset, tableObject.table);
+    if (!tableObject.streamed) {
+      countMetric("gcs.bytes.written", bytesWritten);
+      countMetric(String.format("gcs.bytes.written.%s.%s", tableObject.dataset, tableObject.table), bytesWritten);
+    }
+
+    return new TableBlob(tableObject.dataset, tableObject.sourceDbSchemaName, tableObject.table,
+                         tableObject.targetSchema, tableObject.stagingSchema, tableObject.batchId,
+                         tableObject.numEvents, tableObject.maxSequenceNum, tableObject.blobId,
+                         tableObject.streamRows, tableObject.snapshotOnly, tableObject.format,
+                         tableObject.compactor != null, tableObject.keyBounds);
+  }
+
+  private void countMetric(String name, long delta) {
+    Metrics metrics = context.getMetrics();
+    if (metrics != null) {
+      metrics.count(name, (int) Math.min(delta, Integer.MAX_VALUE));
     }
   }
 
@@ -222,70 +416,233 @@ public class MultiGCSWriter {
   }
 
   /**
-   * Content to write to a GCS Object for a BigQuery table.
+   * Content to write to a GCS Object, or to a pending write stream of a staging table, for a BigQuery table.
    */
   private class TableObject {
-    private final OutputStream outputStream;
+    // counts the bytes uploaded to GCS, after compression, null if the batch is appended to a write stream
+    private final CountingOutputStream outputStream;
+    private final BufferedUploadStream uploadStream;
+    private final boolean streamed;
     private final long batchId;
     private final String dataset;
     private final String table;
     private final String sourceDbSchemaName;
     private final BlobId blobId;
     private final boolean snapshotOnly;
-    private final boolean jsonFormat;
+    private StagingFormat format;
     private int numEvents;
+    private long maxSequenceNum;
     private Schema stagingSchema;
     private Schema targetSchema;
     private EventWriter eventWriter;
+    private StagingRecord stagingRecord;
+    private boolean thresholdReached;
+    // approximate memory held by the buffers of the event writer if it is allocated up front, Parquet row groups are
+    // counted as they grow
+    private long writerBufferSize;
+    private long reservedMemory;
+    // the rows of the batch if it is appended to a write stream once it is staged, null if it is written to GCS
+    private final WriteStreamRows streamRows;
+    // holds the net change of each row until the batch is closed, null if events are written as they come
+    private final EventCompactor compactor;
+    private final List<String> primaryKeys;
+    private final String partitionColumn;
+    // bounds of the primary keys and the partition column of the rows the staged events are matched with in the
+    // target, null if they are not tracked
+    private KeyBounds keyBounds;
 
     private TableObject(String dataset, @Nullable String sourceDbSchemaName, String table, boolean snapshotOnly,
-                        boolean jsonFormat) {
+                        StagingFormat format, @Nullable List<String> primaryKeys, @Nullable String partitionColumn) {
       this.dataset = dataset;
       this.sourceDbSchemaName = sourceDbSchemaName;
       this.table = table;
       this.numEvents = 0;
       this.snapshotOnly = snapshotOnly;
-      batchId = System.currentTimeMillis();
+      // batches of a table can be cut within the same millisecond, while their ids have to be unique
+      batchId = lastBatchId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+      this.primaryKeys = primaryKeys;
+      this.partitionColumn = partitionColumn;
+      this.compactor = compaction && !snapshotOnly && (rowIdSupported || primaryKeys != null) ?
+        new EventCompactor(rowIdSupported ? null : primaryKeys) : null;
+      // snapshot batches are loaded directly into their target table, so only merged batches are streamed or shared
+      this.streamed = MultiGCSWriter.this.streamed && !snapshotOnly;
+      if (streamed) {
+        blobId = null;
+        uploadStream = null;
+        outputStream = null;
+        streamRows = new WriteStreamRows();
+        this.format = StagingFormat.JSON;
+        return;
+      }
+      streamRows = null;
       String objectName = String.format("%s%s/%s/%d", baseObjectName, dataset, table, batchId);
       blobId = BlobId.of(bucket, objectName);
       BlobInfo blobInfo = BlobInfo.newBuilder(blobId).build();
       if (LOG.isDebugEnabled()) {
         LOG.debug("Writing staging records to GCS file {}", objectName);
       }
-      outputStream = Channels.newOutputStream(storage.writer(blobInfo));
-      this.jsonFormat = jsonFormat;
+      // the upload session is only created once the object outgrows a chunk
+      BufferedUploadStream.Destination destination = new BufferedUploadStream.Destination() {
+        @Override
+        public WriteChannel openChannel() {
+          WriteChannel writeChannel = storage.writer(blobInfo);
+          writeChannel.setChunkSize(uploadChunkSize);
+          return writeChannel;
+        }
+
+        @Override
+        public void create(byte[] content) {
+          storage.create(blobInfo, content);
+        }
+      };
+      uploadStream = new BufferedUploadStream(bufferPool, uploadChunkSize, initialBufferSize, destination);
+      outputStream = new CountingOutputStream(uploadStream);
+      this.format = sharedStaging && !snapshotOnly ? StagingFormat.JSON : format;
     }
 
     private void writeEvent(Sequenced<DMLEvent> sequencedEvent) throws IOException {
       DMLEvent event = sequencedEvent.getEvent();
       StructuredRecord row = event.getRow();
       if (eventWriter == null) {
-        targetSchema = getTargetSchema(row.getSchema(), event);
-        stagingSchema = getStagingSchema(row.getSchema(), event);
+        RecordProjection targetProjection = getTargetProjection(row.getSchema(), event);
+        RecordProjection stagingProjection = getStagingProjection(row.getSchema(), event);
+        targetSchema = targetProjection.getSchema();
+        stagingSchema = stagingProjection.getSchema();
+        // _op, _batch_id and the before image are only part of the staging schema
+        RecordProjection projection = snapshotOnly ? targetProjection : stagingProjection;
+        stagingRecord = new StagingRecord(projection, batchId);
+        // rows with row ids are matched by their row id, which is not clustered
+        if (!snapshotOnly && !rowIdSupported && primaryKeys != null) {
+          List<String> columns = new ArrayList<>(primaryKeys);
+          if (partitionColumn != null && !columns.contains(partitionColumn)) {
+            columns.add(partitionColumn);
+          }
+          keyBounds = new KeyBounds(row.getSchema(), columns);
+        }
 
-        if (jsonFormat) {
-          eventWriter = new JsonEventWriter(outputStream);
+        if (streamed) {
+          // the rows are counted as they are written, see updateReservedMemory
+          eventWriter = new WriteStreamEventWriter(streamRows, appendSize);
         } else {
-          org.apache.avro.Schema avroSchema = schemaMap.computeIfAbsent(snapshotOnly ? targetSchema : stagingSchema,
-                                                                        s -> {
-                                                                          org.apache.avro.Schema.Parser parser
-                                                                            = new org.apache.avro.Schema.Parser();
-                                                                          return parser.parse(s.toString());
-                                                                        });
-          eventWriter = new AvroEventWriter(avroSchema, outputStream);
+          if (format == StagingFormat.PARQUET && !ParquetEventWriter.isSupported(projection.getSchema())) {
+            LOG.debug("Staging table {}.{} as Avro since its schema can not be written as Parquet.", dataset, table);
+            format = StagingFormat.AVRO;
+          }
+          switch (format) {
+            case JSON:
+              eventWriter = sharedStaging && !snapshotOnly ?
+                new JsonEventWriter(outputStream, jsonBufferSize, jsonGzip, table,
+                                    BigQueryUtils.getSharedStagingColumn(table)) :
+                new JsonEventWriter(outputStream, jsonBufferSize, jsonGzip);
+              // two bytes per buffered char
+              writerBufferSize = 2L * jsonBufferSize;
+              break;
+            case PARQUET:
+              eventWriter = new ParquetEventWriter(projection, outputStream, parquetRowGroupSize);
+              break;
+            default:
+              org.apache.avro.Schema avroSchema = schemaMap.computeIfAbsent(projection.getSchema(), s -> {
+                org.apache.avro.Schema.Parser parser = new org.apache.avro.Schema.Parser();
+                return parser.parse(s.toString());
+              });
+              eventWriter = new AvroEventWriter(avroSchema, projection, outputStream, avroCodec, avroSyncInterval);
+              writerBufferSize = avroSyncInterval > 0 ? avroSyncInterval : DataFileConstants.DEFAULT_SYNC_INTERVAL;
+          }
         }
       }
 
-      StructuredRecord record = createRecord(sequencedEvent);
-      eventWriter.write(record);
+      if (compactor == null) {
+        writeRecord(sequencedEvent);
+      } else {
+        compactor.add(sequencedEvent);
+      }
       if (LOG.isTraceEnabled()) {
-        LOG.trace("Writing record {} to GCS.", GSON.toJson(record));
+        LOG.trace("Writing event {} with sequence number {} to GCS.", GSON.toJson(event),
+                  sequencedEvent.getSequenceNumber());
       }
       numEvents++;
+      maxSequenceNum = Math.max(maxSequenceNum, sequencedEvent.getSequenceNumber());
+    }
+
+    private void writeRecord(Sequenced<DMLEvent> sequencedEvent) throws IOException {
+      // the before image is read for events of sources without row id, updates must always carry it
+      stagingRecord.reset(sequencedEvent, !rowIdSupported);
+      eventWriter.write(stagingRecord);
+      if (keyBounds != null) {
+        // inserts have no before image and never match a row of the target
+        DMLEvent event = sequencedEvent.getEvent();
+        switch (event.getOperation().getType()) {
+          case UPDATE:
+            keyBounds.add(event.getPreviousRow());
+            break;
+          case DELETE:
+            keyBounds.add(event.getRow());
+            break;
+        }
+      }
+    }
+
+    /**
+     * Reserves the memory the object holds since the last event was written.
+     */
+    private void updateReservedMemory() {
+      long memory = writerBufferSize + (uploadStream == null ? 0 : uploadStream.getMemoryUsage())
+        + (eventWriter instanceof ParquetEventWriter ? ((ParquetEventWriter) eventWriter).getBufferedSize() : 0)
+        + (streamed && eventWriter != null ? ((WriteStreamEventWriter) eventWriter).getMemoryUsage() : 0)
+        + (compactor == null ? 0 : compactor.getEstimatedSize());
+      if (memory != reservedMemory) {
+        memoryBudget.reserve(memory - reservedMemory);
+        reservedMemory = memory;
+      }
+    }
+
+    /**
+     * Returns the number of bytes written to GCS, or of the rows held for the write stream, so far. Events held by
+     * the compactor are only written once the batch is closed, until then their estimated size is counted.
+     */
+    private long getBytesWritten() {
+      long bytesHeld = compactor == null ? 0L : compactor.getEstimatedSize();
+      if (streamed) {
+        return bytesHeld + (eventWriter == null ? 0L : ((WriteStreamEventWriter) eventWriter).getBytesWritten());
+      }
+      return bytesHeld + outputStream.getCount();
+    }
+
+    /**
+     * Returns true the first time the batch reaches the configured number of events or bytes. The byte count of
+     * GCS objects only includes what the event writer has handed to the GCS channel, so it trails the events still
+     * buffered in it.
+     */
+    private boolean checkThresholds() {
+      if (thresholdReached) {
+        return false;
+      }
+      thresholdReached = (maxTableEvents > 0 && numEvents >= maxTableEvents)
+        || (maxTableBytes > 0 && getBytesWritten() >= maxTableBytes)
+        || (compactor != null && compactor.size() >= maxCompactionKeys);
+      if (thresholdReached) {
+        LOG.debug("Batch {} for table {}.{} reached {} events ({} bytes), flushing it early.", batchId, dataset, table,
+                  numEvents, getBytesWritten());
+      }
+      return thresholdReached;
     }
 
     private void close() throws IOException {
-      if (eventWriter != null) {
+      if (compactor != null && eventWriter != null) {
+        List<Sequenced<DMLEvent>> events = compactor.getEvents();
+        LOG.debug("Compacted batch {} of {} events for table {}.{} to {} events.", batchId, numEvents, dataset, table,
+                  events.size());
+        for (Sequenced<DMLEvent> event : events) {
+          writeRecord(event);
+        }
+        // the memory of the held events is released along with the buffers of the object once it is closed
+        compactor.clear();
+      }
+      if (outputStream == null) {
+        if (eventWriter != null) {
+          eventWriter.close();
+        }
+      } else if (eventWriter != null) {
         try {
           eventWriter.close();
         } finally {
@@ -296,19 +653,24 @@ public class MultiGCSWriter {
       }
     }
 
-    private Schema getTargetSchema(Schema schema, DMLEvent event) {
-      List<Schema.Field> fields = new ArrayList<>(schema.getFields().size() + 4);
-      fields.addAll(schema.getFields());
-      fields.add(Schema.Field.of(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG)));
-      fields.add(Schema.Field.of(Constants.IS_DELETED, Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN))));
-      fields.add(Schema.Field.of(Constants.ROW_ID, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
-      fields.add(Schema.Field.of(Constants.SOURCE_TIMESTAMP, Schema.nullableOf(Schema.of(Schema.Type.LONG))));
+    private RecordProjection getTargetProjection(Schema schema, DMLEvent event) {
+      RecordProjection.Builder builder = RecordProjection.builder(schema.getRecordName() + ".target")
+        .addRowColumns(schema)
+        .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+        .add(Constants.IS_DELETED, Schema.nullableOf(Schema.of(Schema.Type.BOOLEAN)), RecordProjection.Source.NULL)
+        .add(Constants.ROW_ID, Schema.nullableOf(Schema.of(Schema.Type.STRING)),
+             rowIdSupported ? RecordProjection.Source.ROW_ID : RecordProjection.Source.NULL);
       if (eventOrdering == SourceProperties.Ordering.UN_ORDERED) {
+        builder.add(Constants.SOURCE_TIMESTAMP, Schema.nullableOf(Schema.of(Schema.Type.LONG)),
+                    RecordProjection.Source.SOURCE_TIMESTAMP);
         if (Objects.nonNull(event.getSortKeys()) && !event.getSortKeys().isEmpty()) {
-          fields.add(getSortKeyField(event.getSortKeys()));
+          builder.add(Constants.SORT_KEYS, getSortKeysSchema(event.getSortKeys()), RecordProjection.Source.SORT_KEYS);
         }
+      } else {
+        builder.add(Constants.SOURCE_TIMESTAMP, Schema.nullableOf(Schema.of(Schema.Type.LONG)),
+                    RecordProjection.Source.NULL);
       }
-      return Schema.recordOf(schema.getRecordName() + ".target", fields);
+      return builder.build();
     }
 
     /*
@@ -341,110 +703,35 @@ public class MultiGCSWriter {
           id (long)
           name (string)
      */
-    private Schema getStagingSchema(Schema schema, DMLEvent event) {
-      int fieldLength =
-        rowIdSupported ? schema.getFields().size() + 4 // source schema fields + _op, _batch_id, _sequence_num, _row_id
-          : 2 * schema.getFields().size() + 3; // (source schema + _before_ columns) + _op, _batch_id, _sequence_num
-
+    private RecordProjection getStagingProjection(Schema schema, DMLEvent event) {
+      RecordProjection.Builder builder = RecordProjection.builder(schema.getRecordName() + ".staging")
+        .add(Constants.OPERATION, Schema.of(Schema.Type.STRING), RecordProjection.Source.OPERATION)
+        .add(Constants.BATCH_ID, Schema.of(Schema.Type.LONG), RecordProjection.Source.BATCH_ID)
+        .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM);
       if (eventOrdering == SourceProperties.Ordering.UN_ORDERED) {
-        // add column _source_timestamp, _sort
-        fieldLength += 2;
-      }
-      List<Schema.Field> fields = new ArrayList<>(fieldLength);
-
-      fields.add(Schema.Field.of(Constants.OPERATION, Schema.of(Schema.Type.STRING)));
-      fields.add(Schema.Field.of(Constants.BATCH_ID, Schema.of(Schema.Type.LONG)));
-      fields.add(Schema.Field.of(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG)));
-      if (eventOrdering == SourceProperties.Ordering.UN_ORDERED) {
-        fields.add(Schema.Field.of(Constants.SOURCE_TIMESTAMP, Schema.of(Schema.Type.LONG)));
+        builder.add(Constants.SOURCE_TIMESTAMP, Schema.of(Schema.Type.LONG), RecordProjection.Source.SOURCE_TIMESTAMP);
         if (Objects.nonNull(event.getSortKeys()) && !event.getSortKeys().isEmpty()) {
-          fields.add(getSortKeyField(event.getSortKeys()));
+          builder.add(Constants.SORT_KEYS, getSortKeysSchema(event.getSortKeys()), RecordProjection.Source.SORT_KEYS);
         }
       }
 
       // add all fields from source schema
-      fields.addAll(schema.getFields());
+      builder.addRowColumns(schema);
 
       if (rowIdSupported) {
         // add _row_id field to handle un-ordered events
-        fields.add(Schema.Field.of(Constants.ROW_ID, Schema.of(Schema.Type.STRING)));
+        builder.add(Constants.ROW_ID, Schema.of(Schema.Type.STRING), RecordProjection.Source.ROW_ID);
       } else {
         // add _before_ fields for ORDERED events only
-        for (Schema.Field field : schema.getFields()) {
-          String beforeName = "_before_" + field.getName();
-          Schema beforeSchema = field.getSchema();
-          beforeSchema = beforeSchema.isNullable() ? beforeSchema : Schema.nullableOf(beforeSchema);
-          fields.add(Schema.Field.of(beforeName, beforeSchema));
-        }
-      }
-
-      return Schema.recordOf(schema.getRecordName() + ".staging", fields);
-    }
-
-    private StructuredRecord createRecord(Sequenced<DMLEvent> sequencedEvent) {
-      DMLEvent event = sequencedEvent.getEvent();
-      StructuredRecord row = event.getRow();
-      StructuredRecord.Builder builder;
-      if (snapshotOnly) {
-        builder = StructuredRecord.builder(targetSchema);
-      } else {
-        // _op and _batch_id are only part of the staging schema
-        builder = StructuredRecord.builder(stagingSchema);
-        builder.set(Constants.OPERATION, event.getOperation().getType().name());
-        builder.set(Constants.BATCH_ID, batchId);
-      }
-
-      builder.set(Constants.SEQUENCE_NUM, sequencedEvent.getSequenceNumber());
-      for (Schema.Field field : row.getSchema().getFields()) {
-        builder.set(field.getName(), row.get(field.getName()));
-      }
-
-      if (eventOrdering == SourceProperties.Ordering.UN_ORDERED) {
-        builder.set(Constants.SOURCE_TIMESTAMP, event.getSourceTimestampMillis());
-        if (targetSchema.getField(Constants.SORT_KEYS) != null) {
-          Schema sortKeysSchema = targetSchema.getField(Constants.SORT_KEYS).getSchema();
-          StructuredRecord.Builder sortKeysBuilder = StructuredRecord.builder(sortKeysSchema);
-          List<Schema.Field> fields = sortKeysSchema.getFields();
-          for (int i = 0; i < fields.size(); i++) {
-            sortKeysBuilder.set(fields.get(i).getName(), event.getSortKeys().get(i).getValue());
-          }
-          builder.set(Constants.SORT_KEYS, sortKeysBuilder.build());
-        }
-      }
-
-      if (rowIdSupported) {
-        builder.set(Constants.ROW_ID, event.getRowId());
-        return builder.build();
-      }
-
-      StructuredRecord beforeRow = null;
-      switch (event.getOperation().getType()) {
-        case UPDATE:
-          beforeRow = event.getPreviousRow();
-          if (beforeRow == null) {
-            // should never happen unless the source is implemented incorrectly
-            throw new IllegalStateException(String.format(
-              "Encountered an update event for %s.%s that did not include the previous column values. "
-                + "Previous column values are required for replication.",
-              event.getOperation().getDatabaseName(), event.getOperation().getTableName()));
-          }
-          break;
-        case DELETE:
-          beforeRow = row;
-          break;
-      }
-      if (beforeRow != null) {
-        for (Schema.Field field : beforeRow.getSchema().getFields()) {
-          builder.set("_before_" + field.getName(), beforeRow.get(field.getName()));
-        }
+        builder.addBeforeColumns(schema);
       }
       return builder.build();
     }
   }
 
-  private Schema.Field getSortKeyField(List<SortKey> sortKeys) {
+  private Schema getSortKeysSchema(List<SortKey> sortKeys) {
     List<Schema.Type> sortKeyTypes = sortKeys.stream()
             .map(SortKey::getType).collect(Collectors.toList());
-    return Schema.Field.of(Constants.SORT_KEYS, Schemas.getSortKeysSchema(sortKeyTypes));
+    return Schemas.getSortKeysSchema(sortKeyTypes);
   }
 }
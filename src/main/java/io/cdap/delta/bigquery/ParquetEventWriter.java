@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.common.Bytes;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Type;
+import org.apache.parquet.schema.Types;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * EventWriter that writes records in Parquet format, with snappy compressed and dictionary encoded row groups.
+ * <p>
+ * Only flat schemas of primitive columns are supported, see {@link #isSupported(Schema)}. Rows are buffered in memory
+ * until a row group is full or the writer is closed.
+ */
+public class ParquetEventWriter implements EventWriter {
+  // Hadoop classes that Parquet is written with, Hadoop is provided by the worker rather than bundled with the plugin
+  private static final String[] HADOOP_CLASSES = {
+    "org.apache.hadoop.conf.Configuration",
+    "org.apache.hadoop.fs.Path",
+    "org.apache.hadoop.io.compress.CompressionCodec"
+  };
+  private final StreamOutputFile outputFile;
+  private final ParquetWriter<StagingRecord> parquetWriter;
+
+  /**
+   * @param rowGroupSize size in bytes of the row groups, which are buffered in memory before they are written
+   */
+  ParquetEventWriter(RecordProjection projection, OutputStream outputStream, int rowGroupSize) throws IOException {
+    this.outputFile = new StreamOutputFile(outputStream);
+    this.parquetWriter = new Builder(outputFile, projection)
+      .withConf(new Configuration(false))
+      .withCompressionCodec(CompressionCodecName.SNAPPY)
+      .withDictionaryEncoding(true)
+      .withRowGroupSize(rowGroupSize)
+      .build();
+  }
+
+  /**
+   * Returns whether records of the given schema can be written as Parquet. Nested records, arrays, maps, enums and
+   * DATETIME columns are not supported, since they either need a richer Parquet schema or a logical type that
+   * BigQuery can not load from this version of Parquet.
+   */
+  static boolean isSupported(Schema schema) {
+    for (Schema.Field field : schema.getFields()) {
+      if (getParquetType(field.getName(), field.getSchema()) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the Hadoop classes that Parquet is written with can be loaded by the given class loader.
+   */
+  static boolean isAvailable(ClassLoader classLoader) {
+    for (String className : HADOOP_CLASSES) {
+      try {
+        Class.forName(className, false, classLoader);
+      } catch (ClassNotFoundException | LinkageError e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void write(StagingRecord record) throws IOException {
+    parquetWriter.write(record);
+  }
+
+  /**
+   * Returns the approximate number of bytes of the current row group that are buffered in memory. The row group
+   * grows with the rows written to it, up to the row group size, and is released once it is written out.
+   */
+  long getBufferedSize() {
+    return Math.max(0L, parquetWriter.getDataSize() - outputFile.position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    parquetWriter.close();
+  }
+
+  @Nullable
+  private static Type getParquetType(String name, Schema fieldSchema) {
+    Type.Repetition repetition = fieldSchema.isNullable() ? Type.Repetition.OPTIONAL : Type.Repetition.REQUIRED;
+    Schema schema = fieldSchema.isNullable() ? fieldSchema.getNonNullable() : fieldSchema;
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return primitive(PrimitiveType.PrimitiveTypeName.INT32, repetition, OriginalType.DATE, name);
+        case TIME_MILLIS:
+          return primitive(PrimitiveType.PrimitiveTypeName.INT32, repetition, OriginalType.TIME_MILLIS, name);
+        case TIME_MICROS:
+          return primitive(PrimitiveType.PrimitiveTypeName.INT64, repetition, OriginalType.TIME_MICROS, name);
+        case TIMESTAMP_MILLIS:
+          return primitive(PrimitiveType.PrimitiveTypeName.INT64, repetition, OriginalType.TIMESTAMP_MILLIS, name);
+        case TIMESTAMP_MICROS:
+          return primitive(PrimitiveType.PrimitiveTypeName.INT64, repetition, OriginalType.TIMESTAMP_MICROS, name);
+        case DECIMAL:
+          return Types.primitive(PrimitiveType.PrimitiveTypeName.BINARY, repetition)
+            .as(OriginalType.DECIMAL)
+            .precision(schema.getPrecision())
+            .scale(schema.getScale())
+            .named(name);
+        default:
+          return null;
+      }
+    }
+    switch (schema.getType()) {
+      case BOOLEAN:
+        return primitive(PrimitiveType.PrimitiveTypeName.BOOLEAN, repetition, null, name);
+      case INT:
+        return primitive(PrimitiveType.PrimitiveTypeName.INT32, repetition, null, name);
+      case LONG:
+        return primitive(PrimitiveType.PrimitiveTypeName.INT64, repetition, null, name);
+      case FLOAT:
+        return primitive(PrimitiveType.PrimitiveTypeName.FLOAT, repetition, null, name);
+      case DOUBLE:
+        return primitive(PrimitiveType.PrimitiveTypeName.DOUBLE, repetition, null, name);
+      case STRING:
+        return primitive(PrimitiveType.PrimitiveTypeName.BINARY, repetition, OriginalType.UTF8, name);
+      case BYTES:
+        return primitive(PrimitiveType.PrimitiveTypeName.BINARY, repetition, null, name);
+      default:
+        return null;
+    }
+  }
+
+  private static Type primitive(PrimitiveType.PrimitiveTypeName typeName, Type.Repetition repetition,
+                                @Nullable OriginalType originalType, String name) {
+    return Types.primitive(typeName, repetition).as(originalType).named(name);
+  }
+
+  /**
+   * Writes a value of a column to the record consumer.
+   */
+  private interface ValueWriter {
+    void write(RecordConsumer consumer, Object value);
+  }
+
+  private static ValueWriter getValueWriter(PrimitiveType type) {
+    switch (type.getPrimitiveTypeName()) {
+      case BOOLEAN:
+        return (consumer, value) -> consumer.addBoolean((Boolean) value);
+      case INT32:
+        return (consumer, value) -> consumer.addInteger(((Number) value).intValue());
+      case INT64:
+        return (consumer, value) -> consumer.addLong(((Number) value).longValue());
+      case FLOAT:
+        return (consumer, value) -> consumer.addFloat(((Number) value).floatValue());
+      case DOUBLE:
+        return (consumer, value) -> consumer.addDouble(((Number) value).doubleValue());
+      case BINARY:
+        if (type.getOriginalType() == OriginalType.UTF8) {
+          return (consumer, value) -> consumer.addBinary(Binary.fromString(value.toString()));
+        }
+        return (consumer, value) -> {
+          byte[] bytes = value instanceof ByteBuffer ? Bytes.toBytes((ByteBuffer) value) : (byte[]) value;
+          consumer.addBinary(Binary.fromConstantByteArray(bytes));
+        };
+      default:
+        throw new IllegalArgumentException("Unsupported Parquet type " + type);
+    }
+  }
+
+  /**
+   * Writes the columns of a {@link StagingRecord} following its projection.
+   */
+  private static final class StagingRecordWriteSupport extends WriteSupport<StagingRecord> {
+    private final MessageType messageType;
+    private final String[] names;
+    private final boolean[] required;
+    private final ValueWriter[] valueWriters;
+    private final Object[] values;
+    private RecordConsumer consumer;
+
+    private StagingRecordWriteSupport(RecordProjection projection) {
+      List<Type> fields = new ArrayList<>(projection.size());
+      this.names = new String[projection.size()];
+      this.required = new boolean[projection.size()];
+      this.valueWriters = new ValueWriter[projection.size()];
+      this.values = new Object[projection.size()];
+      for (int i = 0; i < projection.size(); i++) {
+        RecordProjection.Column column = projection.getColumn(i);
+        Type type = getParquetType(column.getName(), column.getSchema());
+        if (type == null || column.getSource() == RecordProjection.Source.SORT_KEYS) {
+          throw new IllegalArgumentException(String.format("Column '%s' of type '%s' can not be written as Parquet.",
+                                                           column.getName(), column.getSchema()));
+        }
+        fields.add(type);
+        names[i] = column.getName();
+        required[i] = type.isRepetition(Type.Repetition.REQUIRED);
+        valueWriters[i] = getValueWriter(type.asPrimitiveType());
+      }
+      this.messageType = new MessageType(projection.getSchema().getRecordName().replace('.', '_'), fields);
+    }
+
+    @Override
+    public WriteContext init(Configuration configuration) {
+      return new WriteContext(messageType, Collections.emptyMap());
+    }
+
+    @Override
+    public void prepareForWrite(RecordConsumer recordConsumer) {
+      this.consumer = recordConsumer;
+    }
+
+    @Override
+    public void write(StagingRecord record) {
+      // read and check all values first, a record that fails halfway through would corrupt the row group
+      for (int i = 0; i < names.length; i++) {
+        values[i] = record.get(i);
+        if (values[i] == null && required[i]) {
+          throw new IllegalArgumentException(String.format("Non-nullable column '%s' has a null value.", names[i]));
+        }
+      }
+      consumer.startMessage();
+      for (int i = 0; i < names.length; i++) {
+        if (values[i] != null) {
+          consumer.startField(names[i], i);
+          valueWriters[i].write(consumer, values[i]);
+          consumer.endField(names[i], i);
+        }
+      }
+      consumer.endMessage();
+    }
+  }
+
+  /**
+   * Builds a ParquetWriter for staging records.
+   */
+  private static final class Builder extends ParquetWriter.Builder<StagingRecord, Builder> {
+    private final RecordProjection projection;
+
+    private Builder(OutputFile outputFile, RecordProjection projection) {
+      super(outputFile);
+      this.projection = projection;
+    }
+
+    @Override
+    protected Builder self() {
+      return this;
+    }
+
+    @Override
+    protected WriteSupport<StagingRecord> getWriteSupport(Configuration configuration) {
+      return new StagingRecordWriteSupport(projection);
+    }
+  }
+
+  /**
+   * A Parquet output file that writes to an already open stream, such as a GCS object.
+   */
+  private static final class StreamOutputFile implements OutputFile {
+    private final OutputStream outputStream;
+    // number of bytes written to the stream so far
+    private long position;
+
+    private StreamOutputFile(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public PositionOutputStream create(long blockSizeHint) {
+      return new PositionOutputStream() {
+        @Override
+        public long getPos() {
+          return position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          outputStream.write(b);
+          position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          outputStream.write(b, off, len);
+          position += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+          outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          outputStream.close();
+        }
+      };
+    }
+
+    @Override
+    public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+      return create(blockSizeHint);
+    }
+
+    @Override
+    public boolean supportsBlockSize() {
+      return false;
+    }
+
+    @Override
+    public long defaultBlockSize() {
+      return 0;
+    }
+  }
+}
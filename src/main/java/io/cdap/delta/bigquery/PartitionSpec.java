@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.RangePartitioning;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.TimePartitioning;
+
+/**
+ * Partitioning of a target table on one of its columns.
+ * <p>
+ * It is configured as {@code <column>[:HOUR|DAY|MONTH|YEAR]} for time unit partitioning of a date or timestamp
+ * column, which defaults to daily partitions, or as {@code <column>:RANGE:<start>:<end>:<interval>} for integer range
+ * partitioning of an integer column.
+ */
+final class PartitionSpec {
+  private final String column;
+  private final TimePartitioning.Type timeUnit;
+  private final RangePartitioning.Range range;
+
+  private PartitionSpec(String column, TimePartitioning.Type timeUnit, RangePartitioning.Range range) {
+    this.column = column;
+    this.timeUnit = timeUnit;
+    this.range = range;
+  }
+
+  static PartitionSpec parse(String spec) {
+    String[] parts = spec.trim().split(":");
+    String column = BigQueryUtils.normalizeFieldName(parts[0].trim());
+    if (parts.length == 1) {
+      return new PartitionSpec(column, TimePartitioning.Type.DAY, null);
+    }
+    String type = parts[1].trim().toUpperCase();
+    if ("RANGE".equals(type)) {
+      if (parts.length != 5) {
+        throw new IllegalArgumentException(String.format(
+          "Invalid partitioning '%s'. Integer range partitioning must be of the form <column>:RANGE:<start>:<end>:"
+            + "<interval>.", spec));
+      }
+      RangePartitioning.Range range = RangePartitioning.Range.newBuilder()
+        .setStart(Long.parseLong(parts[2].trim()))
+        .setEnd(Long.parseLong(parts[3].trim()))
+        .setInterval(Long.parseLong(parts[4].trim()))
+        .build();
+      return new PartitionSpec(column, null, range);
+    }
+    try {
+      return new PartitionSpec(column, TimePartitioning.Type.valueOf(type), null);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format(
+        "Invalid partitioning '%s'. The partition type must be HOUR, DAY, MONTH, YEAR or RANGE.", spec), e);
+    }
+  }
+
+  /**
+   * Returns the normalized name of the partition column.
+   */
+  String getColumn() {
+    return column;
+  }
+
+  /**
+   * Checks that the partition column is in the schema of the table and that its type can be partitioned as
+   * configured.
+   *
+   * @throws IllegalArgumentException if the table can not be partitioned this way
+   */
+  void validate(Schema schema) {
+    Field field = schema.getFields().stream()
+      .filter(f -> f.getName().equals(column))
+      .findFirst()
+      .orElseThrow(() -> new IllegalArgumentException(String.format(
+        "The partition column '%s' is not a column of the table.", column)));
+    LegacySQLTypeName type = field.getType();
+    if (field.getMode() == Field.Mode.REPEATED) {
+      throw new IllegalArgumentException(String.format("The partition column '%s' can not be an array.", column));
+    }
+    if (range != null) {
+      if (!LegacySQLTypeName.INTEGER.equals(type)) {
+        throw new IllegalArgumentException(String.format(
+          "The partition column '%s' is of type %s, but integer range partitioning requires an integer column.",
+          column, type));
+      }
+      return;
+    }
+    if (!LegacySQLTypeName.DATE.equals(type) && !LegacySQLTypeName.TIMESTAMP.equals(type)
+      && !LegacySQLTypeName.DATETIME.equals(type)) {
+      throw new IllegalArgumentException(String.format(
+        "The partition column '%s' is of type %s, but time unit partitioning requires a date, timestamp or datetime "
+          + "column.", column, type));
+    }
+    if (LegacySQLTypeName.DATE.equals(type) && timeUnit == TimePartitioning.Type.HOUR) {
+      throw new IllegalArgumentException(String.format(
+        "The partition column '%s' is a date, which can not be partitioned by HOUR.", column));
+    }
+  }
+
+  StandardTableDefinition.Builder applyTo(StandardTableDefinition.Builder builder) {
+    if (range == null) {
+      return builder.setTimePartitioning(TimePartitioning.newBuilder(timeUnit).setField(column).build());
+    }
+    return builder.setRangePartitioning(RangePartitioning.newBuilder().setField(column).setRange(range).build());
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes where each column of a staging or target schema comes from in a DML event.
+ * <p>
+ * A projection is compiled once per GCS object, so that events can be written to the object column by column
+ * without copying them into an intermediate StructuredRecord of the output schema first.
+ */
+final class RecordProjection {
+
+  /**
+   * The part of a DML event that a column is read from.
+   */
+  enum Source {
+    OPERATION,
+    BATCH_ID,
+    SEQUENCE_NUM,
+    SOURCE_TIMESTAMP,
+    SORT_KEYS,
+    ROW_ID,
+    // always null in the written object, for example _is_deleted in the target schema
+    NULL,
+    // a column of the event row
+    ROW,
+    // a column of the row before the change, only set for updates and deletes
+    BEFORE
+  }
+
+  /**
+   * A column of the output schema.
+   */
+  static final class Column {
+    private final String name;
+    private final Schema schema;
+    private final Source source;
+    private final String rowFieldName;
+
+    private Column(String name, Schema schema, Source source, String rowFieldName) {
+      this.name = name;
+      this.schema = schema;
+      this.source = source;
+      this.rowFieldName = rowFieldName;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    Schema getSchema() {
+      return schema;
+    }
+
+    Source getSource() {
+      return source;
+    }
+
+    /**
+     * @return name of the row field this column is read from for {@link Source#ROW} and {@link Source#BEFORE}
+     *   columns, null otherwise
+     */
+    String getRowFieldName() {
+      return rowFieldName;
+    }
+  }
+
+  private final Schema schema;
+  private final Column[] columns;
+  private final boolean hasBeforeColumns;
+
+  private RecordProjection(Schema schema, Column[] columns, boolean hasBeforeColumns) {
+    this.schema = schema;
+    this.columns = columns;
+    this.hasBeforeColumns = hasBeforeColumns;
+  }
+
+  static Builder builder(String recordName) {
+    return new Builder(recordName);
+  }
+
+  Schema getSchema() {
+    return schema;
+  }
+
+  int size() {
+    return columns.length;
+  }
+
+  Column getColumn(int index) {
+    return columns[index];
+  }
+
+  boolean hasBeforeColumns() {
+    return hasBeforeColumns;
+  }
+
+  /**
+   * Builds a projection together with the schema it writes. Columns are in the order they are added.
+   */
+  static final class Builder {
+    private final String recordName;
+    private final List<Schema.Field> fields;
+    private final List<Column> columns;
+    private boolean hasBeforeColumns;
+
+    private Builder(String recordName) {
+      this.recordName = recordName;
+      this.fields = new ArrayList<>();
+      this.columns = new ArrayList<>();
+    }
+
+    Builder add(String name, Schema schema, Source source) {
+      fields.add(Schema.Field.of(name, schema));
+      columns.add(new Column(name, schema, source, null));
+      return this;
+    }
+
+    Builder addRowColumns(Schema rowSchema) {
+      for (Schema.Field field : rowSchema.getFields()) {
+        fields.add(field);
+        columns.add(new Column(field.getName(), field.getSchema(), Source.ROW, field.getName()));
+      }
+      return this;
+    }
+
+    Builder addBeforeColumns(Schema rowSchema) {
+      for (Schema.Field field : rowSchema.getFields()) {
+        String beforeName = "_before_" + field.getName();
+        Schema beforeSchema = field.getSchema();
+        beforeSchema = beforeSchema.isNullable() ? beforeSchema : Schema.nullableOf(beforeSchema);
+        fields.add(Schema.Field.of(beforeName, beforeSchema));
+        columns.add(new Column(beforeName, beforeSchema, Source.BEFORE, field.getName()));
+      }
+      hasBeforeColumns = true;
+      return this;
+    }
+
+    RecordProjection build() {
+      return new RecordProjection(Schema.recordOf(recordName, fields), columns.toArray(new Column[0]),
+                                  hasBeforeColumns);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.metrics.Metrics;
+import org.apache.twill.common.Threads;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded pool of threads that runs the tasks of one stage of the pipeline, such as uploads to GCS or BigQuery load
+ * and merge jobs, so that each stage has a limited number of requests in flight no matter how many tables are
+ * flushed at once. Tasks beyond the size of the pool are queued.
+ * <p>
+ * The number of queued and active tasks is gauged as {@code stage.<name>.queued} and {@code stage.<name>.active}
+ * whenever it changes.
+ */
+class StageExecutor implements Executor {
+  private final String name;
+  private final ThreadPoolExecutor executor;
+  private final Metrics metrics;
+  private final AtomicInteger queued;
+  private final AtomicInteger active;
+
+  /**
+   * @param name the name of the stage, used in thread and metric names
+   * @param threads the maximum number of tasks of the stage that run at once
+   * @param metrics the metrics to gauge the stage with, or null if it is not gauged
+   */
+  StageExecutor(String name, int threads, @Nullable Metrics metrics) {
+    if (threads < 1) {
+      throw new IllegalArgumentException(String.format("Number of threads of stage '%s' must be at least 1.", name));
+    }
+    this.name = name;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                                           Threads.createDaemonThreadFactory("bq-" + name + "-%d"));
+    this.metrics = metrics;
+    this.queued = new AtomicInteger();
+    this.active = new AtomicInteger();
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    gauge("queued", queued.incrementAndGet());
+    try {
+      executor.execute(() -> {
+        gauge("queued", queued.decrementAndGet());
+        gauge("active", active.incrementAndGet());
+        try {
+          task.run();
+        } finally {
+          gauge("active", active.decrementAndGet());
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      gauge("queued", queued.decrementAndGet());
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of tasks that wait for a thread of the stage.
+   */
+  int getQueueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * Returns the number of tasks that are running.
+   */
+  int getActiveCount() {
+    return active.get();
+  }
+
+  void shutdownNow() {
+    executor.shutdownNow();
+  }
+
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  private void gauge(String metric, int value) {
+    if (metrics != null) {
+      metrics.gauge(String.format("stage.%s.%s", name, metric), value);
+    }
+  }
+}
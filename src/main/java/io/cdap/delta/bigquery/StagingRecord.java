@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.Sequenced;
+
+import javax.annotation.Nullable;
+
+/**
+ * A DML event seen through a {@link RecordProjection}.
+ * <p>
+ * One instance is reused for every event written to the same GCS object, so it must not be held on to
+ * after the event has been written.
+ */
+final class StagingRecord {
+  private final RecordProjection projection;
+  private final long batchId;
+  private DMLEvent event;
+  private long sequenceNumber;
+  private StructuredRecord row;
+  private StructuredRecord beforeRow;
+
+  StagingRecord(RecordProjection projection, long batchId) {
+    this.projection = projection;
+    this.batchId = batchId;
+  }
+
+  RecordProjection getProjection() {
+    return projection;
+  }
+
+  /**
+   * Points this record at the given event.
+   *
+   * @param sequencedEvent the event to write next
+   * @param requireBeforeRow whether updates must carry the previous column values
+   */
+  void reset(Sequenced<DMLEvent> sequencedEvent, boolean requireBeforeRow) {
+    event = sequencedEvent.getEvent();
+    sequenceNumber = sequencedEvent.getSequenceNumber();
+    row = event.getRow();
+    beforeRow = null;
+    if (!requireBeforeRow) {
+      return;
+    }
+    switch (event.getOperation().getType()) {
+      case UPDATE:
+        beforeRow = event.getPreviousRow();
+        if (beforeRow == null) {
+          // should never happen unless the source is implemented incorrectly
+          throw new IllegalStateException(String.format(
+            "Encountered an update event for %s.%s that did not include the previous column values. "
+              + "Previous column values are required for replication.",
+            event.getOperation().getDatabaseName(), event.getOperation().getTableName()));
+        }
+        break;
+      case DELETE:
+        beforeRow = row;
+        break;
+    }
+  }
+
+  DMLEvent getEvent() {
+    return event;
+  }
+
+  /**
+   * Returns the value of a column. {@link RecordProjection.Source#SORT_KEYS} columns have no single value and are
+   * read with {@link #getSortKey(int)} instead.
+   */
+  @Nullable
+  Object get(int column) {
+    RecordProjection.Column col = projection.getColumn(column);
+    switch (col.getSource()) {
+      case OPERATION:
+        return event.getOperation().getType().name();
+      case BATCH_ID:
+        return batchId;
+      case SEQUENCE_NUM:
+        return sequenceNumber;
+      case SOURCE_TIMESTAMP:
+        return event.getSourceTimestampMillis();
+      case ROW_ID:
+        return event.getRowId();
+      case ROW:
+        return row.get(col.getRowFieldName());
+      case BEFORE:
+        return beforeRow == null ? null : beforeRow.get(col.getRowFieldName());
+      case SORT_KEYS:
+        throw new IllegalArgumentException("Sort keys must be read with getSortKey.");
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the value of the sort key at the given position.
+   */
+  @Nullable
+  Object getSortKey(int index) {
+    return event.getSortKeys().get(index).getValue();
+  }
+}
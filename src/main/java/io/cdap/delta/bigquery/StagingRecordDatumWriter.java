@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.schema.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a {@link StagingRecord} to an Avro encoder column by column, following its projection.
+ * <p>
+ * The value encoders for the columns are compiled when the writer is created, so writing a record does no schema
+ * dispatch. The encoding is the same as CDAP's StructuredRecordDatumWriter produces for a record of the
+ * projected schema.
+ */
+class StagingRecordDatumWriter implements DatumWriter<StagingRecord> {
+  private final AvroValueEncoders.ValueEncoder[] columnEncoders;
+  // sort key encoders, only set if the projection has a sort keys column
+  private final AvroValueEncoders.ValueEncoder[] sortKeyEncoders;
+
+  StagingRecordDatumWriter(RecordProjection projection) {
+    this.columnEncoders = new AvroValueEncoders.ValueEncoder[projection.size()];
+    AvroValueEncoders.ValueEncoder[] sortKeys = null;
+    for (int i = 0; i < projection.size(); i++) {
+      RecordProjection.Column column = projection.getColumn(i);
+      if (column.getSource() == RecordProjection.Source.SORT_KEYS) {
+        List<Schema.Field> sortKeyFields = column.getSchema().getFields();
+        sortKeys = new AvroValueEncoders.ValueEncoder[sortKeyFields.size()];
+        for (int k = 0; k < sortKeyFields.size(); k++) {
+          sortKeys[k] = AvroValueEncoders.get(sortKeyFields.get(k).getSchema());
+        }
+      } else {
+        columnEncoders[i] = AvroValueEncoders.get(column.getSchema());
+      }
+    }
+    this.sortKeyEncoders = sortKeys;
+  }
+
+  @Override
+  public void setSchema(org.apache.avro.Schema schema) {
+    // no-op, the projection of each record determines what is written
+  }
+
+  @Override
+  public void write(StagingRecord record, Encoder encoder) throws IOException {
+    for (int i = 0; i < columnEncoders.length; i++) {
+      AvroValueEncoders.ValueEncoder columnEncoder = columnEncoders[i];
+      if (columnEncoder == null) {
+        for (int k = 0; k < sortKeyEncoders.length; k++) {
+          sortKeyEncoders[k].encode(record.getSortKey(k), encoder);
+        }
+      } else {
+        columnEncoder.encode(record.get(i), encoder);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.gson.stream.JsonWriter;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes staging records as JSON objects. The value writers of the projection columns are compiled on the first
+ * record of a projection and reused for every later record.
+ */
+class StagingRecordJson {
+  private RecordProjection projection;
+  private StructuredRecordToJson.ValueWriter[] columnWriters;
+  private StructuredRecordToJson.ValueWriter[] sortKeyWriters;
+
+  /**
+   * Writes the record as a JSON object.
+   */
+  void write(JsonWriter jsonWriter, StagingRecord record) throws IOException {
+    if (record.getProjection() != projection) {
+      compile(record.getProjection());
+    }
+    jsonWriter.beginObject();
+    for (int i = 0; i < columnWriters.length; i++) {
+      RecordProjection.Column column = projection.getColumn(i);
+      jsonWriter.name(column.getName());
+      if (columnWriters[i] == null) {
+        jsonWriter.beginObject();
+        List<Schema.Field> sortKeyFields = column.getSchema().getFields();
+        for (int k = 0; k < sortKeyWriters.length; k++) {
+          String sortKeyName = sortKeyFields.get(k).getName();
+          jsonWriter.name(sortKeyName);
+          sortKeyWriters[k].write(jsonWriter, sortKeyName, record.getSortKey(k));
+        }
+        jsonWriter.endObject();
+      } else {
+        columnWriters[i].write(jsonWriter, column.getName(), record.get(i));
+      }
+    }
+    jsonWriter.endObject();
+  }
+
+  private void compile(RecordProjection projection) {
+    StructuredRecordToJson.ValueWriter[] columnWriters = new StructuredRecordToJson.ValueWriter[projection.size()];
+    StructuredRecordToJson.ValueWriter[] sortKeyWriters = null;
+    for (int i = 0; i < projection.size(); i++) {
+      RecordProjection.Column column = projection.getColumn(i);
+      if (column.getSource() == RecordProjection.Source.SORT_KEYS) {
+        List<Schema.Field> sortKeyFields = column.getSchema().getFields();
+        sortKeyWriters = new StructuredRecordToJson.ValueWriter[sortKeyFields.size()];
+        for (int k = 0; k < sortKeyFields.size(); k++) {
+          sortKeyWriters[k] = StructuredRecordToJson.getValueWriter(sortKeyFields.get(k).getSchema());
+        }
+      } else {
+        columnWriters[i] = StructuredRecordToJson.getValueWriter(column.getSchema());
+      }
+    }
+    this.projection = projection;
+    this.columnWriters = columnWriters;
+    this.sortKeyWriters = sortKeyWriters;
+  }
+}
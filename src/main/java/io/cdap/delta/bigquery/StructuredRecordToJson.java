@@ -38,15 +38,19 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 /**
  * Util class to convert structured record into json.
+ * <p>
+ * Schemas are compiled once into trees of {@link ValueWriter}s, so that writing a value does not go through the
+ * type and logical type dispatch again. Dates, times, timestamps and decimals that fit into a long are formatted
+ * into a reused character buffer instead of going through java.time and BigDecimal.
  */
 public final class StructuredRecordToJson {
   private static final Logger LOG = LoggerFactory.getLogger(StructuredRecordToJson.class);
@@ -57,12 +61,31 @@ public final class StructuredRecordToJson {
   private static final Set<Schema.Type> UNSUPPORTED_ARRAY_TYPES = ImmutableSet.of(Schema.Type.ARRAY, Schema.Type.MAP);
 
   private static final int MAX_LOGICAL_DATE_TIME_FRACTION_PRECISION = 6;
-  /* BigQuery format for DateTime: YYYY-[M]M-[D]D[( |T)[H]H:[M]M:[S]S[.F]]
-   * [.F]: Up to six fractional digits (microsecond precision)
+
+  // range of epoch days with four digit years, 0001-01-01 to 9999-12-31, that are formatted without java.time
+  private static final long MIN_FAST_EPOCH_DAY = -719162L;
+  private static final long MAX_FAST_EPOCH_DAY = 2932896L;
+  private static final long MICROS_PER_SECOND = 1000000L;
+  private static final long MICROS_PER_DAY = 86400L * MICROS_PER_SECOND;
+  // largest scale of a decimal that is formatted from a long, the buffer has room for 19 digits, sign and point
+  private static final int MAX_FAST_DECIMAL_SCALE = 40;
+
+  private static final int CACHE_SIZE = 10000;
+  // keyed by the schema string, since it includes logical types, precision and scale
+  private static final Map<String, ValueWriter> VALUE_WRITERS = new ConcurrentHashMap<>();
+  private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[64]);
+
+  /**
+   * Writes the value of a single schema to a json writer. The name of the field has to be written before.
    */
-  private static final Pattern LOGICAL_DATE_PATTERN =
-    Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}([ T]\\d{1,2}:\\d{1,2}:\\d{1,2}(\\.(\\d+))?)?");
-  private static final int TIME_FRACTION_GROUP = 3;
+  interface ValueWriter {
+    /**
+     * @param writer json writer to write the value to
+     * @param name name of the field being written, used in error messages
+     * @param value value to be written
+     */
+    void write(JsonWriter writer, String name, @Nullable Object value) throws IOException;
+  }
 
   /**
    * Writes object and writes to json writer.
@@ -73,20 +96,29 @@ public final class StructuredRecordToJson {
    * @param fieldSchema field schema to be written
    */
   public static void write(JsonWriter writer, String name, Object object, Schema fieldSchema) throws IOException {
-    write(writer, name, false, object, fieldSchema);
+    ValueWriter valueWriter = getValueWriter(fieldSchema);
+    writer.name(name);
+    valueWriter.write(writer, name, object);
   }
 
   /**
-   * Writes object and writes to json writer.
-   * @param writer json writer to write the object to
-   * @param name name of the field to be written
-   * @param isArrayItem true if the method is writing array item. This means the name of the array field will not be
-   *                    added to the json writer
-   * @param object object to be written
-   * @param fieldSchema field schema to be written
+   * Returns the value writer for the given field schema, compiling it if it has not been seen before.
    */
-  private static void write(JsonWriter writer, String name, boolean isArrayItem, Object object,
-                            Schema fieldSchema) throws IOException {
+  static ValueWriter getValueWriter(Schema fieldSchema) {
+    String key = fieldSchema.toString();
+    ValueWriter valueWriter = VALUE_WRITERS.get(key);
+    if (valueWriter != null) {
+      return valueWriter;
+    }
+    if (VALUE_WRITERS.size() >= CACHE_SIZE) {
+      VALUE_WRITERS.clear();
+    }
+    valueWriter = compile(fieldSchema);
+    VALUE_WRITERS.putIfAbsent(key, valueWriter);
+    return valueWriter;
+  }
+
+  private static ValueWriter compile(Schema fieldSchema) {
     Schema schema = getNonNullableSchema(fieldSchema);
     switch (schema.getType()) {
       case NULL:
@@ -97,210 +129,356 @@ public final class StructuredRecordToJson {
       case BOOLEAN:
       case STRING:
       case BYTES:
-        writeSimpleTypes(writer, name, isArrayItem, object, schema);
-        break;
+        return nullSafe(compileSimpleType(schema));
       case ARRAY:
-        writeArray(writer, name, object, schema);
-        break;
+        return compileArray(schema);
       case RECORD:
-        writeRecord(writer, name, object, schema);
-        break;
+        return nullSafe(compileRecord(schema));
       default:
-        throw new IllegalStateException(
-          String.format("Field '%s' is of unsupported type '%s'", name, fieldSchema.getType()));
+        return (writer, name, value) -> {
+          throw new IllegalStateException(
+            String.format("Field '%s' is of unsupported type '%s'", name, fieldSchema.getType()));
+        };
     }
   }
 
+  private static ValueWriter nullSafe(ValueWriter valueWriter) {
+    return (writer, name, value) -> {
+      if (value == null) {
+        writer.nullValue();
+      } else {
+        valueWriter.write(writer, name, value);
+      }
+    };
+  }
+
   /**
-   * Writes simple types to json writer.
-   * @param writer json writer
-   * @param name name of the field to be written
-   * @param isArrayItem true if the method is writing array item. This means the name of the array field will not be
-   *                    added to the json writer
-   * @param object object to be written
-   * @param schema field schema to be written
+   * Compiles the writer of non-null values of simple types.
    */
-  private static void writeSimpleTypes(JsonWriter writer, String name, boolean isArrayItem, Object object,
-                                       Schema schema) throws IOException {
-    if (!isArrayItem) {
-      writer.name(name);
-    }
-
-    if (object == null) {
-      writer.nullValue();
-      return;
-    }
-
+  private static ValueWriter compileSimpleType(Schema schema) {
     Schema.LogicalType logicalType = schema.getLogicalType();
     if (logicalType != null) {
       switch (logicalType) {
         case DATE:
-          writer.value(Objects.requireNonNull(LocalDate.ofEpochDay(((Integer) object).longValue()).toString()));
-          break;
+          return (writer, name, value) -> writer.value(formatDate((Integer) value));
         case TIME_MILLIS:
-          writer.value(TIME_FORMATTER.format(
-            Objects.requireNonNull(LocalTime.ofNanoOfDay(TimeUnit.MILLISECONDS.toNanos(((Integer) object))))));
-          break;
+          return (writer, name, value) -> writer.value(formatTime(TimeUnit.MILLISECONDS.toMicros((Integer) value)));
         case TIME_MICROS:
-          writer.value(TIME_FORMATTER.format(
-            Objects.requireNonNull(LocalTime.ofNanoOfDay(TimeUnit.MICROSECONDS.toNanos((Long) object)))));
-          break;
+          return (writer, name, value) -> writer.value(formatTime((Long) value));
         case TIMESTAMP_MILLIS:
           //timestamp for json input should be in this format yyyy-MM-dd HH:mm:ss.SSSSSS
-          writer.value(DATETIME_FORMATTER.format(
-            Objects.requireNonNull(getZonedDateTime((long) object, TimeUnit.MILLISECONDS))));
-          break;
+          return (writer, name, value) -> writer.value(formatTimestamp((long) value, TimeUnit.MILLISECONDS));
         case TIMESTAMP_MICROS:
-          writer.value(DATETIME_FORMATTER.format(
-            Objects.requireNonNull(getZonedDateTime((long) object, TimeUnit.MICROSECONDS))));
-          break;
+          return (writer, name, value) -> writer.value(formatTimestamp((long) value, TimeUnit.MICROSECONDS));
         case DECIMAL:
-          writer.value(Objects.requireNonNull(getDecimal((byte[]) object, schema)).toPlainString());
-          break;
+          int scale = schema.getScale();
+          return (writer, name, value) -> writer.value(formatDecimal((byte[]) value, scale));
         case DATETIME:
-          String strValue = object.toString();
           // Datetime should be already an ISO-8601 string
           // But BigQuery format is stricter than ISO-8601 and does not support Zone and Offset
           // Hence it is more closer to DateTimeFormatter.ISO_LOCAL_DATE_TIME but with microsecond precision
           // Check if the value matches expected format for DateTime and trim time fraction to
           // MAX_TIME_FRACTION_PRECISION if it exceeds it
-          strValue = checkAndTrimToMaxSupportedPrecision(strValue);
-          writer.value(Objects.requireNonNull(strValue));
-          break;
+          return (writer, name, value) -> writer.value(checkAndTrimToMaxSupportedPrecision(value.toString()));
         default:
-          throw new IllegalStateException(
-            String.format("Field '%s' is of unsupported type '%s'", name, logicalType.getToken()));
+          return (writer, name, value) -> {
+            throw new IllegalStateException(
+              String.format("Field '%s' is of unsupported type '%s'", name, logicalType.getToken()));
+          };
       }
-      return;
     }
 
     switch (schema.getType()) {
       case NULL:
-        writer.nullValue(); // nothing much to do here.
-        break;
+        return (writer, name, value) -> writer.nullValue(); // nothing much to do here.
       case INT:
       case LONG:
+        return (writer, name, value) -> writer.value(((Number) value).longValue());
       case FLOAT:
+        return (writer, name, value) -> writer.value((Number) value);
       case DOUBLE:
-        writer.value((Number) object);
-        break;
+        return (writer, name, value) -> writer.value(((Number) value).doubleValue());
       case BOOLEAN:
-        writer.value((Boolean) object);
-        break;
+        return (writer, name, value) -> writer.value((Boolean) value);
       case STRING:
-        writer.value(object.toString());
-        break;
+        return (writer, name, value) -> writer.value(value.toString());
       case BYTES:
-        if (object instanceof byte[]) {
-          writer.value(Base64.getEncoder().encodeToString((byte[]) object));
-        } else if (object instanceof ByteBuffer) {
-          writer.value(Base64.getEncoder().encodeToString(Bytes.toBytes((ByteBuffer) object)));
-        } else {
-          throw new IllegalStateException(String.format("Expected value of Field '%s' to be bytes but got '%s'",
-                                                        name, object.getClass().getSimpleName()));
-        }
-        break;
+        return (writer, name, value) -> {
+          if (value instanceof byte[]) {
+            writer.value(Base64.getEncoder().encodeToString((byte[]) value));
+          } else if (value instanceof ByteBuffer) {
+            writer.value(Base64.getEncoder().encodeToString(Bytes.toBytes((ByteBuffer) value)));
+          } else {
+            throw new IllegalStateException(String.format("Expected value of Field '%s' to be bytes but got '%s'",
+                                                          name, value.getClass().getSimpleName()));
+          }
+        };
       default:
-        throw new IllegalStateException(String.format("Field '%s' is of unsupported type '%s'",
-                                                      name, schema.getType()));
+        return (writer, name, value) -> {
+          throw new IllegalStateException(String.format("Field '%s' is of unsupported type '%s'",
+                                                        name, schema.getType()));
+        };
     }
   }
 
-  private static String checkAndTrimToMaxSupportedPrecision(String strValue) {
-    Matcher matcher = LOGICAL_DATE_PATTERN.matcher(strValue);
-    if (matcher.matches()) {
-      String timeFraction = matcher.group(TIME_FRACTION_GROUP);
-      //matcher.group returns null for a group if an optional group did not exist in the string
-      if (timeFraction != null && timeFraction.length() > MAX_LOGICAL_DATE_TIME_FRACTION_PRECISION) {
-        //Trim the time fraction to max supported precision
-        String trimmedTimeFraction = timeFraction.substring(0, MAX_LOGICAL_DATE_TIME_FRACTION_PRECISION);
-        strValue = new StringBuilder(strValue)
-          .replace(matcher.start(TIME_FRACTION_GROUP), matcher.end(TIME_FRACTION_GROUP), trimmedTimeFraction)
-          .toString();
+  /**
+   * Trims the time fraction of a DATETIME value to the precision supported by BigQuery. Values are expected in the
+   * format YYYY-[M]M-[D]D[( |T)[H]H:[M]M:[S]S[.F]], which is checked by hand instead of with a regular expression.
+   * This is used for both JSON and Avro staging objects.
+   */
+  static String checkAndTrimToMaxSupportedPrecision(String strValue) {
+    int length = strValue.length();
+    int pos = scanDigits(strValue, 0, 4, 4);
+    pos = scanChar(strValue, pos, '-');
+    pos = scanDigits(strValue, pos, 1, 2);
+    pos = scanChar(strValue, pos, '-');
+    pos = scanDigits(strValue, pos, 1, 2);
+    int fractionStart = -1;
+    if (pos >= 0 && pos < length) {
+      char separator = strValue.charAt(pos);
+      pos = separator == ' ' || separator == 'T' ? pos + 1 : -1;
+      pos = scanDigits(strValue, pos, 1, 2);
+      pos = scanChar(strValue, pos, ':');
+      pos = scanDigits(strValue, pos, 1, 2);
+      pos = scanChar(strValue, pos, ':');
+      pos = scanDigits(strValue, pos, 1, 2);
+      if (pos >= 0 && pos < length) {
+        pos = scanChar(strValue, pos, '.');
+        fractionStart = pos;
+        pos = scanDigits(strValue, pos, 1, Integer.MAX_VALUE);
       }
-    } else {
+    }
+
+    if (pos != length) {
       //Don't throw exception for now as we might be missing some scenario in the format
       //Let it fail during BigQuery insert in case of wrong format
       LOG.warn("Invalid value {} for DATETIME type, it should match the " +
                  "format YYYY-[M]M-[D]D[( |T)[H]H:[M]M:[S]S[.F]]", strValue);
+      return strValue;
+    }
+    if (fractionStart >= 0 && length - fractionStart > MAX_LOGICAL_DATE_TIME_FRACTION_PRECISION) {
+      //Trim the time fraction to max supported precision, the fraction is always at the end of the value
+      return strValue.substring(0, fractionStart + MAX_LOGICAL_DATE_TIME_FRACTION_PRECISION);
     }
     return strValue;
   }
 
-  private static void writeArray(JsonWriter writer,
-                                 String name,
-                                 @Nullable Object value,
-                                 Schema fieldSchema) throws IOException {
-    if (value == null) {
-      throw new RuntimeException(
-        String.format("Field '%s' is of value null, which is not a valid value for BigQuery type array.", name));
+  /**
+   * Scans between min and max ASCII digits starting at the given position.
+   *
+   * @return the position after the digits, or -1 if there are not enough digits or the position is already -1
+   */
+  private static int scanDigits(String str, int pos, int min, int max) {
+    if (pos < 0) {
+      return -1;
     }
+    int end = pos;
+    while (end < str.length() && end - pos < max && str.charAt(end) >= '0' && str.charAt(end) <= '9') {
+      end++;
+    }
+    return end - pos < min ? -1 : end;
+  }
 
-    Collection collection;
-    if (value instanceof Collection) {
-      collection = (Collection) value;
-    } else if (value instanceof Object[]) {
-      collection = Arrays.asList((Object[]) value);
-    } else {
-      throw new IllegalArgumentException(String.format(
-        "A value for the field '%s' is of type '%s' when it is expected to be a Collection or array.",
-        name, value.getClass().getSimpleName()));
+  /**
+   * @return the position after the expected character, or -1 if it is not at the given position
+   */
+  private static int scanChar(String str, int pos, char expected) {
+    return pos >= 0 && pos < str.length() && str.charAt(pos) == expected ? pos + 1 : -1;
+  }
+
+  private static String formatDate(int epochDay) {
+    if (epochDay < MIN_FAST_EPOCH_DAY || epochDay > MAX_FAST_EPOCH_DAY) {
+      return LocalDate.ofEpochDay(epochDay).toString();
     }
+    char[] buffer = BUFFER.get();
+    int length = writeDate(buffer, 0, epochDay);
+    return new String(buffer, 0, length);
+  }
 
-    Schema componentSchema = getNonNullableSchema(Objects.requireNonNull(fieldSchema.getComponentSchema()));
-    if (UNSUPPORTED_ARRAY_TYPES.contains(componentSchema.getType())) {
-      throw new IllegalArgumentException(String.format("Field '%s' is an array of '%s', " +
-                                                         "which is not a valid BigQuery type.",
-                                                       name, componentSchema));
+  private static String formatTime(long microOfDay) {
+    if (microOfDay < 0 || microOfDay >= MICROS_PER_DAY) {
+      // out of range, let java.time fail with its usual error
+      return TIME_FORMATTER.format(LocalTime.ofNanoOfDay(TimeUnit.MICROSECONDS.toNanos(microOfDay)));
+    }
+    char[] buffer = BUFFER.get();
+    int length = writeTime(buffer, 0, microOfDay);
+    return new String(buffer, 0, length);
+  }
+
+  private static String formatTimestamp(long ts, TimeUnit unit) {
+    long epochDay = Math.floorDiv(ts, unit.convert(1, TimeUnit.DAYS));
+    if (epochDay < MIN_FAST_EPOCH_DAY || epochDay > MAX_FAST_EPOCH_DAY) {
+      return DATETIME_FORMATTER.format(getZonedDateTime(ts, unit));
     }
+    long microOfDay = unit.toMicros(Math.floorMod(ts, unit.convert(1, TimeUnit.DAYS)));
+    char[] buffer = BUFFER.get();
+    int pos = writeDate(buffer, 0, epochDay);
+    buffer[pos++] = ' ';
+    pos = writeTime(buffer, pos, microOfDay);
+    return new String(buffer, 0, pos);
+  }
 
-    writer.name(name);
-    writer.beginArray();
+  /**
+   * Writes the date of an epoch day as yyyy-MM-dd. The year must have at most four digits.
+   */
+  private static int writeDate(char[] buffer, int pos, long epochDay) {
+    // civil from days, counting in 400 year eras that start on March 1st so that leap days come last
+    long days = epochDay + 719468L;
+    long era = Math.floorDiv(days, 146097L);
+    long dayOfEra = days - era * 146097L;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long shiftedMonth = (5 * dayOfYear + 2) / 153;
+    long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
 
-    for (Object element : collection) {
-      // BigQuery does not allow null values in array items
-      if (element == null) {
-        throw new IllegalArgumentException(String.format("Field '%s' contains null values in its array, " +
-                                                           "which is not allowed by BigQuery.", name));
-      }
-      if (element instanceof StructuredRecord) {
-        StructuredRecord record = (StructuredRecord) element;
-        processRecord(writer, record, Objects.requireNonNull(record.getSchema().getFields()));
-      } else {
-        write(writer, name, true, element, componentSchema);
-      }
+    pos = writeDigits(buffer, pos, year, 4);
+    buffer[pos++] = '-';
+    pos = writeDigits(buffer, pos, month, 2);
+    buffer[pos++] = '-';
+    return writeDigits(buffer, pos, day, 2);
+  }
+
+  /**
+   * Writes the time of a microsecond of the day as HH:mm:ss.SSSSSS.
+   */
+  private static int writeTime(char[] buffer, int pos, long microOfDay) {
+    long secondOfDay = microOfDay / MICROS_PER_SECOND;
+    pos = writeDigits(buffer, pos, secondOfDay / 3600, 2);
+    buffer[pos++] = ':';
+    pos = writeDigits(buffer, pos, secondOfDay / 60 % 60, 2);
+    buffer[pos++] = ':';
+    pos = writeDigits(buffer, pos, secondOfDay % 60, 2);
+    buffer[pos++] = '.';
+    return writeDigits(buffer, pos, microOfDay % MICROS_PER_SECOND, 6);
+  }
+
+  /**
+   * Writes a non-negative value zero padded to the given number of digits.
+   */
+  private static int writeDigits(char[] buffer, int pos, long value, int digits) {
+    for (int i = pos + digits - 1; i >= pos; i--) {
+      buffer[i] = (char) ('0' + value % 10);
+      value /= 10;
     }
-    writer.endArray();
+    return pos + digits;
   }
 
-  private static void writeRecord(JsonWriter writer,
-                                  String name,
-                                  @Nullable Object value,
-                                  Schema fieldSchema) throws IOException {
-    if (value == null) {
-      writer.name(name);
-      writer.nullValue();
-      return;
+  private static String formatDecimal(byte[] value, int scale) {
+    if (value.length == 0 || value.length > 8 || scale < 0 || scale > MAX_FAST_DECIMAL_SCALE) {
+      return getDecimal(value, scale).toPlainString();
+    }
+    // the bytes are the big endian two's complement of the unscaled value
+    long unscaled = value[0];
+    for (int i = 1; i < value.length; i++) {
+      unscaled = (unscaled << 8) | (value[i] & 0xff);
+    }
+    if (unscaled == Long.MIN_VALUE) {
+      return getDecimal(value, scale).toPlainString();
     }
 
-    if (!(value instanceof StructuredRecord)) {
-      throw new IllegalStateException(
-        String.format("Value is of type '%s', expected type is '%s'",
-                      value.getClass().getSimpleName(), StructuredRecord.class.getSimpleName()));
+    char[] buffer = BUFFER.get();
+    int pos = buffer.length;
+    long remaining = Math.abs(unscaled);
+    for (int i = 0; i < scale; i++) {
+      buffer[--pos] = (char) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    if (scale > 0) {
+      buffer[--pos] = '.';
     }
+    do {
+      buffer[--pos] = (char) ('0' + remaining % 10);
+      remaining /= 10;
+    } while (remaining != 0);
+    if (unscaled < 0) {
+      buffer[--pos] = '-';
+    }
+    return new String(buffer, pos, buffer.length - pos);
+  }
 
-    writer.name(name);
-    processRecord(writer, (StructuredRecord) value, Objects.requireNonNull(fieldSchema.getFields()));
+  private static ValueWriter compileArray(Schema fieldSchema) {
+    Schema componentSchema = getNonNullableSchema(Objects.requireNonNull(fieldSchema.getComponentSchema()));
+    if (UNSUPPORTED_ARRAY_TYPES.contains(componentSchema.getType())) {
+      return (writer, name, value) -> {
+        toCollection(name, value);
+        throw new IllegalArgumentException(String.format("Field '%s' is an array of '%s', " +
+                                                           "which is not a valid BigQuery type.",
+                                                         name, componentSchema));
+      };
+    }
+
+    ValueWriter componentWriter = getValueWriter(componentSchema);
+    return (writer, name, value) -> {
+      Collection<?> collection = toCollection(name, value);
+      writer.beginArray();
+      for (Object element : collection) {
+        // BigQuery does not allow null values in array items
+        if (element == null) {
+          throw new IllegalArgumentException(String.format("Field '%s' contains null values in its array, " +
+                                                             "which is not allowed by BigQuery.", name));
+        }
+        if (element instanceof StructuredRecord) {
+          Schema recordSchema = ((StructuredRecord) element).getSchema();
+          ValueWriter recordWriter = recordSchema == componentSchema ? componentWriter : getValueWriter(recordSchema);
+          recordWriter.write(writer, name, element);
+        } else {
+          componentWriter.write(writer, name, element);
+        }
+      }
+      writer.endArray();
+    };
   }
 
-  private static void processRecord(JsonWriter writer,
-                                    StructuredRecord record,
-                                    List<Schema.Field> fields) throws IOException {
-    writer.beginObject();
-    for (Schema.Field field : fields) {
-      write(writer, field.getName(), record.get(field.getName()), field.getSchema());
+  private static Collection<?> toCollection(String name, @Nullable Object value) {
+    if (value == null) {
+      throw new RuntimeException(
+        String.format("Field '%s' is of value null, which is not a valid value for BigQuery type array.", name));
     }
-    writer.endObject();
+    if (value instanceof Collection) {
+      return (Collection<?>) value;
+    }
+    if (value instanceof Object[]) {
+      return Arrays.asList((Object[]) value);
+    }
+    throw new IllegalArgumentException(String.format(
+      "A value for the field '%s' is of type '%s' when it is expected to be a Collection or array.",
+      name, value.getClass().getSimpleName()));
+  }
+
+  /**
+   * Compiles the writer of non-null record values.
+   */
+  private static ValueWriter compileRecord(Schema schema) {
+    List<Schema.Field> fields = schema.getFields();
+    if (fields == null) {
+      // a reference to a record defined elsewhere, which BigQuery cannot represent
+      return (writer, name, value) -> {
+        throw new IllegalStateException(String.format("Field '%s' refers to record '%s' which has no fields",
+                                                      name, schema.getRecordName()));
+      };
+    }
+    String[] names = new String[fields.size()];
+    ValueWriter[] fieldWriters = new ValueWriter[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      names[i] = fields.get(i).getName();
+      fieldWriters[i] = getValueWriter(fields.get(i).getSchema());
+    }
+    return (writer, name, value) -> {
+      if (!(value instanceof StructuredRecord)) {
+        throw new IllegalStateException(
+          String.format("Value is of type '%s', expected type is '%s'",
+                        value.getClass().getSimpleName(), StructuredRecord.class.getSimpleName()));
+      }
+      StructuredRecord record = (StructuredRecord) value;
+      writer.beginObject();
+      for (int i = 0; i < names.length; i++) {
+        writer.name(names[i]);
+        fieldWriters[i].write(writer, names[i], record.get(names[i]));
+      }
+      writer.endObject();
+    };
   }
 
   private static ZonedDateTime getZonedDateTime(long ts, TimeUnit unit) {
@@ -312,8 +490,7 @@ public final class StructuredRecordToJson {
     return ZonedDateTime.ofInstant(instant, ZoneId.ofOffset("UTC", ZoneOffset.UTC));
   }
 
-  private static BigDecimal getDecimal(byte[] value, Schema schema) {
-    int scale = schema.getScale();
+  private static BigDecimal getDecimal(byte[] value, int scale) {
     return new BigDecimal(new BigInteger(value), scale);
   }
 
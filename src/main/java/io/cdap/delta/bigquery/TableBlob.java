@@ -16,13 +16,13 @@
 
 package io.cdap.delta.bigquery;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
 import io.cdap.cdap.api.data.schema.Schema;
 
 import javax.annotation.Nullable;
 
 /**
- * A batch of events for a table, stored as a GCS blob.
+ * A batch of events for a table, stored as a GCS blob or held as rows for a pending write stream of a staging table.
  */
 public class TableBlob {
   private final String dataset;
@@ -32,23 +32,32 @@ public class TableBlob {
   private final Schema targetSchema;
   private final long batchId;
   private final long numEvents;
-  private final Blob blob;
+  private final long maxSequenceNum;
+  private final BlobId blobId;
+  private final WriteStreamRows writeStreamRows;
   private final boolean snapshotOnly;
-  private final boolean jsonFormat;
+  private final StagingFormat format;
+  private final boolean compacted;
+  private final KeyBounds keyBounds;
 
   public TableBlob(String dataset, @Nullable String sourceDbSchemaName, String table, Schema targetSchema,
-                   Schema stagingSchema, long batchId, long numEvents, Blob blob, boolean snapshotOnly,
-                   boolean jsonFormat) {
+                   Schema stagingSchema, long batchId, long numEvents, long maxSequenceNum,
+                   @Nullable BlobId blobId, @Nullable WriteStreamRows writeStreamRows, boolean snapshotOnly,
+                   StagingFormat format, boolean compacted, @Nullable KeyBounds keyBounds) {
     this.dataset = dataset;
     this.sourceDbSchemaName = sourceDbSchemaName;
     this.table = table;
     this.targetSchema = targetSchema;
     this.stagingSchema = stagingSchema;
     this.batchId = batchId;
-    this.blob = blob;
+    this.blobId = blobId;
+    this.writeStreamRows = writeStreamRows;
     this.numEvents = numEvents;
+    this.maxSequenceNum = maxSequenceNum;
     this.snapshotOnly = snapshotOnly;
-    this.jsonFormat = jsonFormat;
+    this.format = format;
+    this.compacted = compacted;
+    this.keyBounds = keyBounds;
   }
 
   public String getDataset() {
@@ -80,15 +89,50 @@ public class TableBlob {
     return numEvents;
   }
 
-  public Blob getBlob() {
-    return blob;
+  /**
+   * Returns the sequence number of the last event in the batch.
+   */
+  public long getMaxSequenceNum() {
+    return maxSequenceNum;
+  }
+
+  /**
+   * Returns the GCS object of the batch, or null if the batch is appended to a write stream.
+   */
+  @Nullable
+  public BlobId getBlobId() {
+    return blobId;
+  }
+
+  /**
+   * Returns the rows to append to a write stream of the staging table, or null if the batch was written to GCS.
+   */
+  @Nullable
+  WriteStreamRows getWriteStreamRows() {
+    return writeStreamRows;
   }
 
   public boolean isSnapshotOnly() {
     return snapshotOnly;
   }
 
-  public boolean isJsonFormat() {
-    return jsonFormat;
+  public StagingFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns whether the batch holds at most one event per row, the net change of the row in the batch.
+   */
+  public boolean isCompacted() {
+    return compacted;
+  }
+
+  /**
+   * Returns the bounds of the primary keys the events of the batch match rows of the target table with, or null if
+   * they were not tracked.
+   */
+  @Nullable
+  KeyBounds getKeyBounds() {
+    return keyBounds;
   }
 }
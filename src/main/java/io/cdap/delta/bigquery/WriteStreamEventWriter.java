@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * EventWriter that encodes staging records into rows for a pending stream of the staging table, instead of writing
+ * them to an object that is loaded into the staging table.
+ * <p>
+ * Records are encoded as JSON objects and grouped into chunks of about the configured size, one append request
+ * each. Nothing is sent while events are written, the rows are appended once the batch is staged.
+ */
+class WriteStreamEventWriter implements EventWriter {
+  private final WriteStreamRows rows;
+  private final int appendSize;
+  private final WriteStreamRowEncoder encoder;
+  private JSONArray chunk;
+  private long chunkSize;
+
+  /**
+   * @param appendSize approximate number of bytes of rows to append in one request
+   */
+  WriteStreamEventWriter(WriteStreamRows rows, int appendSize) {
+    this.rows = rows;
+    this.appendSize = appendSize;
+    this.encoder = new WriteStreamRowEncoder();
+    this.chunk = new JSONArray();
+  }
+
+  @Override
+  public void write(StagingRecord record) {
+    JSONObject row = encoder.encode(record);
+    long rowSize = WriteStreamRowEncoder.estimateSize(row);
+    if (chunk.length() > 0 && chunkSize + rowSize > appendSize) {
+      addChunk();
+    }
+    chunk.put(row);
+    chunkSize += rowSize;
+  }
+
+  /**
+   * Returns the approximate number of bytes of the rows written so far.
+   */
+  long getBytesWritten() {
+    return rows.getSize() + chunkSize;
+  }
+
+  /**
+   * Returns the approximate number of bytes the rows written so far take on the heap.
+   */
+  long getMemoryUsage() {
+    return WriteStreamRows.getMemoryUsage(getBytesWritten());
+  }
+
+  private void addChunk() {
+    rows.add(chunk, chunkSize);
+    chunk = new JSONArray();
+    chunkSize = 0L;
+  }
+
+  @Override
+  public void close() {
+    if (chunk.length() > 0) {
+      addChunk();
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.protobuf.ByteString;
+import io.cdap.cdap.api.common.Bytes;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes staging records as JSON objects that are appended to a pending write stream.
+ * <p>
+ * Unlike {@link StagingRecordJson}, which writes the text that load jobs parse, values are encoded in the form
+ * that the stream writer sets on the protocol buffer field of their column without parsing them: dates as epoch
+ * days, timestamps as epoch microseconds, times and datetimes as packed civil time longs, decimals as strings and
+ * bytes as byte strings. Null values are left out.
+ */
+class WriteStreamRowEncoder {
+  // bit layout of packed civil times, from the most significant bit: year, month, day, hour, minute, second and
+  // microseconds, the date is left out for times
+  private static final int MICRO_LENGTH = 20;
+  private static final int MINUTE_SHIFT = 6;
+  private static final int HOUR_SHIFT = 12;
+  private static final int DAY_SHIFT = 17;
+  private static final int MONTH_SHIFT = 22;
+  private static final int YEAR_SHIFT = 26;
+  private static final long MICROS_PER_SECOND = 1000000L;
+  // DATETIME values are strings of the form YYYY-[M]M-[D]D[( |T)[H]H:[M]M:[S]S[.F]], see StructuredRecordToJson
+  private static final DateTimeFormatter DATETIME_PARSER = new DateTimeFormatterBuilder()
+    .appendValue(ChronoField.YEAR, 4).appendLiteral('-')
+    .appendValue(ChronoField.MONTH_OF_YEAR, 1, 2, SignStyle.NOT_NEGATIVE).appendLiteral('-')
+    .appendValue(ChronoField.DAY_OF_MONTH, 1, 2, SignStyle.NOT_NEGATIVE)
+    .optionalStart()
+    .appendLiteral('T')
+    .appendValue(ChronoField.HOUR_OF_DAY, 1, 2, SignStyle.NOT_NEGATIVE).appendLiteral(':')
+    .appendValue(ChronoField.MINUTE_OF_HOUR, 1, 2, SignStyle.NOT_NEGATIVE).appendLiteral(':')
+    .appendValue(ChronoField.SECOND_OF_MINUTE, 1, 2, SignStyle.NOT_NEGATIVE)
+    .optionalStart()
+    .appendFraction(ChronoField.MICRO_OF_SECOND, 1, 6, true)
+    .optionalEnd()
+    .optionalEnd()
+    .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+    .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+    .parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0)
+    .toFormatter();
+
+  private RecordProjection projection;
+  private ValueEncoder[] columnEncoders;
+  private ValueEncoder[] sortKeyEncoders;
+
+  /**
+   * Encodes a non-null value of a single schema.
+   */
+  private interface ValueEncoder {
+    /**
+     * @param name name of the field being encoded, used in error messages
+     */
+    Object encode(String name, Object value);
+  }
+
+  /**
+   * Encodes the record as a JSON object.
+   */
+  JSONObject encode(StagingRecord record) {
+    if (record.getProjection() != projection) {
+      compile(record.getProjection());
+    }
+    JSONObject row = new JSONObject();
+    for (int i = 0; i < columnEncoders.length; i++) {
+      RecordProjection.Column column = projection.getColumn(i);
+      if (columnEncoders[i] == null) {
+        JSONObject sortKeys = new JSONObject();
+        List<Schema.Field> sortKeyFields = column.getSchema().getFields();
+        for (int k = 0; k < sortKeyEncoders.length; k++) {
+          put(sortKeys, sortKeyFields.get(k).getName(), sortKeyEncoders[k], record.getSortKey(k));
+        }
+        row.put(column.getName(), sortKeys);
+      } else {
+        put(row, column.getName(), columnEncoders[i], record.get(i));
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Returns the approximate number of bytes an encoded value takes in an append request.
+   */
+  static long estimateSize(Object value) {
+    if (value instanceof String) {
+      return ((String) value).length();
+    }
+    if (value instanceof ByteString) {
+      return ((ByteString) value).size();
+    }
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      long size = 0L;
+      for (String key : object.keySet()) {
+        size += key.length() + estimateSize(object.get(key));
+      }
+      return size;
+    }
+    if (value instanceof JSONArray) {
+      long size = 0L;
+      for (Object element : (JSONArray) value) {
+        size += estimateSize(element);
+      }
+      return size;
+    }
+    return 8L;
+  }
+
+  private static void put(JSONObject object, String name, ValueEncoder encoder, @Nullable Object value) {
+    if (value != null) {
+      object.put(name, encoder.encode(name, value));
+    }
+  }
+
+  private void compile(RecordProjection projection) {
+    ValueEncoder[] columnEncoders = new ValueEncoder[projection.size()];
+    ValueEncoder[] sortKeyEncoders = null;
+    for (int i = 0; i < projection.size(); i++) {
+      RecordProjection.Column column = projection.getColumn(i);
+      if (column.getSource() == RecordProjection.Source.SORT_KEYS) {
+        List<Schema.Field> sortKeyFields = column.getSchema().getFields();
+        sortKeyEncoders = new ValueEncoder[sortKeyFields.size()];
+        for (int k = 0; k < sortKeyFields.size(); k++) {
+          sortKeyEncoders[k] = compile(sortKeyFields.get(k).getSchema());
+        }
+      } else {
+        columnEncoders[i] = compile(column.getSchema());
+      }
+    }
+    this.projection = projection;
+    this.columnEncoders = columnEncoders;
+    this.sortKeyEncoders = sortKeyEncoders;
+  }
+
+  private static ValueEncoder compile(Schema fieldSchema) {
+    Schema schema = fieldSchema.isNullable() ? fieldSchema.getNonNullable() : fieldSchema;
+    Schema.LogicalType logicalType = schema.getLogicalType();
+    if (logicalType != null) {
+      switch (logicalType) {
+        case DATE:
+          return (name, value) -> value;
+        case TIME_MILLIS:
+          return (name, value) -> encodeTime(TimeUnit.MILLISECONDS.toMicros((Integer) value));
+        case TIME_MICROS:
+          return (name, value) -> encodeTime((Long) value);
+        case TIMESTAMP_MILLIS:
+          return (name, value) -> TimeUnit.MILLISECONDS.toMicros((Long) value);
+        case TIMESTAMP_MICROS:
+          return (name, value) -> value;
+        case DECIMAL:
+          int scale = schema.getScale();
+          return (name, value) -> new BigDecimal(new BigInteger((byte[]) value), scale).toPlainString();
+        case DATETIME:
+          return (name, value) ->
+            encodeDatetime(StructuredRecordToJson.checkAndTrimToMaxSupportedPrecision(value.toString()));
+        default:
+          return (name, value) -> {
+            throw new IllegalStateException(
+              String.format("Field '%s' is of unsupported type '%s'", name, logicalType.getToken()));
+          };
+      }
+    }
+
+    switch (schema.getType()) {
+      case INT:
+      case LONG:
+        return (name, value) -> ((Number) value).longValue();
+      case FLOAT:
+        // widening the float itself would add digits that were never part of the value
+        return (name, value) -> Double.parseDouble(value.toString());
+      case DOUBLE:
+        return (name, value) -> ((Number) value).doubleValue();
+      case BOOLEAN:
+        return (name, value) -> value;
+      case STRING:
+      case ENUM:
+        return (name, value) -> value.toString();
+      case BYTES:
+        return (name, value) -> ByteString.copyFrom(toBytes(name, value));
+      case ARRAY:
+        // array columns are typed by their component type, see Schemas
+        Schema componentSchema = schema.getComponentSchema().isNullable() ?
+          schema.getComponentSchema().getNonNullable() : schema.getComponentSchema();
+        ValueEncoder componentEncoder = compile(componentSchema.getLogicalType() == null ?
+                                                  componentSchema : Schema.of(componentSchema.getType()));
+        return (name, value) -> {
+          JSONArray array = new JSONArray();
+          for (Object element : toCollection(name, value)) {
+            // BigQuery does not allow null values in array items
+            if (element == null) {
+              throw new IllegalArgumentException(String.format("Field '%s' contains null values in its array, " +
+                                                                 "which is not allowed by BigQuery.", name));
+            }
+            array.put(componentEncoder.encode(name, element));
+          }
+          return array;
+        };
+      case RECORD:
+        List<Schema.Field> fields = schema.getFields();
+        String[] names = new String[fields.size()];
+        ValueEncoder[] fieldEncoders = new ValueEncoder[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+          names[i] = fields.get(i).getName();
+          fieldEncoders[i] = compile(fields.get(i).getSchema());
+        }
+        return (name, value) -> {
+          StructuredRecord record = (StructuredRecord) value;
+          JSONObject object = new JSONObject();
+          for (int i = 0; i < names.length; i++) {
+            put(object, names[i], fieldEncoders[i], record.get(names[i]));
+          }
+          return object;
+        };
+      default:
+        return (name, value) -> {
+          throw new IllegalStateException(String.format("Field '%s' is of unsupported type '%s'",
+                                                        name, schema.getType()));
+        };
+    }
+  }
+
+  /**
+   * Packs a time of day as hour, minute, second and microseconds.
+   */
+  static long encodeTime(long microOfDay) {
+    long secondOfDay = microOfDay / MICROS_PER_SECOND;
+    long seconds = (secondOfDay / 3600) << HOUR_SHIFT | (secondOfDay / 60 % 60) << MINUTE_SHIFT | secondOfDay % 60;
+    return seconds << MICRO_LENGTH | microOfDay % MICROS_PER_SECOND;
+  }
+
+  /**
+   * Packs a datetime with at most six digits of fraction as year, month, day, hour, minute, second and microseconds.
+   */
+  static long encodeDatetime(String value) {
+    LocalDateTime datetime = LocalDateTime.parse(value.replace(' ', 'T'), DATETIME_PARSER);
+    long seconds = (long) datetime.getYear() << YEAR_SHIFT | (long) datetime.getMonthValue() << MONTH_SHIFT
+      | (long) datetime.getDayOfMonth() << DAY_SHIFT | (long) datetime.getHour() << HOUR_SHIFT
+      | (long) datetime.getMinute() << MINUTE_SHIFT | datetime.getSecond();
+    return seconds << MICRO_LENGTH | datetime.getNano() / 1000;
+  }
+
+  private static byte[] toBytes(String name, Object value) {
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    if (value instanceof ByteBuffer) {
+      return Bytes.toBytes((ByteBuffer) value);
+    }
+    throw new IllegalStateException(String.format("Expected value of Field '%s' to be bytes but got '%s'",
+                                                  name, value.getClass().getSimpleName()));
+  }
+
+  private static Collection<?> toCollection(String name, Object value) {
+    if (value instanceof Collection) {
+      return (Collection<?>) value;
+    }
+    if (value instanceof Object[]) {
+      return Arrays.asList((Object[]) value);
+    }
+    throw new IllegalArgumentException(String.format(
+      "A value for the field '%s' is of type '%s' when it is expected to be a Collection or array.",
+      name, value.getClass().getSimpleName()));
+  }
+}
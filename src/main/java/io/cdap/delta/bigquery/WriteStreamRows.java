@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of a batch that is staged through a pending write stream, in chunks of about one append request each.
+ * <p>
+ * The rows are held in memory from the time they are written until they were appended at the load stage, so that
+ * the stream is opened off the write path and a failed attempt can append all of them to a new stream. The memory
+ * is reserved in the {@link MemoryBudget} for that whole time.
+ */
+class WriteStreamRows {
+  // rows held as JSON objects take about four times their encoded size on the heap, counting the maps of the
+  // objects and the boxed values
+  private static final int HEAP_BYTES_PER_BYTE = 4;
+  private final List<JSONArray> chunks;
+  private long size;
+  private MemoryBudget memoryBudget;
+  private long reservedMemory;
+
+  WriteStreamRows() {
+    this.chunks = new ArrayList<>();
+  }
+
+  static long getMemoryUsage(long size) {
+    return HEAP_BYTES_PER_BYTE * size;
+  }
+
+  void add(JSONArray chunk, long chunkSize) {
+    chunks.add(chunk);
+    size += chunkSize;
+  }
+
+  /**
+   * Returns the chunks of rows, in the order they have to be appended.
+   */
+  synchronized List<JSONArray> getChunks() {
+    return new ArrayList<>(chunks);
+  }
+
+  /**
+   * Returns the approximate number of bytes of the rows.
+   */
+  long getSize() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return chunks.isEmpty();
+  }
+
+  /**
+   * Reserves the memory of the rows until they are released.
+   */
+  synchronized void reserve(MemoryBudget memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    reservedMemory = getMemoryUsage(size);
+    memoryBudget.reserve(reservedMemory);
+  }
+
+  /**
+   * Drops the rows and releases their memory. Rows are released once they are appended, or once the batch failed.
+   */
+  synchronized void release() {
+    chunks.clear();
+    if (memoryBudget != null) {
+      memoryBudget.release(reservedMemory);
+      memoryBudget = null;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableId;
+import org.json.JSONArray;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Appends rows to BigQuery tables through pending write streams. Rows appended to a pending stream only become
+ * visible once the stream is finalized and committed, so a batch of rows is staged atomically.
+ * <p>
+ * Errors of BigQuery are thrown as they are, as {@link com.google.cloud.bigquery.BigQueryException}s or
+ * {@link com.google.api.gax.rpc.ApiException}s, so that callers can tell which ones are worth retrying.
+ */
+interface WriteStreamService extends Closeable {
+
+  /**
+   * Creates a pending stream to the given staging table. The table is created with the given schema if it does not
+   * exist, and the columns it is missing are added if it does. Staging tables are reused by every batch of their
+   * target table, the rows of a batch are told apart by their batch id.
+   *
+   * @param tableId the table, in the project of the service if the table id has no project
+   */
+  PendingStream createPendingStream(TableId tableId, Schema schema) throws IOException, InterruptedException;
+
+  /**
+   * Commits finalized streams of a table, which makes their rows visible. Committing streams that are already
+   * committed succeeds, so that failed commits can be retried.
+   */
+  void commit(TableId tableId, List<String> streamNames) throws IOException;
+
+  /**
+   * Drops a staging table if it exists, so that the next stream to it creates it again. This must only be called
+   * while no stream to the table is open or waiting to be committed.
+   */
+  void dropStagingTable(TableId tableId);
+
+  /**
+   * A pending stream that rows are appended to.
+   */
+  interface PendingStream {
+
+    /**
+     * Returns the name of the stream, which is passed to {@link #commit(TableId, List)}.
+     */
+    String getName();
+
+    /**
+     * Appends rows to the stream. Appends can complete asynchronously, in which case a failure is thrown by
+     * {@link #finalizeStream()}.
+     */
+    void append(JSONArray rows) throws IOException;
+
+    /**
+     * Waits for all appends to complete and finalizes the stream, so that no more rows can be appended.
+     *
+     * @return the number of rows in the stream
+     */
+    long finalizeStream() throws IOException, InterruptedException;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+  @Test
+  public void testThrottlingCutsLimitOncePerRound() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 8, 0.5d);
+    List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      permits.add(limiter.acquire());
+    }
+    Assert.assertEquals(8, limiter.getInFlight());
+
+    // every request of the round was throttled, but they were all sent under the same limit
+    for (AdaptiveConcurrencyLimiter.Permit permit : permits) {
+      permit.throttled();
+      permit.close();
+    }
+    Assert.assertEquals(4, limiter.getLimit());
+    Assert.assertEquals(0, limiter.getInFlight());
+
+    // requests sent under the cut limit cut it again
+    AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+    permit.throttled();
+    permit.close();
+    Assert.assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testSuccessesGrowLimitAdditively() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 4, 0.5d);
+    AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+    permit.throttled();
+    permit.close();
+    permit = limiter.acquire();
+    permit.throttled();
+    permit.close();
+    Assert.assertEquals(1, limiter.getLimit());
+
+    // a round of one success at a limit of one adds one
+    succeed(limiter, 1);
+    Assert.assertEquals(2, limiter.getLimit());
+    // each success adds one over the current limit, so it takes a little more than a round of two to add one more
+    succeed(limiter, 2);
+    Assert.assertEquals(2, limiter.getLimit());
+    succeed(limiter, 1);
+    Assert.assertEquals(3, limiter.getLimit());
+    // the limit never grows beyond the maximum
+    succeed(limiter, 100);
+    Assert.assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testOtherFailuresKeepLimit() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 4, 0.5d);
+    AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+    permit.throttled();
+    permit.close();
+    limiter.acquire().close();
+    Assert.assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testAcquireBlocksAtLimit() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 0.5d);
+    AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+    Thread waiter = new Thread(() -> {
+      try {
+        limiter.acquire().close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    waiter.start();
+    waiter.join(200);
+    Assert.assertTrue(waiter.isAlive());
+
+    permit.close();
+    waiter.join(10000);
+    Assert.assertFalse(waiter.isAlive());
+    Assert.assertEquals(0, limiter.getInFlight());
+  }
+
+  private static void succeed(AdaptiveConcurrencyLimiter limiter, int requests) throws InterruptedException {
+    for (int i = 0; i < requests; i++) {
+      AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+      permit.succeeded();
+      permit.close();
+    }
+  }
+}
@@ -28,6 +28,8 @@ import com.google.cloud.bigquery.JobConfiguration;
 import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.LoadJobConfiguration;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
@@ -49,12 +51,16 @@ import io.cdap.delta.api.DeltaFailureException;
 import io.cdap.delta.api.DeltaTargetContext;
 import io.cdap.delta.api.Offset;
 import io.cdap.delta.api.Sequenced;
+import io.cdap.delta.api.SourceProperties;
 import org.apache.avro.file.DataFileWriter;
+import org.json.JSONArray;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -66,10 +72,15 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -146,6 +157,13 @@ public class BigQueryConsumerTest {
         return job;
       });
     Mockito.when(job.getStatus()).thenReturn(Mockito.mock(JobStatus.class));
+    // load and merge jobs are polled by the job completion tracker until they are done
+    Mockito.when(job.reload())
+      .thenAnswer((a) -> {
+        TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(BQ_JOB_TIME_BOUND));
+        return job;
+      });
+    Mockito.when(job.getStatus().getState()).thenReturn(JobStatus.State.RUNNING, JobStatus.State.DONE);
     Mockito.when(bigQuery.create(ArgumentMatchers.any(JobInfo.class))).thenReturn(job);
     Mockito.when(bigQuery.getTable(Mockito.any())).thenReturn(table);
 
@@ -274,6 +292,445 @@ public class BigQueryConsumerTest {
     eventConsumer.stop();
   }
 
+  @Test
+  public void testStoredMergedSequenceNumSkipsMaxQuery() throws Exception {
+    int numTables = 1;
+    int numInsertEvents = 10;
+    List<String> tables = getTables(numTables);
+
+    BigQueryTableState tableState = new BigQueryTableState(Arrays.asList(PRIMARY_KEY_COL));
+    tableState.setMergedSequenceNum(5L);
+    Mockito.when(deltaTargetContext.getState(Mockito.matches("bigquery-.*")))
+      .thenReturn(GSON.toJson(tableState).getBytes());
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    EMPTY_DATASET_NAME, false);
+    eventConsumer.start();
+
+    generateInsertEvents(eventConsumer, tables, numInsertEvents, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //Events up to the stored sequence number were already merged
+    Mockito.verify(dataFileWriter, Mockito.times(numInsertEvents - 5)).append(Mockito.any());
+    //Only load and merge jobs, the latest merged sequence number is not queried from the table
+    Mockito.verify(bigQuery, Mockito.times(2)).create(Mockito.any(JobInfo.class));
+    //The sequence number of the merged batch is stored for the next restart
+    Mockito.verify(deltaTargetContext, Mockito.atLeastOnce()).putState(
+      Mockito.matches("bigquery-.*"), Mockito.argThat(bytes -> {
+        BigQueryTableState stored = GSON.fromJson(new String(bytes), BigQueryTableState.class);
+        return Long.valueOf(numInsertEvents).equals(stored.getMergedSequenceNum()) && !stored.isMergePending();
+      }));
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testPendingMergeQueriesMaxSequenceNum() throws Exception {
+    List<String> tables = getTables(1);
+
+    BigQueryTableState tableState = new BigQueryTableState(Arrays.asList(PRIMARY_KEY_COL));
+    tableState.setMergedSequenceNum(5L);
+    tableState.setMergePending(true);
+    Mockito.when(deltaTargetContext.getState(Mockito.matches("bigquery-.*")))
+      .thenReturn(GSON.toJson(tableState).getBytes());
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    EMPTY_DATASET_NAME, false);
+    eventConsumer.start();
+
+    generateInsertEvents(eventConsumer, tables, 10, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //A batch may have been merged after the stored sequence number, so it is verified with the table
+    //max sequence num, load and merge jobs
+    Mockito.verify(bigQuery, Mockito.times(3)).create(Mockito.any(JobInfo.class));
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testDroppedTableIsMergedAgainWhenReplayed() throws Exception {
+    int numInsertEvents = 10;
+    List<String> tables = getTables(1);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, numInsertEvents, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    DDLEvent dropTable = DDLEvent.builder()
+      .setOperation(DDLOperation.Type.DROP_TABLE)
+      .setDatabaseName(DATABASE)
+      .setTableName(tables.get(0))
+      .setOffset(new Offset())
+      .build();
+    eventConsumer.applyDDL(new Sequenced<>(dropTable, 0));
+    //The recreated table is replayed from the same sequence numbers
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, numInsertEvents, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    DDLEvent dropDatabase = DDLEvent.builder()
+      .setOperation(DDLOperation.Type.DROP_DATABASE)
+      .setDatabaseName(DATABASE)
+      .setOffset(new Offset())
+      .build();
+    eventConsumer.applyDDL(new Sequenced<>(dropDatabase, 0));
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, numInsertEvents, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //None of the replayed events are skipped as already merged
+    Mockito.verify(dataFileWriter, Mockito.times(3 * numInsertEvents)).append(Mockito.any());
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testStoredPrimaryKeysBoundMergeWithoutCreateTable() throws Exception {
+    String table = getTables(1).get(0);
+
+    Mockito.when(deltaTargetContext.getState(Mockito.matches("bigquery-.*")))
+      .thenReturn(GSON.toJson(new BigQueryTableState(Arrays.asList(PRIMARY_KEY_COL))).getBytes());
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    EMPTY_DATASET_NAME, false);
+    eventConsumer.start();
+
+    //The consumer is restarted, so no CREATE_TABLE event is replayed for the table
+    int seq = 0;
+    for (int id : new int[] {7, 3, 12}) {
+      DMLEvent updateEvent = DMLEvent.builder()
+        .setOperationType(DMLOperation.Type.UPDATE)
+        .setIngestTimestamp(System.currentTimeMillis())
+        .setDatabaseName(DATABASE)
+        .setTableName(table)
+        .setPreviousRow(StructuredRecord.builder(schema).set(PRIMARY_KEY_COL, id).set(NAME_COL, "alice").build())
+        .setRow(StructuredRecord.builder(schema).set(PRIMARY_KEY_COL, id).set(NAME_COL, "bob").build())
+        .setOffset(new Offset())
+        .build();
+      eventConsumer.applyDML(new Sequenced<>(updateEvent, ++seq));
+    }
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //The primary keys of the stored state bound the merge to the updated keys
+    ArgumentCaptor<JobInfo> jobs = ArgumentCaptor.forClass(JobInfo.class);
+    Mockito.verify(bigQuery, Mockito.atLeastOnce()).create(jobs.capture());
+    List<String> mergeQueries = jobs.getAllValues().stream()
+      .filter(job -> job.getJobId().getJob().contains(MERGE_JOB))
+      .map(job -> ((QueryJobConfiguration) job.getConfiguration()).getQuery())
+      .collect(Collectors.toList());
+    Assert.assertEquals(1, mergeQueries.size());
+    Assert.assertTrue(mergeQueries.get(0), mergeQueries.get(0).contains("AND T.`id` BETWEEN 3 AND 12\n"));
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testEventThresholdFlushesOnlyThatTable() throws Exception {
+    List<String> tables = getTables(2);
+    Mockito.when(deltaTargetContext.getRuntimeArguments())
+      .thenReturn(Collections.singletonMap("gcp.bigquery.flush.table.max.events", "5"));
+
+    // the scheduled flush does not run during the test
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    60, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables.subList(0, 1), 5, CDC);
+    generateInsertEvents(eventConsumer, tables.subList(1, 2), 2, CDC, 5);
+
+    //Wait for the early flush with some buffer
+    TimeUnit.SECONDS.sleep(WAIT_BUFFER_SEC);
+
+    //Only the batch of the table that reached the threshold is cut, loaded and merged
+    Mockito.verify(dataFileWriter, Mockito.times(1)).close();
+    Mockito.verify(bigQuery, Mockito.times(1)).create(isJobTypeForTable(JobConfiguration.Type.LOAD, tables.get(0)));
+    Mockito.verify(bigQuery, Mockito.never()).create(isJobTypeForTable(JobConfiguration.Type.LOAD, tables.get(1)));
+    Mockito.verify(bigQuery, Mockito.times(1))
+      .create(isJobTypeAndCategory(JobConfiguration.Type.QUERY, MERGE_JOB));
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testFailedMergeOfOneTableIsNotCommitted() throws Exception {
+    List<String> tables = getTables(2);
+    BigQueryError error = new BigQueryError("invalid", "loc", "error");
+    Mockito.when(bigQuery.create(isJobTypeForTable(JobConfiguration.Type.QUERY, MERGE_JOB, tables.get(1)),
+                                 Mockito.any()))
+      .thenThrow(new BigQueryException(400, "error", error));
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //The other table is merged independently of the failed one
+    Mockito.verify(bigQuery, Mockito.times(1))
+      .create(isJobTypeForTable(JobConfiguration.Type.QUERY, MERGE_JOB, tables.get(0)));
+    //The offset is only committed once every table of the flush was merged
+    Mockito.verify(deltaTargetContext, Mockito.never()).commitOffset(Mockito.any(Offset.class), Mockito.anyLong());
+    try {
+      exceptionRule.expect(BigQueryException.class);
+      //The failure is rethrown by the next event
+      generateInsertEvents(eventConsumer, tables.subList(0, 1), 1, CDC, 10);
+    } finally {
+      eventConsumer.stop();
+    }
+  }
+
+  @Test
+  public void testSharedStagingTable() throws Exception {
+    List<String> tables = getTables(2);
+    Mockito.when(deltaTargetContext.getRuntimeArguments())
+      .thenReturn(Collections.singletonMap("gcp.bigquery.staging.table.shared", "true"));
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //The batches of both tables are loaded with a single load job
+    Mockito.verify(bigQuery, Mockito.times(1)).create(isJobType(JobConfiguration.Type.LOAD));
+    //Each table merges its own rows of the shared staging table
+    for (String table : tables) {
+      Mockito.verify(bigQuery, Mockito.times(1)).create(isMergeFromSharedStagingTable(table));
+    }
+    //Only the shared staging table is dropped, once both tables are merged
+    Mockito.verify(bigQuery, Mockito.times(1)).delete(Mockito.any(TableId.class));
+    Mockito.verify(bigQuery, Mockito.times(1)).delete(isSharedStagingTable());
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testSharedStagingTablesAreShardedByColumnCount() throws Exception {
+    List<String> tables = getTables(3);
+    Map<String, String> runtimeArguments = new HashMap<>();
+    runtimeArguments.put("gcp.bigquery.staging.table.shared", "true");
+    // each table adds its column and the 7 columns of its staging records, so two tables fit in a shared table
+    runtimeArguments.put("gcp.bigquery.staging.table.shared.max.columns", "20");
+    Mockito.when(deltaTargetContext.getRuntimeArguments()).thenReturn(runtimeArguments);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    //The third table starts a second shared staging table
+    Mockito.verify(bigQuery, Mockito.times(2)).create(isJobType(JobConfiguration.Type.LOAD));
+    ArgumentCaptor<JobInfo> jobs = ArgumentCaptor.forClass(JobInfo.class);
+    Mockito.verify(bigQuery, Mockito.atLeastOnce()).create(jobs.capture());
+    List<Integer> numColumns = new ArrayList<>();
+    for (JobInfo job : jobs.getAllValues()) {
+      if (job.getConfiguration().getType() != JobConfiguration.Type.LOAD) {
+        continue;
+      }
+      LoadJobConfiguration configuration = job.getConfiguration();
+      Assert.assertTrue(configuration.getDestinationTable().getTable().startsWith("_stagingshared_"));
+      numColumns.add(configuration.getSchema().getFields().size());
+    }
+    Collections.sort(numColumns);
+    //The table name column and one column per table
+    Assert.assertEquals(Arrays.asList(2, 3), numColumns);
+    for (String table : tables) {
+      Mockito.verify(bigQuery, Mockito.times(1)).create(isMergeFromSharedStagingTable(table));
+    }
+    Mockito.verify(bigQuery, Mockito.times(2)).delete(isSharedStagingTable());
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testSharedStagingTableIsDroppedAfterFailedMerge() throws Exception {
+    List<String> tables = getTables(2);
+    Mockito.when(deltaTargetContext.getRuntimeArguments())
+      .thenReturn(Collections.singletonMap("gcp.bigquery.staging.table.shared", "true"));
+    BigQueryError error = new BigQueryError("invalid", "loc", "error");
+    Mockito.when(bigQuery.create(isJobTypeForTable(JobConfiguration.Type.QUERY, MERGE_JOB, tables.get(1)),
+                                 Mockito.any()))
+      .thenThrow(new BigQueryException(400, "error", error));
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    Mockito.verify(bigQuery, Mockito.times(1)).create(isMergeFromSharedStagingTable(tables.get(0)));
+    //The shared staging table is dropped even though the merge of the other table failed
+    Mockito.verify(bigQuery, Mockito.times(1)).delete(isSharedStagingTable());
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testBatchesAreStagedThroughWriteStreams() throws Exception {
+    List<String> tables = getTables(1);
+    WriteStreamService writeStreamService = Mockito.mock(WriteStreamService.class);
+    WriteStreamService.PendingStream stream = mockPendingStream("streams/0");
+    Mockito.when(writeStreamService.createPendingStream(Mockito.any(), Mockito.any())).thenReturn(stream);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false, writeStreamService);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //Wait for flush with some buffer
+    waitForFlushWithBuffer(LOAD_INTERVAL_ONE_SECOND, 1);
+
+    TableId stagingTableId = TableId.of("project", DATASET, "_stagingstream_table_0");
+    Mockito.verify(writeStreamService, Mockito.times(1)).createPendingStream(Mockito.eq(stagingTableId),
+                                                                             Mockito.any());
+    Mockito.verify(stream, Mockito.atLeastOnce()).append(Mockito.any());
+    Mockito.verify(stream, Mockito.times(1)).finalizeStream();
+    Mockito.verify(writeStreamService, Mockito.times(1))
+      .commit(stagingTableId, Collections.singletonList("streams/0"));
+    //The batch is merged from the staging table without going through GCS and a load job
+    Mockito.verify(bigQuery, Mockito.times(1)).create(isJobTypeForTable(JobConfiguration.Type.QUERY, MERGE_JOB,
+                                                                        tables.get(0)));
+    Mockito.verify(bigQuery, Mockito.never()).create(isJobType(JobConfiguration.Type.LOAD));
+    Mockito.verifyZeroInteractions(storage);
+    //The staging table is kept for the next batches of the table
+    Mockito.verify(bigQuery, Mockito.never()).delete(stagingTableId);
+    Mockito.verify(writeStreamService, Mockito.never()).dropStagingTable(Mockito.any());
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testFailedStreamIsNotCommitted() throws Exception {
+    List<String> tables = getTables(1);
+    WriteStreamService writeStreamService = Mockito.mock(WriteStreamService.class);
+    WriteStreamService.PendingStream failedStream = mockPendingStream("streams/0");
+    Mockito.when(failedStream.finalizeStream()).thenThrow(new IOException("error"));
+    WriteStreamService.PendingStream stream = mockPendingStream("streams/1");
+    Mockito.when(writeStreamService.createPendingStream(Mockito.any(), Mockito.any()))
+      .thenReturn(failedStream, stream);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false, writeStreamService);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    generateInsertEvents(eventConsumer, tables, 5, CDC);
+
+    //The retry appends all rows of the batch to a new stream, and only that stream is committed
+    TableId stagingTableId = TableId.of("project", DATASET, "_stagingstream_table_0");
+    Mockito.verify(writeStreamService, Mockito.timeout(15000).times(1))
+      .commit(stagingTableId, Collections.singletonList("streams/1"));
+    Mockito.verify(bigQuery, Mockito.timeout(5000).times(1))
+      .create(isJobTypeForTable(JobConfiguration.Type.QUERY, MERGE_JOB, tables.get(0)));
+    ArgumentCaptor<JSONArray> failedChunks = ArgumentCaptor.forClass(JSONArray.class);
+    Mockito.verify(failedStream, Mockito.atLeastOnce()).append(failedChunks.capture());
+    ArgumentCaptor<JSONArray> chunks = ArgumentCaptor.forClass(JSONArray.class);
+    Mockito.verify(stream, Mockito.atLeastOnce()).append(chunks.capture());
+    Assert.assertEquals(5, chunks.getAllValues().stream().mapToInt(JSONArray::length).sum());
+    Assert.assertEquals(5, failedChunks.getAllValues().stream().mapToInt(JSONArray::length).sum());
+    Mockito.verify(writeStreamService, Mockito.never())
+      .commit(Mockito.any(), Mockito.eq(Collections.singletonList("streams/0")));
+
+    eventConsumer.stop();
+  }
+
+  @Test
+  public void testStreamStagingTableIsDroppedWithItsTable() throws Exception {
+    List<String> tables = getTables(1);
+    WriteStreamService writeStreamService = Mockito.mock(WriteStreamService.class);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false, writeStreamService);
+    eventConsumer.start();
+
+    generateDDL(eventConsumer, tables);
+    DDLEvent dropTable = DDLEvent.builder()
+      .setOperation(DDLOperation.Type.DROP_TABLE)
+      .setDatabaseName(DATABASE)
+      .setTableName(tables.get(0))
+      .setOffset(new Offset())
+      .build();
+    eventConsumer.applyDDL(new Sequenced<>(dropTable, 1));
+
+    Mockito.verify(writeStreamService, Mockito.times(1))
+      .dropStagingTable(TableId.of("project", DATASET, "_stagingstream_table_0"));
+
+    eventConsumer.stop();
+  }
+
   public void testConsumerCommitFailureRetries() throws Exception {
     int numTables = 1;
     int numInsertEvents = 5;
@@ -342,6 +799,8 @@ public class BigQueryConsumerTest {
     try {
       exceptionRule.expect(IllegalStateException.class);
       eventConsumer.applyDML(new Sequenced<>(insert1Event, 1));
+      // events are written asynchronously, the failure surfaces once the ingestion lanes are drained
+      eventConsumer.flush();
     } finally {
       //Verify that retry happens
       Mockito.verify(dataFileWriter, Mockito.atLeast(2)).append(Mockito.any());
@@ -371,6 +830,7 @@ public class BigQueryConsumerTest {
     Throwable error = new Throwable("network error");
     Job waitForFailure = Mockito.mock(Job.class);
     Mockito.when(waitForFailure.waitFor(Mockito.any())).thenThrow(new BigQueryException(403, "error", error));
+    Mockito.when(waitForFailure.reload()).thenThrow(new BigQueryException(403, "error", error));
 
     Mockito.when(bigQuery.create(isJobType(JobConfiguration.Type.LOAD), Mockito.any()))
       .thenReturn(waitForFailure);
@@ -431,6 +891,7 @@ public class BigQueryConsumerTest {
 
     Job waitForFailureJob = Mockito.mock(Job.class);
     Mockito.when(waitForFailureJob.waitFor(Mockito.any())).thenThrow(new BigQueryException(403, "error", error));
+    Mockito.when(waitForFailureJob.reload()).thenThrow(new BigQueryException(403, "error", error));
 
     Job errorJob = Mockito.mock(Job.class);
     Mockito.when(errorJob.getStatus()).thenReturn(Mockito.mock(JobStatus.class));
@@ -495,6 +956,7 @@ public class BigQueryConsumerTest {
     Throwable error = new Throwable("network error");
     Job waitForFailure = Mockito.mock(Job.class);
     Mockito.when(waitForFailure.waitFor(Mockito.any())).thenThrow(new BigQueryException(403, "error", error));
+    Mockito.when(waitForFailure.reload()).thenThrow(new BigQueryException(403, "error", error));
 
     Mockito.when(bigQuery.create(isJobTypeAndCategory(JobConfiguration.Type.QUERY, MERGE_JOB), Mockito.any()))
       .thenReturn(waitForFailure);
@@ -556,6 +1018,7 @@ public class BigQueryConsumerTest {
 
     Job waitForFailureJob = Mockito.mock(Job.class);
     Mockito.when(waitForFailureJob.waitFor(Mockito.any())).thenThrow(new BigQueryException(403, "error", error));
+    Mockito.when(waitForFailureJob.reload()).thenThrow(new BigQueryException(403, "error", error));
 
     Job errorJob = Mockito.mock(Job.class);
     Mockito.when(errorJob.getStatus()).thenReturn(Mockito.mock(JobStatus.class));
@@ -673,6 +1136,63 @@ public class BigQueryConsumerTest {
     }
   }
 
+  @Test
+  public void testInvalidPartitionColumnFailsCreateTable() throws Exception {
+    List<String> tables = getTables(1);
+    String partitionArgument = "gcp.bigquery.table.partition." + DATASET + "." + tables.get(0);
+    Mockito.when(deltaTargetContext.getRuntimeArguments())
+      .thenReturn(Collections.singletonMap(partitionArgument, NAME_COL + ":DAY"));
+    Mockito.when(bigQuery.getTable(Mockito.any())).thenReturn(null);
+
+    BigQueryEventConsumer eventConsumer = new BigQueryEventConsumer(deltaTargetContext, storage,
+                                                                    bigQuery, bucket, "project",
+                                                                    LOAD_INTERVAL_ONE_SECOND, "_staging",
+                                                                    false, null, 2L,
+                                                                    DATASET, false);
+    eventConsumer.start();
+    try {
+      generateDDL(eventConsumer, tables);
+      Assert.fail("Expected the table to be rejected.");
+    } catch (DeltaFailureException e) {
+      Assert.assertTrue(e.getMessage().contains(partitionArgument));
+    } finally {
+      //The table is never created with a partitioning BigQuery would reject
+      Mockito.verify(bigQuery, Mockito.never()).create(Mockito.any(TableInfo.class));
+      eventConsumer.stop();
+    }
+  }
+
+  @Test
+  public void testWindowDiffQuery() {
+    String stagingSource = BigQueryUtils.wrapInBackTick(DATASET, "_staging" + TABLE);
+    String primaryKeyQuery = BigQueryEventConsumer.createDiffQuery(stagingSource, primaryKeys, 1L, 0L, false,
+                                                                   SourceProperties.Ordering.ORDERED,
+                                                                   Optional.empty(), DiffQueryType.WINDOW);
+    // B only holds the latest event of each before key, with the columns of the join condition
+    Assert.assertEquals("SELECT A.* FROM\n" +
+                          "(SELECT * FROM `dataset._stagingtable` WHERE _batch_id = 1 AND _sequence_num > 0) as A\n" +
+                          "LEFT OUTER JOIN\n" +
+                          "(SELECT `_before_id`, _sequence_num FROM `dataset._stagingtable` " +
+                          "WHERE _batch_id = 1 AND _sequence_num > 0\n" +
+                          "QUALIFY ROW_NUMBER() OVER (PARTITION BY `_before_id` ORDER BY _sequence_num DESC) = 1)" +
+                          " as B\n" +
+                          "ON A.`id` = B.`_before_id` AND A._sequence_num < B._sequence_num\n" +
+                          " WHERE B.`_before_id` IS NULL", primaryKeyQuery);
+
+    String rowIdQuery = BigQueryEventConsumer.createDiffQuery(stagingSource, primaryKeys, 1L, 0L, true,
+                                                              SourceProperties.Ordering.UN_ORDERED,
+                                                              Optional.empty(), DiffQueryType.WINDOW);
+    Assert.assertEquals("SELECT * FROM `dataset._stagingtable` WHERE _batch_id = 1 AND _sequence_num > 0\n" +
+                          "QUALIFY ROW_NUMBER() OVER (PARTITION BY _row_id " +
+                          "ORDER BY _source_timestamp DESC, _sequence_num DESC) = 1", rowIdQuery);
+  }
+
+  private WriteStreamService.PendingStream mockPendingStream(String name) throws Exception {
+    WriteStreamService.PendingStream stream = Mockito.mock(WriteStreamService.PendingStream.class);
+    Mockito.when(stream.getName()).thenReturn(name);
+    return stream;
+  }
+
   private JobId isForAttempt(int i) {
     return Mockito.argThat(jobId -> jobId.getJob().endsWith("_" + i));
   }
@@ -691,6 +1211,30 @@ public class BigQueryConsumerTest {
         && jobInfo.getJobId().getJob().contains(category));
   }
 
+  private JobInfo isJobTypeForTable(JobConfiguration.Type jobType, String table) {
+    return isJobTypeForTable(jobType, "", table);
+  }
+
+  private JobInfo isJobTypeForTable(JobConfiguration.Type jobType, String category, String table) {
+    return Mockito.argThat(
+      jobInfo -> jobInfo.getConfiguration().getType() == jobType
+        && jobInfo.getJobId().getJob().contains(category)
+        && jobInfo.getJobId().getJob().contains("_" + table + "_"));
+  }
+
+  private JobInfo isMergeFromSharedStagingTable(String table) {
+    return Mockito.argThat(
+      jobInfo -> jobInfo.getConfiguration().getType() == JobConfiguration.Type.QUERY
+        && jobInfo.getJobId().getJob().contains(MERGE_JOB)
+        && jobInfo.getJobId().getJob().contains("_" + table + "_")
+        && ((QueryJobConfiguration) jobInfo.getConfiguration()).getQuery()
+        .contains(String.format("WHERE %s = '%s'", Constants.TABLE, table)));
+  }
+
+  private TableId isSharedStagingTable() {
+    return Mockito.argThat(tableId -> tableId.getTable().startsWith("_stagingshared_"));
+  }
+
   private DatasetInfo datasetIs(String database) {
     return Mockito.argThat(datasetInfo -> datasetInfo.getDatasetId().getDataset().equals(database));
   }
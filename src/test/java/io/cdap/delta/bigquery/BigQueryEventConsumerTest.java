@@ -26,10 +26,12 @@ import com.google.cloud.bigquery.DatasetInfo;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
 import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.FormatOptions;
 import com.google.cloud.bigquery.Job;
 import com.google.cloud.bigquery.JobId;
 import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.LoadJobConfiguration;
 import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
@@ -38,6 +40,7 @@ import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.TableInfo;
 import com.google.cloud.bigquery.TableResult;
 import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
@@ -57,6 +60,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
@@ -625,6 +629,88 @@ public class BigQueryEventConsumerTest {
     }
   }
 
+  /**
+   * Loads the same events with DATETIME columns staged as Avro and as JSON, and checks that both formats load the
+   * same values while the Avro object is the smaller one.
+   */
+  @Test
+  public void testDateTimeStagingFormats() throws Exception {
+    int numEvents = 10000;
+    RecordProjection projection = RecordProjection.builder("user.target")
+      .addRowColumns(USER_SCHEMA)
+      .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+      .build();
+    List<DMLEvent> events = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      StructuredRecord row = StructuredRecord.builder(USER_SCHEMA)
+        .set("id", i)
+        .set("name", "user " + i)
+        .setTimestamp("created", ZonedDateTime.ofInstant(Instant.ofEpochSecond(i * 3600L), ZoneId.of("UTC")))
+        .setDateTime("updated", LocalDateTime.of(2022, 4, 19, 14, 31, 12, i * 1000001))
+        .setDate("bday", LocalDate.ofEpochDay(i))
+        .set("score", i / 7.0d)
+        .set("partition", i % 10)
+        .build();
+      events.add(DMLEvent.builder()
+                   .setOperationType(DMLOperation.Type.INSERT)
+                   .setDatabaseName("staging_formats")
+                   .setTableName("users")
+                   .setRow(row)
+                   .build());
+    }
+
+    String bucketName = "bqtest-" + UUID.randomUUID().toString();
+    Bucket bucket = storage.create(BucketInfo.of(bucketName));
+    String dataset = "testStagingFormats_" + UUID.randomUUID().toString().replaceAll("-", "_");
+    bigQuery.create(DatasetInfo.newBuilder(dataset).build());
+    try {
+      Map<StagingFormat, Integer> objectSizes = new HashMap<>();
+      // DATETIME columns are not supported by the Parquet writer
+      for (StagingFormat format : new StagingFormat[] {StagingFormat.AVRO, StagingFormat.JSON}) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        EventWriter writer = format == StagingFormat.AVRO ?
+          new AvroEventWriter(new org.apache.avro.Schema.Parser().parse(projection.getSchema().toString()),
+                              projection, bos, null, 0) :
+          new JsonEventWriter(bos, 64 * 1024, false);
+        StagingRecord record = new StagingRecord(projection, 0L);
+        for (int i = 0; i < numEvents; i++) {
+          record.reset(new Sequenced<>(events.get(i % events.size()), i), false);
+          writer.write(record);
+        }
+        writer.close();
+        objectSizes.put(format, bos.size());
+
+        String objectName = "staging/" + format.name().toLowerCase();
+        storage.create(BlobInfo.newBuilder(bucketName, objectName).build(), bos.toByteArray());
+        LoadJobConfiguration.Builder loadConfig = LoadJobConfiguration
+          .newBuilder(TableId.of(dataset, "users_" + format.name().toLowerCase()),
+                      String.format("gs://%s/%s", bucketName, objectName))
+          .setSchema(Schemas.convert(projection.getSchema()));
+        if (format == StagingFormat.AVRO) {
+          loadConfig.setFormatOptions(FormatOptions.avro()).setUseAvroLogicalTypes(true);
+        } else {
+          loadConfig.setFormatOptions(FormatOptions.json());
+        }
+        Job loadJob = bigQuery.create(JobInfo.of(loadConfig.build())).waitFor();
+        Assert.assertNull(loadJob.getStatus().getError());
+      }
+
+      Assert.assertTrue(objectSizes.get(StagingFormat.AVRO) < objectSizes.get(StagingFormat.JSON));
+      TableResult result = executeQuery(String.format(
+        "SELECT COUNT(*) FROM %1$s.users_avro a FULL OUTER JOIN %1$s.users_json j " +
+          "ON a._sequence_num = j._sequence_num WHERE a.updated IS DISTINCT FROM j.updated", dataset));
+      Assert.assertEquals(0L, result.iterateAll().iterator().next().get(0).getLongValue());
+      result = executeQuery(String.format("SELECT COUNT(*) FROM %s.users_avro", dataset));
+      Assert.assertEquals(numEvents, result.iterateAll().iterator().next().get(0).getLongValue());
+    } finally {
+      for (Blob blob : bucket.list().iterateAll()) {
+        storage.delete(blob.getBlobId());
+      }
+      bucket.delete();
+      bigQuery.getDataset(dataset).delete(BigQuery.DatasetDeleteOption.deleteContents());
+    }
+  }
+
   private void insertUpdateDelete(BigQueryEventConsumer eventConsumer, String dataset, boolean softDelete)
     throws Exception {
     List<String> tableNames = Arrays.asList("users1", "users2", "users3");
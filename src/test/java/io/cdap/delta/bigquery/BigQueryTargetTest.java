@@ -29,6 +29,7 @@ import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.JobStatus;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageException;
@@ -279,4 +280,23 @@ public class BigQueryTargetTest {
     }
   }
 
+  @Test
+  public void testCreateConsumerPassesCredentialsToWriteStreamService() throws Exception {
+    Mockito.when(deltaTargetContext.getRuntimeArguments()).thenReturn(new HashMap<String, String>() {{
+      put("gcp.bigquery.staging.write.api", "true");
+    }});
+    Mockito.when(storage.get(Mockito.anyString())).thenReturn(Mockito.mock(Bucket.class));
+    PowerMockito.whenNew(BigQueryWriteStreamService.class).withAnyArguments()
+      .thenReturn(Mockito.mock(BigQueryWriteStreamService.class));
+    PowerMockito.whenNew(BigQueryEventConsumer.class).withAnyArguments()
+      .thenReturn(Mockito.mock(BigQueryEventConsumer.class));
+
+    bqTarget.createConsumer(deltaTargetContext);
+
+    // the write client is authenticated with the same credentials as the BigQuery and GCS clients
+    PowerMockito.verifyNew(BigQueryWriteStreamService.class)
+      .withArguments(Mockito.eq(bigQuery), Mockito.eq(credentials), Mockito.eq(PROJECT),
+                     Mockito.nullable(EncryptionConfiguration.class));
+  }
+
 }
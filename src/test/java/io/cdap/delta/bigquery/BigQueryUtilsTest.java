@@ -21,6 +21,8 @@ import com.google.api.gax.paging.Page;
 import com.google.auth.Credentials;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.BigQueryOptions;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
@@ -35,6 +37,7 @@ import com.google.cloud.bigquery.TableDefinition;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.TableInfo;
 import com.google.common.base.Strings;
+import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.delta.api.SourceTable;
 import org.junit.Assume;
 import org.junit.Before;
@@ -59,6 +62,10 @@ import java.util.List;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.times;
 
 /**
@@ -172,6 +179,51 @@ public class BigQueryUtilsTest {
       assertEquals("a2_fs", BigQueryUtils.normalizeFieldName("a2 fs"));
     }
 
+    @Test
+    public void testGetSharedStagingColumn() {
+      assertEquals("_t_orders_" + Integer.toHexString("orders".hashCode()),
+                   BigQueryUtils.getSharedStagingColumn("orders"));
+      // tables whose names only differ in case or invalid characters get different columns
+      assertNotEquals(BigQueryUtils.getSharedStagingColumn("Orders").toLowerCase(),
+                      BigQueryUtils.getSharedStagingColumn("orders").toLowerCase());
+      assertNotEquals(BigQueryUtils.getSharedStagingColumn("a-b"), BigQueryUtils.getSharedStagingColumn("a b"));
+      String column = BigQueryUtils.getSharedStagingColumn(Strings.repeat("a1", 100));
+      assertEquals(BigQueryUtils.FIELD_NAME_MAX_LENGTH, column.length());
+    }
+
+    @Test
+    public void testNormalizeRecord() {
+      io.cdap.cdap.api.data.schema.Schema validSchema = io.cdap.cdap.api.data.schema.Schema.recordOf(
+        "valid",
+        io.cdap.cdap.api.data.schema.Schema.Field.of("id", io.cdap.cdap.api.data.schema.Schema.of(
+          io.cdap.cdap.api.data.schema.Schema.Type.INT)),
+        io.cdap.cdap.api.data.schema.Schema.Field.of("name", io.cdap.cdap.api.data.schema.Schema.of(
+          io.cdap.cdap.api.data.schema.Schema.Type.STRING)));
+      StructuredRecord validRecord = StructuredRecord.builder(validSchema).set("id", 1).set("name", "alice").build();
+      // records that need no normalization are passed through as is
+      assertSame(validRecord, BigQueryUtils.normalize(validRecord));
+
+      io.cdap.cdap.api.data.schema.Schema invalidSchema = io.cdap.cdap.api.data.schema.Schema.recordOf(
+        "invalid",
+        io.cdap.cdap.api.data.schema.Schema.Field.of("1id", io.cdap.cdap.api.data.schema.Schema.of(
+          io.cdap.cdap.api.data.schema.Schema.Type.INT)),
+        io.cdap.cdap.api.data.schema.Schema.Field.of("first name", io.cdap.cdap.api.data.schema.Schema.of(
+          io.cdap.cdap.api.data.schema.Schema.Type.STRING)));
+      StructuredRecord record1 = StructuredRecord.builder(invalidSchema).set("1id", 1).set("first name", "alice")
+        .build();
+      StructuredRecord record2 = StructuredRecord.builder(invalidSchema).set("1id", 2).set("first name", "bob")
+        .build();
+
+      StructuredRecord normalized1 = BigQueryUtils.normalize(record1);
+      StructuredRecord normalized2 = BigQueryUtils.normalize(record2);
+      assertEquals(1, (int) normalized1.get("_1id"));
+      assertEquals("alice", normalized1.get("first_name"));
+      assertEquals(2, (int) normalized2.get("_1id"));
+      assertEquals("bob", normalized2.get("first_name"));
+      // the normalized schema is computed once per source schema
+      assertSame(normalized1.getSchema(), normalized2.getSchema());
+    }
+
     @Test
     public void testGetMaximumExistingSequenceNumberZeroInvocations() throws Exception {
       // Zero Tables
@@ -272,6 +324,23 @@ public class BigQueryUtilsTest {
         .invoke("executeAggregateQuery",
                 ArgumentMatchers.eq(bigQueryMock), ArgumentMatchers.any(), ArgumentMatchers.any());
     }
+
+    @Test
+    public void testRateLimitErrors() {
+      BigQueryError rateLimit = new BigQueryError("rateLimitExceeded", "", "Exceeded rate limits");
+      BigQueryError billingTier = new BigQueryError("billingTierLimitExceeded", "", "Query exceeded limit");
+      assertTrue(BigQueryUtils.isRateLimitExceeded(new BigQueryException(403, "error", rateLimit)));
+      assertTrue(BigQueryUtils.isRateLimitExceeded(new BigQueryException(400, "error", rateLimit)));
+      assertFalse(BigQueryUtils.isRateLimitExceeded(new BigQueryException(500, "error", rateLimit)));
+      assertFalse(BigQueryUtils.isRateLimitExceeded(new BigQueryException(400, "error", billingTier)));
+      assertTrue(BigQueryUtils.isBillingTierLimitExceeded(new BigQueryException(400, "error", billingTier)));
+      assertFalse(BigQueryUtils.isBillingTierLimitExceeded(new BigQueryException(403, "error", billingTier)));
+
+      // errors of failed jobs have no status code
+      assertTrue(BigQueryUtils.isRateLimitExceeded(rateLimit));
+      assertFalse(BigQueryUtils.isRateLimitExceeded(billingTier));
+      assertFalse(BigQueryUtils.isRateLimitExceeded((BigQueryError) null));
+    }
   }
 
   public static class BigQueryGCPDependentTests {
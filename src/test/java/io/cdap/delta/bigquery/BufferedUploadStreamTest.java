@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.RestorableState;
+import com.google.cloud.WriteChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link BufferedUploadStream}.
+ */
+public class BufferedUploadStreamTest {
+
+  @Test
+  public void testChannelOpenedOnceChunkIsBuffered() throws IOException {
+    BufferPool pool = new BufferPool(4, 2);
+    RecordingChannel channel = new RecordingChannel();
+    AtomicInteger opened = new AtomicInteger();
+    BufferedUploadStream stream = new BufferedUploadStream(pool, 10, new RecordingDestination(channel) {
+      @Override
+      public WriteChannel openChannel() {
+        opened.incrementAndGet();
+        return super.openChannel();
+      }
+    });
+
+    stream.write(new byte[] {0, 1, 2, 3, 4, 5});
+    stream.write(6);
+    Assert.assertEquals(0, opened.get());
+    Assert.assertEquals(8, stream.getMemoryUsage());
+
+    // crosses the chunk size, so everything buffered so far is uploaded
+    stream.write(new byte[] {7, 8, 9, 10, 11});
+    Assert.assertEquals(1, opened.get());
+    Assert.assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, channel.bytes.toByteArray());
+
+    stream.close();
+    Assert.assertEquals(1, opened.get());
+    Assert.assertFalse(channel.isOpen());
+    Assert.assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, channel.bytes.toByteArray());
+  }
+
+  @Test
+  public void testSmallObjectUploadedInSingleRequest() throws IOException {
+    RecordingDestination destination = new RecordingDestination(new RecordingChannel());
+    BufferedUploadStream stream = new BufferedUploadStream(new BufferPool(4, 2), 16, destination);
+    stream.write(new byte[] {0, 1, 2, 3, 4, 5});
+    stream.close();
+    Assert.assertFalse(destination.channelOpened);
+    Assert.assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5}, destination.created);
+  }
+
+  @Test
+  public void testFirstBufferGrowsBeforeBuffersAreLeased() throws IOException {
+    RecordingDestination destination = new RecordingDestination(new RecordingChannel());
+    BufferedUploadStream stream = new BufferedUploadStream(new BufferPool(16, 2), 64, 2, destination);
+
+    stream.write(new byte[] {0, 1, 2});
+    Assert.assertEquals(4, stream.getMemoryUsage());
+    stream.write(new byte[] {3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+    Assert.assertEquals(16, stream.getMemoryUsage());
+    // the first buffer has the pooled size, so the next one is leased
+    stream.write(new byte[] {13, 14, 15, 16});
+    Assert.assertEquals(32, stream.getMemoryUsage());
+
+    stream.close();
+    Assert.assertFalse(destination.channelOpened);
+    Assert.assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16},
+                             destination.created);
+  }
+
+  @Test
+  public void testEmptyStreamStillCreatesObject() throws IOException {
+    RecordingDestination destination = new RecordingDestination(new RecordingChannel());
+    BufferedUploadStream stream = new BufferedUploadStream(new BufferPool(4, 1), 8, destination);
+    stream.close();
+    Assert.assertFalse(destination.channelOpened);
+    Assert.assertArrayEquals(new byte[0], destination.created);
+  }
+
+  @Test
+  public void testBuffersAreReused() throws IOException {
+    BufferPool pool = new BufferPool(4, 1);
+    ByteBuffer buffer = pool.lease();
+    Assert.assertTrue(buffer.isDirect());
+    // the pool is capped at one direct buffer
+    Assert.assertFalse(pool.lease().isDirect());
+    pool.release(buffer);
+    Assert.assertSame(buffer, pool.lease());
+  }
+
+  /**
+   * Destination that records how the object was uploaded.
+   */
+  private static class RecordingDestination implements BufferedUploadStream.Destination {
+    private final WriteChannel channel;
+    private boolean channelOpened;
+    private byte[] created;
+
+    private RecordingDestination(WriteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public WriteChannel openChannel() {
+      channelOpened = true;
+      return channel;
+    }
+
+    @Override
+    public void create(byte[] content) {
+      created = content;
+    }
+  }
+
+  /**
+   * Write channel that keeps everything written to it in memory.
+   */
+  private static class RecordingChannel implements WriteChannel {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private boolean open = true;
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+      // no-op
+    }
+
+    @Override
+    public RestorableState<WriteChannel> capture() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      while (src.hasRemaining()) {
+        bytes.write(src.get());
+      }
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.delta.api.Offset;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CommitCheckpoints}.
+ */
+public class CommitCheckpointsTest {
+
+  @Test
+  public void testNothingToCommitUntilClosed() {
+    CommitCheckpoints checkpoints = new CommitCheckpoints();
+    Assert.assertNull(checkpoints.pollCommittable());
+
+    CommitCheckpoints.Checkpoint batch = checkpoints.register();
+    checkpoints.complete(batch);
+    Assert.assertNull(checkpoints.pollCommittable());
+
+    Offset offset = new Offset();
+    checkpoints.close(offset, 1L);
+    CommitCheckpoints.Checkpoint committable = checkpoints.pollCommittable();
+    Assert.assertNotNull(committable);
+    Assert.assertSame(offset, committable.getOffset());
+    Assert.assertEquals(1L, committable.getSequenceNumber());
+    Assert.assertNull(checkpoints.pollCommittable());
+  }
+
+  @Test
+  public void testSlowTableHoldsBackLaterCheckpoints() {
+    CommitCheckpoints checkpoints = new CommitCheckpoints();
+    CommitCheckpoints.Checkpoint slowTable = checkpoints.register();
+    CommitCheckpoints.Checkpoint fastTable = checkpoints.register();
+    checkpoints.close(new Offset(), 10L);
+
+    CommitCheckpoints.Checkpoint fastTableNext = checkpoints.register();
+    Offset latest = new Offset();
+    checkpoints.close(latest, 20L);
+
+    // the fast table merged both of its batches, but the slow one is still merging events up to 10
+    checkpoints.complete(fastTable);
+    checkpoints.complete(fastTableNext);
+    Assert.assertNull(checkpoints.pollCommittable());
+
+    // once it is done, the latest offset merged by every table is committed
+    checkpoints.complete(slowTable);
+    CommitCheckpoints.Checkpoint committable = checkpoints.pollCommittable();
+    Assert.assertNotNull(committable);
+    Assert.assertEquals(20L, committable.getSequenceNumber());
+    Assert.assertSame(latest, committable.getOffset());
+  }
+
+  @Test
+  public void testCommitsUpToFirstPendingCheckpoint() {
+    CommitCheckpoints checkpoints = new CommitCheckpoints();
+    checkpoints.close(new Offset(), 1L);
+    CommitCheckpoints.Checkpoint pending = checkpoints.register();
+    checkpoints.close(new Offset(), 2L);
+    checkpoints.close(new Offset(), 3L);
+
+    CommitCheckpoints.Checkpoint committable = checkpoints.pollCommittable();
+    Assert.assertNotNull(committable);
+    Assert.assertEquals(1L, committable.getSequenceNumber());
+    Assert.assertNull(checkpoints.pollCommittable());
+
+    checkpoints.complete(pending);
+    committable = checkpoints.pollCommittable();
+    Assert.assertNotNull(committable);
+    Assert.assertEquals(3L, committable.getSequenceNumber());
+  }
+}
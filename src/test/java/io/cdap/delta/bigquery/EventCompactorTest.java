@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class EventCompactorTest {
+  private static final Schema SCHEMA = Schema.recordOf("row",
+                                                       Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+                                                       Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
+
+  @Test
+  public void testUpdatesAreFoldedIntoOne() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    for (int i = 1; i <= 500; i++) {
+      compactor.add(event(DMLOperation.Type.UPDATE, row(1, "name" + i), row(1, "name" + (i - 1)), i));
+    }
+
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(1, events.size());
+    assertEvent(events.get(0), DMLOperation.Type.UPDATE, row(1, "name500"), row(1, "name0"), 500);
+  }
+
+  @Test
+  public void testPrimaryKeyChangesAreFolded() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(2, "a"), row(1, "a"), 1));
+    compactor.add(event(DMLOperation.Type.INSERT, row(5, "e"), null, 2));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(3, "b"), row(2, "a"), 3));
+
+    // the target table still holds the row with id 1, so the net update is matched by it
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(2, events.size());
+    assertEvent(events.get(0), DMLOperation.Type.INSERT, row(5, "e"), null, 2);
+    assertEvent(events.get(1), DMLOperation.Type.UPDATE, row(3, "b"), row(1, "a"), 3);
+  }
+
+  @Test
+  public void testDeleteOfChangedKeyDeletesOriginalRow() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(2, "a"), row(1, "a"), 1));
+    compactor.add(event(DMLOperation.Type.DELETE, row(2, "a"), null, 2));
+
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(1, events.size());
+    assertEvent(events.get(0), DMLOperation.Type.DELETE, row(1, "a"), null, 2);
+  }
+
+  @Test
+  public void testInsertAfterDeleteReplacesRow() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.INSERT, row(1, "a"), null, 1));
+    compactor.add(event(DMLOperation.Type.DELETE, row(1, "a"), null, 2));
+    compactor.add(event(DMLOperation.Type.INSERT, row(1, "b"), null, 3));
+
+    // the delete may have removed a row the target table already held, so the insert has to replace it
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(1, events.size());
+    assertEvent(events.get(0), DMLOperation.Type.UPDATE, row(1, "b"), row(1, "a"), 3);
+  }
+
+  @Test
+  public void testInsertedRowIsNotMatched() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.INSERT, row(1, "a"), null, 1));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(1, "b"), row(1, "a"), 2));
+
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(1, events.size());
+    assertEvent(events.get(0), DMLOperation.Type.UPDATE, row(1, "b"), row(1, "a"), 2);
+  }
+
+  @Test
+  public void testKeyTakenOverByAnotherRow() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.DELETE, row(2, "b"), null, 1));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(2, "a"), row(1, "a"), 2));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(2, "c"), row(2, "a"), 3));
+
+    List<Sequenced<DMLEvent>> events = compactor.getEvents();
+    Assert.assertEquals(2, compactor.size());
+    assertEvent(events.get(0), DMLOperation.Type.DELETE, row(2, "b"), null, 1);
+    assertEvent(events.get(1), DMLOperation.Type.UPDATE, row(2, "c"), row(1, "a"), 3);
+  }
+
+  @Test
+  public void testEstimatedSizeOnlyCountsHeldEvents() {
+    EventCompactor compactor = new EventCompactor(Collections.singletonList("id"));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(1, "b"), row(1, "a"), 1));
+    compactor.add(event(DMLOperation.Type.UPDATE, row(1, "c"), row(1, "b"), 2));
+    long size = compactor.getEstimatedSize();
+    Assert.assertTrue(size > 0);
+
+    // the folded event is no longer held, only the original row and the last event are
+    compactor.add(event(DMLOperation.Type.UPDATE, row(1, "d"), row(1, "c"), 3));
+    Assert.assertEquals(size, compactor.getEstimatedSize());
+    compactor.add(event(DMLOperation.Type.INSERT, row(2, "a"), null, 4));
+    Assert.assertTrue(compactor.getEstimatedSize() > size);
+
+    compactor.clear();
+    Assert.assertEquals(0L, compactor.getEstimatedSize());
+    Assert.assertEquals(0, compactor.size());
+  }
+
+  private static void assertEvent(Sequenced<DMLEvent> actual, DMLOperation.Type type, StructuredRecord row,
+                                  StructuredRecord previousRow, long sequenceNumber) {
+    Assert.assertEquals(type, actual.getEvent().getOperation().getType());
+    Assert.assertEquals(row, actual.getEvent().getRow());
+    Assert.assertEquals(previousRow, actual.getEvent().getPreviousRow());
+    Assert.assertEquals(sequenceNumber, actual.getSequenceNumber());
+  }
+
+  private static StructuredRecord row(int id, String name) {
+    return StructuredRecord.builder(SCHEMA).set("id", id).set("name", name).build();
+  }
+
+  private static Sequenced<DMLEvent> event(DMLOperation.Type type, StructuredRecord row,
+                                           StructuredRecord previousRow, long sequenceNumber) {
+    DMLEvent.Builder builder = DMLEvent.builder()
+      .setOperationType(type)
+      .setDatabaseName("db")
+      .setTableName("row")
+      .setRow(row);
+    if (previousRow != null) {
+      builder.setPreviousRow(previousRow);
+    }
+    return new Sequenced<>(builder.build(), sequenceNumber);
+  }
+}
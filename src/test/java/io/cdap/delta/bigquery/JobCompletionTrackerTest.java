@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatus;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobCompletionTrackerTest {
+
+  @Test
+  public void testJobsCompleteOnceDone() throws Exception {
+    Job running = job(JobStatus.State.RUNNING, JobStatus.State.RUNNING, JobStatus.State.DONE);
+    Job done = job(JobStatus.State.DONE);
+    try (JobCompletionTracker tracker = new JobCompletionTracker(10, 50)) {
+      CompletableFuture<Job> runningFuture = tracker.track(running);
+      // jobs that are already done are not polled
+      Assert.assertSame(done, tracker.track(done).getNow(null));
+      Assert.assertSame(running, runningFuture.get(10, TimeUnit.SECONDS));
+      Mockito.verify(running, Mockito.times(2)).reload();
+      Mockito.verify(done, Mockito.never()).reload();
+    }
+  }
+
+  @Test
+  public void testMissingJob() throws Exception {
+    Job job = job(JobStatus.State.RUNNING);
+    Mockito.when(job.reload()).thenReturn(null);
+    try (JobCompletionTracker tracker = new JobCompletionTracker(10, 50)) {
+      Assert.assertNull(tracker.track(job).get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testReloadFailure() throws Exception {
+    Job job = job(JobStatus.State.RUNNING);
+    Mockito.when(job.reload()).thenThrow(new BigQueryException(500, "error"));
+    try (JobCompletionTracker tracker = new JobCompletionTracker(10, 50)) {
+      try {
+        tracker.track(job).get(10, TimeUnit.SECONDS);
+        Assert.fail("Expected the job to fail");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof BigQueryException);
+      }
+    }
+  }
+
+  @Test
+  public void testReloadsAreBounded() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger reloading = new AtomicInteger();
+    AtomicInteger maxReloading = new AtomicInteger();
+    try (JobCompletionTracker tracker = new JobCompletionTracker(10, 50, 2)) {
+      List<CompletableFuture<Job>> futures = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        Job job = job(JobStatus.State.RUNNING, JobStatus.State.DONE);
+        Mockito.when(job.reload()).thenAnswer(invocation -> {
+          maxReloading.accumulateAndGet(reloading.incrementAndGet(), Math::max);
+          release.await(10, TimeUnit.SECONDS);
+          reloading.decrementAndGet();
+          return job;
+        });
+        futures.add(tracker.track(job));
+      }
+
+      // two jobs are reloaded at once, the third one waits until one of them is done
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (reloading.get() < 2 && System.currentTimeMillis() < deadline) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      TimeUnit.MILLISECONDS.sleep(100);
+      Assert.assertEquals(2, reloading.get());
+      release.countDown();
+      for (CompletableFuture<Job> future : futures) {
+        Assert.assertNotNull(future.get(10, TimeUnit.SECONDS));
+      }
+      Assert.assertEquals(2, maxReloading.get());
+    }
+  }
+
+  @Test
+  public void testCloseFailsPendingJobs() throws Exception {
+    Job job = job(JobStatus.State.RUNNING);
+    Mockito.when(job.reload()).thenReturn(job);
+    JobCompletionTracker tracker = new JobCompletionTracker(10, 50);
+    CompletableFuture<Job> future = tracker.track(job);
+    tracker.close();
+    Assert.assertTrue(future.isCompletedExceptionally());
+  }
+
+  /**
+   * Creates a job that is in the given states on consecutive status checks, and reloads as itself.
+   */
+  private static Job job(JobStatus.State state, JobStatus.State... states) {
+    Job job = Mockito.mock(Job.class);
+    JobStatus status = Mockito.mock(JobStatus.class);
+    Mockito.when(status.getState()).thenReturn(state, states);
+    Mockito.when(job.getStatus()).thenReturn(status);
+    Mockito.when(job.reload()).thenReturn(job);
+    return job;
+  }
+}
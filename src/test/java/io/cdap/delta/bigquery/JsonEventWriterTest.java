@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+public class JsonEventWriterTest {
+  private static final Schema ROW_SCHEMA = Schema.recordOf(
+    "row",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("tags", Schema.nullableOf(Schema.arrayOf(Schema.of(Schema.Type.STRING)))));
+  private static final RecordProjection PROJECTION = RecordProjection.builder("row.staging")
+    .add(Constants.OPERATION, Schema.of(Schema.Type.STRING), RecordProjection.Source.OPERATION)
+    .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+    .addRowColumns(ROW_SCHEMA)
+    .build();
+  private static final String EXPECTED = "{\"_op\":\"INSERT\",\"_sequence_num\":1,\"id\":1,\"name\":\"alice\"," +
+    "\"tags\":[\"a\",\"b\"]}\n{\"_op\":\"INSERT\",\"_sequence_num\":2,\"id\":2,\"name\":null,\"tags\":[]}\n";
+
+  @Test
+  public void testWritesNewlineDelimitedJson() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeRecords(new JsonEventWriter(bos, 16, false));
+    Assert.assertEquals(EXPECTED, new String(bos.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testWritesGzipCompressedJson() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeRecords(new JsonEventWriter(bos, 16, true));
+
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      byte[] buffer = new byte[1024];
+      int len;
+      while ((len = is.read(buffer)) > 0) {
+        decompressed.write(buffer, 0, len);
+      }
+    }
+    Assert.assertEquals(EXPECTED, new String(decompressed.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testWritesRecordsNestedForSharedStagingTable() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeRecords(new JsonEventWriter(bos, 16, false, "row", "_t_row"));
+    String expected = "{\"_table\":\"row\",\"_t_row\":{\"_op\":\"INSERT\",\"_sequence_num\":1,\"id\":1," +
+      "\"name\":\"alice\",\"tags\":[\"a\",\"b\"]}}\n{\"_table\":\"row\",\"_t_row\":{\"_op\":\"INSERT\"," +
+      "\"_sequence_num\":2,\"id\":2,\"name\":null,\"tags\":[]}}\n";
+    Assert.assertEquals(expected, new String(bos.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testFailedRecordIsNotWritten() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    JsonEventWriter writer = new JsonEventWriter(bos, 16, false);
+    StagingRecord record = new StagingRecord(PROJECTION, 0L);
+    // null array items are rejected by BigQuery, so the record fails after some of its fields have been written
+    StructuredRecord invalid = StructuredRecord.builder(ROW_SCHEMA)
+      .set("id", 3L)
+      .set("tags", Arrays.asList("a", null))
+      .build();
+    record.reset(new Sequenced<>(insert(invalid), 3L), false);
+    try {
+      writer.write(record);
+      Assert.fail("Expected the record with a null array item to fail.");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    writeRecords(writer);
+    Assert.assertEquals(EXPECTED, new String(bos.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static void writeRecords(JsonEventWriter writer) throws IOException {
+    StagingRecord record = new StagingRecord(PROJECTION, 0L);
+    record.reset(new Sequenced<>(insert(StructuredRecord.builder(ROW_SCHEMA)
+                                          .set("id", 1L)
+                                          .set("name", "alice")
+                                          .set("tags", Arrays.asList("a", "b"))
+                                          .build()), 1L), false);
+    writer.write(record);
+    record.reset(new Sequenced<>(insert(StructuredRecord.builder(ROW_SCHEMA)
+                                          .set("id", 2L)
+                                          .set("tags", Collections.emptyList())
+                                          .build()), 2L), false);
+    writer.write(record);
+    writer.close();
+  }
+
+  private static DMLEvent insert(StructuredRecord row) {
+    return DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName("row")
+      .setRow(row)
+      .build();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class KeyBoundsTest {
+  private static final Schema SCHEMA = Schema.recordOf(
+    "row",
+    Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("ts", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)),
+    Schema.Field.of("day", Schema.of(Schema.LogicalType.DATE)),
+    Schema.Field.of("flag", Schema.of(Schema.Type.BOOLEAN)));
+
+  @Test
+  public void testCondition() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Arrays.asList("id", "name"));
+    keyBounds.add(row(7, "b"));
+    keyBounds.add(row(-3, "a\nb"));
+    keyBounds.add(row(12, "it's"));
+
+    Assert.assertEquals(" AND T.`id` BETWEEN -3 AND 12 AND T.`name` BETWEEN 'a\\nb' AND 'it\\'s'",
+                        keyBounds.getCondition("T", Arrays.asList("id", "name")));
+    // columns that are no longer part of the key are not restricted
+    Assert.assertEquals(" AND T.`id` BETWEEN -3 AND 12", keyBounds.getCondition("T", Collections.singletonList("id")));
+  }
+
+  @Test
+  public void testNoConditionWithNulls() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Arrays.asList("id", "name"));
+    keyBounds.add(row(1, "a"));
+    // rows with a null value can not be matched with a range of the column
+    keyBounds.add(row(2, null));
+    Assert.assertEquals(" AND T.`id` BETWEEN 1 AND 2", keyBounds.getCondition("T", Arrays.asList("id", "name")));
+  }
+
+  @Test
+  public void testEmptyBatchMatchesNothing() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Collections.singletonList("id"));
+    Assert.assertEquals(" AND FALSE", keyBounds.getCondition("T", Collections.singletonList("id")));
+  }
+
+  @Test
+  public void testStringsAreOrderedByCodePoint() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Collections.singletonList("name"));
+    // U+1F600 is encoded as surrogates, which sort before U+FF21 as UTF-16 chars but after it as code points
+    keyBounds.add(row(1, "\uFF21"));
+    keyBounds.add(row(2, "\uD83D\uDE00"));
+    Assert.assertEquals(" AND T.`name` BETWEEN '\uFF21' AND '\uD83D\uDE00'",
+                        keyBounds.getCondition("T", Collections.singletonList("name")));
+  }
+
+  @Test
+  public void testDateAndTimestampBounds() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Arrays.asList("ts", "day"));
+    keyBounds.add(row(1, "a", 2000L, 19000));
+    keyBounds.add(row(2, "b", 1000L, 19002));
+    Assert.assertEquals(" AND T.`ts` BETWEEN TIMESTAMP_MICROS(1000) AND TIMESTAMP_MICROS(2000)"
+                          + " AND T.`day` BETWEEN DATE_FROM_UNIX_DATE(19000) AND DATE_FROM_UNIX_DATE(19002)",
+                        keyBounds.getCondition("T", Arrays.asList("ts", "day")));
+  }
+
+  @Test
+  public void testUnsupportedColumnsAreSkipped() {
+    KeyBounds keyBounds = new KeyBounds(SCHEMA, Arrays.asList("flag", "missing", "id"));
+    keyBounds.add(row(5, "a"));
+    Assert.assertEquals(" AND T.`id` BETWEEN 5 AND 5",
+                        keyBounds.getCondition("T", Arrays.asList("flag", "missing", "id")));
+  }
+
+  private static StructuredRecord row(int id, String name) {
+    return row(id, name, 0L, 0);
+  }
+
+  private static StructuredRecord row(int id, String name, long ts, int day) {
+    return StructuredRecord.builder(SCHEMA).set("id", id).set("name", name).set("ts", ts).set("day", day)
+      .set("flag", true).build();
+  }
+}
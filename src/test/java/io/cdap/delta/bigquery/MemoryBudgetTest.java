@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MemoryBudget}.
+ */
+public class MemoryBudgetTest {
+
+  @Test
+  public void testReserveAndRelease() throws InterruptedException {
+    MemoryBudget budget = new MemoryBudget(100);
+    budget.reserve(60);
+    Assert.assertFalse(budget.isExhausted());
+    budget.reserve(40);
+    Assert.assertTrue(budget.isExhausted());
+    Assert.assertEquals(100, budget.getUsed());
+    Assert.assertFalse(budget.awaitAvailable(10, TimeUnit.MILLISECONDS));
+
+    budget.release(1);
+    Assert.assertFalse(budget.isExhausted());
+    Assert.assertTrue(budget.awaitAvailable(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testReleaseWakesUpWaiters() throws InterruptedException {
+    MemoryBudget budget = new MemoryBudget(10);
+    budget.reserve(20);
+    CountDownLatch available = new CountDownLatch(1);
+    Thread waiter = new Thread(() -> {
+      try {
+        if (budget.awaitAvailable(1, TimeUnit.MINUTES)) {
+          available.countDown();
+        }
+      } catch (InterruptedException e) {
+        // test fails on the latch below
+      }
+    });
+    waiter.start();
+
+    budget.release(5);
+    Assert.assertFalse(available.await(50, TimeUnit.MILLISECONDS));
+    budget.release(10);
+    Assert.assertTrue(available.await(10, TimeUnit.SECONDS));
+    waiter.join();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableByteArrayInput;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class MultiGCSWriterTest {
+  private static final Schema SCHEMA = Schema.recordOf("row",
+                                                       Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+                                                       Schema.Field.of("name", Schema.of(Schema.Type.STRING)));
+
+  private final Storage storage = Mockito.mock(Storage.class);
+  private long sequenceNum;
+
+  @Test
+  public void testEventThresholdIsReachedOncePerBatch() throws Exception {
+    Map<String, String> runtimeArguments = new HashMap<>();
+    runtimeArguments.put("gcp.bigquery.staging.format", "json");
+    runtimeArguments.put("gcp.bigquery.flush.table.max.events", "3");
+    MultiGCSWriter writer = createWriter(runtimeArguments);
+
+    Assert.assertFalse(writer.write(insert("t1", 1)));
+    Assert.assertFalse(writer.write(insert("t1", 2)));
+    Assert.assertFalse(writer.write(insert("t2", 1)));
+    Assert.assertTrue(writer.write(insert("t1", 3)));
+    // the batch stays open until the caller cuts it, without reporting the threshold again
+    Assert.assertFalse(writer.write(insert("t1", 4)));
+    Assert.assertFalse(writer.write(insert("t1", 5)));
+    Assert.assertFalse(writer.write(insert("t2", 2)));
+
+    Map<TableId, List<CompletableFuture<TableBlob>>> blobs =
+      writer.cut(Collections.singleton(TableId.of("db", "t1")));
+    Assert.assertEquals(Collections.singleton(TableId.of("db", "t1")), blobs.keySet());
+    Assert.assertEquals(5, blobs.get(TableId.of("db", "t1")).get(0).get().getNumEvents());
+
+    // the next batch of the table reaches the threshold on its own events, the open batch of t2 on its third event
+    Assert.assertFalse(writer.write(insert("t1", 6)));
+    Assert.assertTrue(writer.write(insert("t2", 3)));
+    Assert.assertFalse(writer.write(insert("t1", 7)));
+    Assert.assertTrue(writer.write(insert("t1", 8)));
+    Assert.assertFalse(writer.write(insert("t1", 9)));
+  }
+
+  @Test
+  public void testByteThresholdIsReachedOncePerBatch() throws Exception {
+    Map<String, String> runtimeArguments = new HashMap<>();
+    runtimeArguments.put("gcp.bigquery.staging.format", "json");
+    runtimeArguments.put("gcp.bigquery.flush.table.max.bytes", "4096");
+    MultiGCSWriter writer = createWriter(runtimeArguments);
+
+    for (int batch = 0; batch < 2; batch++) {
+      int thresholdReached = 0;
+      for (int i = 0; i < 1000; i++) {
+        if (writer.write(insert("t1", i))) {
+          thresholdReached++;
+        }
+      }
+      Assert.assertEquals(1, thresholdReached);
+      writer.cut().get(TableId.of("db", "t1")).get(0).get();
+    }
+  }
+
+  @Test
+  public void testCompactedEventsAreCountedUntilWritten() throws Exception {
+    Map<String, String> runtimeArguments = new HashMap<>();
+    runtimeArguments.put("gcp.bigquery.staging.format", "json");
+    runtimeArguments.put("gcp.bigquery.staging.compaction", "true");
+    runtimeArguments.put("gcp.bigquery.flush.table.max.bytes", "65536");
+    MemoryBudget memoryBudget = new MemoryBudget(Long.MAX_VALUE);
+    MultiGCSWriter writer = createWriter(runtimeArguments, memoryBudget, false);
+    List<String> primaryKeys = Collections.singletonList("id");
+
+    // events are held until the batch is cut, so the threshold is reached on their estimated size
+    int thresholdReached = 0;
+    writer.write(insert("t1", 0), primaryKeys, null);
+    long firstEventMemory = memoryBudget.getUsed();
+    for (int i = 1; i < 1000; i++) {
+      if (writer.write(insert("t1", i), primaryKeys, null)) {
+        thresholdReached++;
+      }
+    }
+    Assert.assertEquals(1, thresholdReached);
+    Assert.assertTrue(memoryBudget.getUsed() > firstEventMemory);
+
+    Assert.assertEquals(1000, writer.cut().get(TableId.of("db", "t1")).get(0).get().getNumEvents());
+    Assert.assertEquals(0L, memoryBudget.getUsed());
+  }
+
+  @Test
+  public void testStreamedRowsAreCountedUntilReleased() throws Exception {
+    MemoryBudget memoryBudget = new MemoryBudget(Long.MAX_VALUE);
+    MultiGCSWriter writer = createWriter(new HashMap<>(), memoryBudget, true);
+    for (int i = 0; i < 10; i++) {
+      writer.write(insert("t1", i));
+    }
+    Assert.assertTrue(memoryBudget.getUsed() > 0);
+
+    TableBlob blob = writer.cut().get(TableId.of("db", "t1")).get(0).get();
+    Assert.assertNull(blob.getBlobId());
+    WriteStreamRows rows = blob.getWriteStreamRows();
+    Assert.assertFalse(rows.isEmpty());
+    // once the batch is cut only the rows are held, until they are appended at the load stage
+    Assert.assertEquals(WriteStreamRows.getMemoryUsage(rows.getSize()), memoryBudget.getUsed());
+    rows.release();
+    Assert.assertEquals(0L, memoryBudget.getUsed());
+    Mockito.verifyZeroInteractions(storage);
+  }
+
+  @Test
+  public void testDateTimeTableIsStagedAsAvro() throws Exception {
+    Schema schema = Schema.recordOf("row",
+                                    Schema.Field.of("id", Schema.of(Schema.Type.INT)),
+                                    Schema.Field.of("updated", Schema.of(Schema.LogicalType.DATETIME)));
+    StructuredRecord row = StructuredRecord.builder(schema)
+      .set("id", 1)
+      .setDateTime("updated", LocalDateTime.of(2022, 4, 19, 14, 31, 12, 123456789))
+      .build();
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName("t1")
+      .setRow(row)
+      .build();
+    MultiGCSWriter writer = createWriter(new HashMap<>());
+    writer.write(new Sequenced<>(event, 1L));
+
+    TableBlob blob = writer.cut().get(TableId.of("db", "t1")).get(0).get();
+    Assert.assertEquals(StagingFormat.AVRO, blob.getFormat());
+    // the object is small enough to be uploaded in a single request
+    ArgumentCaptor<byte[]> content = ArgumentCaptor.forClass(byte[].class);
+    Mockito.verify(storage).create(Mockito.any(BlobInfo.class), content.capture());
+    try (DataFileReader<GenericRecord> reader = new DataFileReader<>(new SeekableByteArrayInput(content.getValue()),
+                                                                     new GenericDatumReader<>())) {
+      // loaded as DATETIME through the logical type, with the precision trimmed to microseconds
+      org.apache.avro.Schema updatedSchema = reader.getSchema().getField("updated").schema();
+      Assert.assertEquals(org.apache.avro.Schema.Type.STRING, updatedSchema.getType());
+      Assert.assertEquals("datetime", updatedSchema.getProp("logicalType"));
+      Assert.assertEquals("2022-04-19T14:31:12.123456", reader.next().get("updated").toString());
+      Assert.assertFalse(reader.hasNext());
+    }
+  }
+
+  private MultiGCSWriter createWriter(Map<String, String> runtimeArguments) {
+    return createWriter(runtimeArguments, new MemoryBudget(Long.MAX_VALUE), false);
+  }
+
+  private MultiGCSWriter createWriter(Map<String, String> runtimeArguments, MemoryBudget memoryBudget,
+                                      boolean streamed) {
+    return new MultiGCSWriter(storage, "bucket", "cdap/delta/app/", new MockContext(0, runtimeArguments),
+                              Runnable::run, memoryBudget, false, streamed);
+  }
+
+  private Sequenced<DMLEvent> insert(String table, int id) {
+    StructuredRecord row = StructuredRecord.builder(SCHEMA)
+      .set("id", id)
+      .set("name", "name" + id)
+      .build();
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName(table)
+      .setRow(row)
+      .build();
+    return new Sequenced<>(event, ++sequenceNum);
+  }
+}
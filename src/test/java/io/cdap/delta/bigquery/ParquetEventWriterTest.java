@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+public class ParquetEventWriterTest {
+  private static final Schema ROW_SCHEMA = Schema.recordOf(
+    "row",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(10, 2))),
+    Schema.Field.of("created", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)));
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testIsSupported() {
+    Assert.assertTrue(ParquetEventWriter.isSupported(ROW_SCHEMA));
+    Assert.assertFalse(ParquetEventWriter.isSupported(
+      Schema.recordOf("r", Schema.Field.of("updated", Schema.of(Schema.LogicalType.DATETIME)))));
+    Assert.assertFalse(ParquetEventWriter.isSupported(
+      Schema.recordOf("r", Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))))));
+    Assert.assertFalse(ParquetEventWriter.isSupported(
+      Schema.recordOf("r", Schema.Field.of("nested", ROW_SCHEMA))));
+  }
+
+  @Test
+  public void testFallbackToAvroWithoutHadoop() {
+    ClassLoader classLoader = getClass().getClassLoader();
+    // the plugin class loader of a worker that does not provide Hadoop
+    ClassLoader withoutHadoop = new ClassLoader(classLoader) {
+      @Override
+      protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (name.startsWith("org.apache.hadoop.")) {
+          throw new ClassNotFoundException(name);
+        }
+        return super.loadClass(name, resolve);
+      }
+    };
+
+    Assert.assertTrue(ParquetEventWriter.isAvailable(classLoader));
+    Assert.assertFalse(ParquetEventWriter.isAvailable(withoutHadoop));
+    Assert.assertEquals(StagingFormat.PARQUET, MultiGCSWriter.getStagingFormat("parquet", classLoader));
+    Assert.assertEquals(StagingFormat.AVRO, MultiGCSWriter.getStagingFormat("parquet", withoutHadoop));
+    Assert.assertEquals(StagingFormat.JSON, MultiGCSWriter.getStagingFormat("json", withoutHadoop));
+    Assert.assertEquals(StagingFormat.AVRO, MultiGCSWriter.getStagingFormat(null, withoutHadoop));
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    RecordProjection projection = RecordProjection.builder("row.staging")
+      .add(Constants.OPERATION, Schema.of(Schema.Type.STRING), RecordProjection.Source.OPERATION)
+      .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+      .addRowColumns(ROW_SCHEMA)
+      .addBeforeColumns(ROW_SCHEMA)
+      .build();
+    StructuredRecord before = StructuredRecord.builder(ROW_SCHEMA)
+      .set("id", 1L)
+      .set("name", "alice")
+      .setDecimal("price", new BigDecimal("12.34"))
+      .set("created", 1650000000123456L)
+      .build();
+    StructuredRecord after = StructuredRecord.builder(ROW_SCHEMA)
+      .set("id", 1L)
+      .set("created", 1650000000654321L)
+      .build();
+
+    File file = new File(tmpFolder.newFolder(), "staging.parquet");
+    try (OutputStream os = new FileOutputStream(file)) {
+      ParquetEventWriter writer = new ParquetEventWriter(projection, os, 1024 * 1024);
+      StagingRecord record = new StagingRecord(projection, 0L);
+      record.reset(new Sequenced<>(event(DMLOperation.Type.INSERT, before, null), 1L), true);
+      writer.write(record);
+      record.reset(new Sequenced<>(event(DMLOperation.Type.UPDATE, after, before), 2L), true);
+      writer.write(record);
+      writer.close();
+    }
+
+    try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(),
+                                                             new Path(file.toURI())).build()) {
+      Group insert = reader.read();
+      Assert.assertEquals("INSERT", insert.getString(Constants.OPERATION, 0));
+      Assert.assertEquals(1L, insert.getLong(Constants.SEQUENCE_NUM, 0));
+      Assert.assertEquals("alice", insert.getString("name", 0));
+      Assert.assertEquals(new BigDecimal("12.34").unscaledValue(),
+                          new BigInteger(insert.getBinary("price", 0).getBytes()));
+      Assert.assertEquals(1650000000123456L, insert.getLong("created", 0));
+      Assert.assertEquals(0, insert.getFieldRepetitionCount("_before_id"));
+
+      Group update = reader.read();
+      Assert.assertEquals("UPDATE", update.getString(Constants.OPERATION, 0));
+      Assert.assertEquals(0, update.getFieldRepetitionCount("name"));
+      Assert.assertEquals(1650000000654321L, update.getLong("created", 0));
+      Assert.assertEquals("alice", update.getString("_before_name", 0));
+      Assert.assertEquals(1650000000123456L, update.getLong("_before_created", 0));
+
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testBufferedSizeGrowsWithRows() throws Exception {
+    RecordProjection projection = RecordProjection.builder("row.staging")
+      .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+      .addRowColumns(ROW_SCHEMA)
+      .build();
+    int rowGroupSize = 8 * 1024 * 1024;
+    try (OutputStream os = new FileOutputStream(new File(tmpFolder.newFolder(), "staging.parquet"))) {
+      ParquetEventWriter writer = new ParquetEventWriter(projection, os, rowGroupSize);
+      StagingRecord record = new StagingRecord(projection, 0L);
+      long firstRowSize = 0L;
+      for (int i = 0; i < 1000; i++) {
+        StructuredRecord row = StructuredRecord.builder(ROW_SCHEMA)
+          .set("id", (long) i)
+          .set("name", "name of row " + i)
+          .set("created", 1650000000000000L + i)
+          .build();
+        record.reset(new Sequenced<>(event(DMLOperation.Type.INSERT, row, null), i), false);
+        writer.write(record);
+        if (i == 0) {
+          firstRowSize = writer.getBufferedSize();
+        }
+      }
+      // only the rows written so far are buffered, not the whole row group
+      Assert.assertTrue(firstRowSize < rowGroupSize / 8);
+      Assert.assertTrue(writer.getBufferedSize() > firstRowSize);
+      Assert.assertTrue(writer.getBufferedSize() < rowGroupSize);
+      writer.close();
+    }
+  }
+
+  private static DMLEvent event(DMLOperation.Type type, StructuredRecord row, StructuredRecord previousRow) {
+    return DMLEvent.builder()
+      .setOperationType(type)
+      .setDatabaseName("db")
+      .setTableName("row")
+      .setRow(row)
+      .setPreviousRow(previousRow)
+      .build();
+  }
+}
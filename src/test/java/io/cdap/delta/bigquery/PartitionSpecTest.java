@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.RangePartitioning;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.TimePartitioning;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PartitionSpecTest {
+  private static final Schema SCHEMA = Schema.of(Field.of("customer_id", StandardSQLTypeName.INT64),
+                                                 Field.of("name", StandardSQLTypeName.STRING),
+                                                 Field.of("created_on", StandardSQLTypeName.DATE),
+                                                 Field.of("updated_at", StandardSQLTypeName.TIMESTAMP),
+                                                 Field.of("updated_local", StandardSQLTypeName.DATETIME));
+
+  @Test
+  public void testTimePartitioning() {
+    StandardTableDefinition definition = PartitionSpec.parse("updated_at").applyTo(StandardTableDefinition.newBuilder())
+      .build();
+    Assert.assertEquals(TimePartitioning.newBuilder(TimePartitioning.Type.DAY).setField("updated_at").build(),
+                        definition.getTimePartitioning());
+
+    definition = PartitionSpec.parse("updated_at:month").applyTo(StandardTableDefinition.newBuilder()).build();
+    Assert.assertEquals(TimePartitioning.Type.MONTH, definition.getTimePartitioning().getType());
+  }
+
+  @Test
+  public void testRangePartitioning() {
+    PartitionSpec spec = PartitionSpec.parse("customer_id:RANGE:0:1000000:1000");
+    Assert.assertEquals("customer_id", spec.getColumn());
+    RangePartitioning partitioning = spec.applyTo(StandardTableDefinition.newBuilder()).build().getRangePartitioning();
+    Assert.assertEquals("customer_id", partitioning.getField());
+    Assert.assertEquals(Long.valueOf(0), partitioning.getRange().getStart());
+    Assert.assertEquals(Long.valueOf(1000000), partitioning.getRange().getEnd());
+    Assert.assertEquals(Long.valueOf(1000), partitioning.getRange().getInterval());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidType() {
+    PartitionSpec.parse("updated_at:WEEK");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncompleteRange() {
+    PartitionSpec.parse("customer_id:RANGE:0:1000");
+  }
+
+  @Test
+  public void testValidColumns() {
+    PartitionSpec.parse("updated_at:HOUR").validate(SCHEMA);
+    PartitionSpec.parse("updated_local").validate(SCHEMA);
+    PartitionSpec.parse("created_on:MONTH").validate(SCHEMA);
+    PartitionSpec.parse("customer_id:RANGE:0:1000000:1000").validate(SCHEMA);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingColumn() {
+    PartitionSpec.parse("deleted_at").validate(SCHEMA);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTimePartitioningOfStringColumn() {
+    PartitionSpec.parse("name:DAY").validate(SCHEMA);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHourlyPartitioningOfDateColumn() {
+    PartitionSpec.parse("created_on:HOUR").validate(SCHEMA);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRangePartitioningOfTimestampColumn() {
+    PartitionSpec.parse("updated_at:RANGE:0:1000:10").validate(SCHEMA);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StageExecutorTest {
+
+  @Test
+  public void testTasksBeyondThreadsAreQueued() throws Exception {
+    StageExecutor stage = new StageExecutor("test", 2, null);
+    try {
+      CountDownLatch started = new CountDownLatch(2);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch finished = new CountDownLatch(5);
+      for (int i = 0; i < 5; i++) {
+        stage.execute(() -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          finished.countDown();
+        });
+      }
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(2, stage.getActiveCount());
+      Assert.assertEquals(3, stage.getQueueDepth());
+
+      release.countDown();
+      Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+      // the counts are updated after a task returns
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (stage.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+      Assert.assertEquals(0, stage.getActiveCount());
+      Assert.assertEquals(0, stage.getQueueDepth());
+    } finally {
+      stage.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAtLeastOneThread() {
+    new StageExecutor("test", 0, null);
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link StagingRecordDatumWriter}.
+ */
+public class StagingRecordDatumWriterTest {
+  private static final long BATCH_ID = 1234567890L;
+
+  @Test
+  public void testEncodingMatchesStructuredRecordDatumWriter() throws IOException {
+    Schema addressSchema = Schema.recordOf("address", Schema.Field.of("street", Schema.of(Schema.Type.STRING)));
+    Schema rowSchema = Schema.recordOf(
+      "row",
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("name", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("active", Schema.of(Schema.Type.BOOLEAN)),
+      Schema.Field.of("score", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE))),
+      Schema.Field.of("price", Schema.nullableOf(Schema.decimalOf(10, 2))),
+      Schema.Field.of("created", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)),
+      Schema.Field.of("birthday", Schema.nullableOf(Schema.of(Schema.LogicalType.DATE))),
+      Schema.Field.of("payload", Schema.nullableOf(Schema.of(Schema.Type.BYTES))),
+      Schema.Field.of("tags", Schema.arrayOf(Schema.of(Schema.Type.STRING))),
+      Schema.Field.of("attributes", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.INT))),
+      Schema.Field.of("address", Schema.nullableOf(addressSchema)));
+
+    Map<String, Integer> attributes = new HashMap<>();
+    attributes.put("a", 1);
+    attributes.put("b", 2);
+    StructuredRecord before = StructuredRecord.builder(rowSchema)
+      .set("id", 1L)
+      .set("name", "alice")
+      .set("active", true)
+      .setDecimal("price", new BigDecimal("12.34"))
+      .set("created", 1650000000123456L)
+      .set("birthday", 18000)
+      .set("tags", Arrays.asList("x", "y"))
+      .set("attributes", attributes)
+      .set("address", StructuredRecord.builder(addressSchema).set("street", "main").build())
+      .build();
+    StructuredRecord after = StructuredRecord.builder(rowSchema)
+      .set("id", 2L)
+      .set("active", false)
+      .set("score", 0.5d)
+      .set("created", 1650000000654321L)
+      .set("payload", new byte[] {1, 2, 3})
+      .set("tags", new ArrayList<>())
+      .set("attributes", new HashMap<>())
+      .build();
+
+    RecordProjection projection = createStagingProjection(rowSchema);
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.UPDATE)
+      .setDatabaseName("db")
+      .setTableName("table")
+      .setRow(after)
+      .setPreviousRow(before)
+      .build();
+
+    Assert.assertArrayEquals(encodeWithStructuredRecordWriter(projection, event, 10L),
+                             encodeWithStagingWriter(projection, event, 10L));
+  }
+
+  @Test
+  public void testWideTableEncodingMatchesStructuredRecordDatumWriter() throws IOException {
+    int numColumns = 240;
+    List<Schema.Field> fields = new ArrayList<>(numColumns);
+    for (int i = 0; i < numColumns; i++) {
+      switch (i % 4) {
+        case 0:
+          fields.add(Schema.Field.of("long_" + i, Schema.of(Schema.Type.LONG)));
+          break;
+        case 1:
+          fields.add(Schema.Field.of("string_" + i, Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+          break;
+        case 2:
+          fields.add(Schema.Field.of("double_" + i, Schema.of(Schema.Type.DOUBLE)));
+          break;
+        default:
+          fields.add(Schema.Field.of("int_" + i, Schema.nullableOf(Schema.of(Schema.Type.INT))));
+      }
+    }
+    Schema rowSchema = Schema.recordOf("wide", fields);
+    StructuredRecord.Builder rowBuilder = StructuredRecord.builder(rowSchema);
+    for (int i = 0; i < numColumns; i++) {
+      switch (i % 4) {
+        case 0:
+          rowBuilder.set(fields.get(i).getName(), (long) i);
+          break;
+        case 1:
+          rowBuilder.set(fields.get(i).getName(), "value of column " + i);
+          break;
+        case 2:
+          rowBuilder.set(fields.get(i).getName(), i / 3.0d);
+          break;
+        default:
+          rowBuilder.set(fields.get(i).getName(), i % 8 == 3 ? null : i);
+      }
+    }
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName("wide")
+      .setRow(rowBuilder.build())
+      .build();
+    RecordProjection projection = createStagingProjection(rowSchema);
+
+    // the same staging record is reused across events, so encode a few of them in a row
+    StagingRecord record = new StagingRecord(projection, BATCH_ID);
+    StagingRecordDatumWriter writer = new StagingRecordDatumWriter(projection);
+    for (long sequenceNum = 0; sequenceNum < 3; sequenceNum++) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bos, null);
+      record.reset(new Sequenced<>(event, sequenceNum), true);
+      writer.write(record, encoder);
+      encoder.flush();
+      Assert.assertArrayEquals(encodeWithStructuredRecordWriter(projection, event, sequenceNum), bos.toByteArray());
+    }
+  }
+
+  private static RecordProjection createStagingProjection(Schema rowSchema) {
+    return RecordProjection.builder(rowSchema.getRecordName() + ".staging")
+      .add(Constants.OPERATION, Schema.of(Schema.Type.STRING), RecordProjection.Source.OPERATION)
+      .add(Constants.BATCH_ID, Schema.of(Schema.Type.LONG), RecordProjection.Source.BATCH_ID)
+      .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+      .addRowColumns(rowSchema)
+      .addBeforeColumns(rowSchema)
+      .build();
+  }
+
+  /**
+   * Builds the record of the staging schema the way events were staged before projections were introduced.
+   */
+  private static StructuredRecord toStagingRecord(RecordProjection projection, DMLEvent event, long sequenceNum) {
+    StructuredRecord row = event.getRow();
+    StructuredRecord.Builder builder = StructuredRecord.builder(projection.getSchema())
+      .set(Constants.OPERATION, event.getOperation().getType().name())
+      .set(Constants.BATCH_ID, BATCH_ID)
+      .set(Constants.SEQUENCE_NUM, sequenceNum);
+    for (Schema.Field field : row.getSchema().getFields()) {
+      builder.set(field.getName(), row.get(field.getName()));
+    }
+    StructuredRecord beforeRow = event.getPreviousRow();
+    if (beforeRow != null) {
+      for (Schema.Field field : beforeRow.getSchema().getFields()) {
+        builder.set("_before_" + field.getName(), beforeRow.get(field.getName()));
+      }
+    }
+    return builder.build();
+  }
+
+  private static byte[] encodeWithStructuredRecordWriter(RecordProjection projection, DMLEvent event,
+                                                         long sequenceNum) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bos, null);
+    new RecordDatumWriter().write(toStagingRecord(projection, event, sequenceNum), encoder);
+    encoder.flush();
+    return bos.toByteArray();
+  }
+
+  private static byte[] encodeWithStagingWriter(RecordProjection projection, DMLEvent event,
+                                                long sequenceNum) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bos, null);
+    StagingRecord record = new StagingRecord(projection, BATCH_ID);
+    record.reset(new Sequenced<>(event, sequenceNum), true);
+    new StagingRecordDatumWriter(projection).write(record, encoder);
+    encoder.flush();
+    return bos.toByteArray();
+  }
+}
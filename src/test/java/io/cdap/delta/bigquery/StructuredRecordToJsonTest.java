@@ -24,6 +24,13 @@ import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 
 @RunWith(MockitoJUnitRunner.class)
 public class StructuredRecordToJsonTest {
@@ -87,4 +94,61 @@ public class StructuredRecordToJsonTest {
     StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, "2022-4-1", DATETIME_SCHEMA);
     Mockito.verify(jsonWriter, Mockito.times(1)).value("2022-4-1");
   }
+
+  @Test
+  public void testWriteDateTimeInvalidFormat() throws IOException {
+    StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, "2022-04-19 14:31:12.", DATETIME_SCHEMA);
+    Mockito.verify(jsonWriter, Mockito.times(1)).value("2022-04-19 14:31:12.");
+    StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, "2022-04-123", DATETIME_SCHEMA);
+    Mockito.verify(jsonWriter, Mockito.times(1)).value("2022-04-123");
+  }
+
+  @Test
+  public void testWriteDate() throws IOException {
+    Schema schema = Schema.of(Schema.LogicalType.DATE);
+    for (int epochDay : new int[] {0, -1, 19101, -719162, -719163, 2932896, 2932897, 11016, -141428}) {
+      StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, epochDay, schema);
+      Mockito.verify(jsonWriter, Mockito.times(1)).value(LocalDate.ofEpochDay(epochDay).toString());
+    }
+  }
+
+  @Test
+  public void testWriteTime() throws IOException {
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss.SSSSSS");
+    Schema schema = Schema.of(Schema.LogicalType.TIME_MICROS);
+    for (long micros : new long[] {0L, 1L, 52272123456L, 86399999999L}) {
+      StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, micros, schema);
+      Mockito.verify(jsonWriter, Mockito.times(1)).value(formatter.format(LocalTime.ofNanoOfDay(micros * 1000)));
+    }
+    StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, 52272123, Schema.of(Schema.LogicalType.TIME_MILLIS));
+    Mockito.verify(jsonWriter, Mockito.times(1)).value("14:31:12.123000");
+  }
+
+  @Test
+  public void testWriteTimestamp() throws IOException {
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS").withZone(ZoneOffset.UTC);
+    Schema schema = Schema.of(Schema.LogicalType.TIMESTAMP_MICROS);
+    for (long micros : new long[] {0L, -1L, 1650378672123456L, -62135596800000000L, 253402300799999999L,
+      -30610224000000001L}) {
+      StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, micros, schema);
+      Instant instant = Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L), Math.floorMod(micros, 1000000L) * 1000);
+      Mockito.verify(jsonWriter, Mockito.times(1)).value(formatter.format(instant));
+    }
+    StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, -1L, Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS));
+    Mockito.verify(jsonWriter, Mockito.times(1)).value("1969-12-31 23:59:59.999000");
+  }
+
+  @Test
+  public void testWriteDecimal() throws IOException {
+    String[] values = {"0", "0.00", "12.34", "-12.34", "0.05", "-0.05", "123456789012345678", "-9223372036854775807",
+      "-92233720368547758.08", "12345678901234567890.123"};
+    for (String value : values) {
+      BigDecimal decimal = new BigDecimal(value);
+      Schema schema = Schema.decimalOf(38, decimal.scale());
+      byte[] bytes = decimal.unscaledValue().toByteArray();
+      StructuredRecordToJson.write(jsonWriter, UPDATED_COLUMN, bytes, schema);
+      Mockito.verify(jsonWriter, Mockito.times(1))
+        .value(new BigDecimal(new BigInteger(bytes), schema.getScale()).toPlainString());
+    }
+  }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class WriteStreamEventWriterTest {
+  private static final Schema ROW_SCHEMA = Schema.recordOf("row", Schema.Field.of("id", Schema.of(Schema.Type.LONG)));
+  private static final RecordProjection PROJECTION = RecordProjection.builder("row.staging")
+    .add(Constants.SEQUENCE_NUM, Schema.of(Schema.Type.LONG), RecordProjection.Source.SEQUENCE_NUM)
+    .addRowColumns(ROW_SCHEMA)
+    .build();
+  // the names of both columns and eight bytes for each of their values
+  private static final int ROW_SIZE = 31;
+
+  @Test
+  public void testRowsAreGroupedIntoAppends() {
+    WriteStreamRows rows = new WriteStreamRows();
+    // two rows fit into one append
+    WriteStreamEventWriter writer = new WriteStreamEventWriter(rows, 70);
+    writeRecords(writer, 1, 5);
+    Assert.assertEquals(5 * ROW_SIZE, writer.getBytesWritten());
+    writer.close();
+
+    List<JSONArray> chunks = rows.getChunks();
+    Assert.assertEquals(Arrays.asList(2, 2, 1), chunks.stream().map(JSONArray::length).collect(Collectors.toList()));
+    Assert.assertEquals(5 * ROW_SIZE, rows.getSize());
+    Assert.assertEquals(1L, chunks.get(0).getJSONObject(0).getLong("id"));
+    Assert.assertEquals(5L, chunks.get(2).getJSONObject(0).getLong(Constants.SEQUENCE_NUM));
+  }
+
+  @Test
+  public void testMemoryIsReservedUntilRowsAreReleased() {
+    MemoryBudget memoryBudget = new MemoryBudget(Long.MAX_VALUE);
+    WriteStreamRows rows = new WriteStreamRows();
+    WriteStreamEventWriter writer = new WriteStreamEventWriter(rows, 70);
+    writeRecords(writer, 1, 5);
+    writer.close();
+
+    rows.reserve(memoryBudget);
+    Assert.assertEquals(writer.getMemoryUsage(), memoryBudget.getUsed());
+    Assert.assertTrue(memoryBudget.getUsed() > rows.getSize());
+    rows.release();
+    // releasing the rows again once the batch is done has no effect
+    rows.release();
+    Assert.assertEquals(0L, memoryBudget.getUsed());
+    Assert.assertTrue(rows.isEmpty());
+  }
+
+  private static void writeRecords(WriteStreamEventWriter writer, long from, long to) {
+    for (long id = from; id <= to; id++) {
+      writer.write(createRecord(id));
+    }
+  }
+
+  private static StagingRecord createRecord(long id) {
+    StagingRecord record = new StagingRecord(PROJECTION, 0L);
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName("row")
+      .setRow(StructuredRecord.builder(ROW_SCHEMA).set("id", id).build())
+      .build();
+    record.reset(new Sequenced<>(event, id), false);
+    return record;
+  }
+}
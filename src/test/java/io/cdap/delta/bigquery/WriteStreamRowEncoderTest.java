@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2023 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.delta.bigquery;
+
+import com.google.cloud.bigquery.storage.v1.BQTableSchemaToProtoDescriptor;
+import com.google.cloud.bigquery.storage.v1.BigDecimalByteStringEncoder;
+import com.google.cloud.bigquery.storage.v1.JsonToProtoMessage;
+import com.google.cloud.bigquery.storage.v1.TableFieldSchema;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.delta.api.DMLEvent;
+import io.cdap.delta.api.DMLOperation;
+import io.cdap.delta.api.Sequenced;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+public class WriteStreamRowEncoderTest {
+  private static final Schema ROW_SCHEMA = Schema.recordOf(
+    "row",
+    Schema.Field.of("date", Schema.of(Schema.LogicalType.DATE)),
+    Schema.Field.of("ts", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)),
+    Schema.Field.of("ts_millis", Schema.of(Schema.LogicalType.TIMESTAMP_MILLIS)),
+    Schema.Field.of("amount", Schema.decimalOf(10, 2)),
+    Schema.Field.of("dt", Schema.of(Schema.LogicalType.DATETIME)),
+    Schema.Field.of("time", Schema.of(Schema.LogicalType.TIME_MICROS)),
+    Schema.Field.of("data", Schema.of(Schema.Type.BYTES)),
+    Schema.Field.of("note", Schema.nullableOf(Schema.of(Schema.Type.STRING))));
+  private static final TableSchema TABLE_SCHEMA = TableSchema.newBuilder()
+    .addFields(field("date", TableFieldSchema.Type.DATE))
+    .addFields(field("ts", TableFieldSchema.Type.TIMESTAMP))
+    .addFields(field("ts_millis", TableFieldSchema.Type.TIMESTAMP))
+    .addFields(field("amount", TableFieldSchema.Type.NUMERIC))
+    .addFields(field("dt", TableFieldSchema.Type.DATETIME))
+    .addFields(field("time", TableFieldSchema.Type.TIME))
+    .addFields(field("data", TableFieldSchema.Type.BYTES))
+    .addFields(TableFieldSchema.newBuilder().setName("note").setType(TableFieldSchema.Type.STRING)
+                 .setMode(TableFieldSchema.Mode.NULLABLE))
+    .build();
+
+  @Test
+  public void testValuesAreConvertedByTheStreamWriter() throws Exception {
+    StructuredRecord row = StructuredRecord.builder(ROW_SCHEMA)
+      .setDate("date", LocalDate.of(2021, 2, 3))
+      .setTimestamp("ts", ZonedDateTime.of(2021, 2, 3, 4, 5, 6, 789012000, ZoneOffset.UTC))
+      .setTimestamp("ts_millis", ZonedDateTime.of(2021, 2, 3, 4, 5, 6, 789000000, ZoneOffset.UTC))
+      .setDecimal("amount", new BigDecimal("-12345678.91"))
+      .setDateTime("dt", LocalDateTime.of(2021, 2, 3, 4, 5, 6, 789012000))
+      .setTime("time", LocalTime.of(4, 5, 6, 789012000))
+      .set("data", new byte[] {1, 2, 3})
+      .build();
+    JSONObject json = new WriteStreamRowEncoder().encode(createRecord(row));
+    Assert.assertFalse(json.has("note"));
+
+    // the rows are converted the way the stream writer converts them before they are appended
+    Descriptors.Descriptor descriptor = BQTableSchemaToProtoDescriptor.convertBQTableSchemaToProtoDescriptor(
+      TABLE_SCHEMA);
+    DynamicMessage message = JsonToProtoMessage.convertJsonToProtoMessage(descriptor, TABLE_SCHEMA, json);
+
+    Assert.assertEquals(18661, message.getField(descriptor.findFieldByName("date")));
+    Assert.assertEquals(1612325106789012L, message.getField(descriptor.findFieldByName("ts")));
+    Assert.assertEquals(1612325106789000L, message.getField(descriptor.findFieldByName("ts_millis")));
+    BigDecimal amount = BigDecimalByteStringEncoder.decodeNumericByteString(
+      (ByteString) message.getField(descriptor.findFieldByName("amount")));
+    Assert.assertEquals(0, new BigDecimal("-12345678.91").compareTo(amount));
+    Assert.assertEquals(142224457915435540L, message.getField(descriptor.findFieldByName("dt")));
+    Assert.assertEquals(17522493972L, message.getField(descriptor.findFieldByName("time")));
+    Assert.assertEquals(ByteString.copyFrom(new byte[] {1, 2, 3}),
+                        message.getField(descriptor.findFieldByName("data")));
+    Assert.assertFalse(message.hasField(descriptor.findFieldByName("note")));
+  }
+
+  @Test
+  public void testDatetimesArePacked() {
+    Assert.assertEquals(142224457915435540L, WriteStreamRowEncoder.encodeDatetime("2021-02-03T04:05:06.789012"));
+    Assert.assertEquals(142224457915435540L, WriteStreamRowEncoder.encodeDatetime("2021-2-3 4:5:6.789012"));
+    Assert.assertEquals(142224457915435540L - 789012L, WriteStreamRowEncoder.encodeDatetime("2021-02-03 04:05:06"));
+  }
+
+  private static TableFieldSchema.Builder field(String name, TableFieldSchema.Type type) {
+    return TableFieldSchema.newBuilder().setName(name).setType(type).setMode(TableFieldSchema.Mode.REQUIRED);
+  }
+
+  private static StagingRecord createRecord(StructuredRecord row) {
+    RecordProjection projection = RecordProjection.builder("row.staging").addRowColumns(ROW_SCHEMA).build();
+    StagingRecord record = new StagingRecord(projection, 0L);
+    DMLEvent event = DMLEvent.builder()
+      .setOperationType(DMLOperation.Type.INSERT)
+      .setDatabaseName("db")
+      .setTableName("row")
+      .setRow(row)
+      .build();
+    record.reset(new Sequenced<>(event, 1L), false);
+    return record;
+  }
+}